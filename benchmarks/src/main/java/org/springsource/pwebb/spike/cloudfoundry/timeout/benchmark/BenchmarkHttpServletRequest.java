@@ -0,0 +1,40 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.benchmark;
+
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Reusable request that can carry a single timeout protection header. The header value can be changed between
+ * benchmark invocations without allocating a new request.
+ * 
+ * @author Phillip Webb
+ */
+public class BenchmarkHttpServletRequest extends HttpServletRequestWrapper {
+
+	private final String header;
+
+	private String value;
+
+	/**
+	 * Create a new {@link BenchmarkHttpServletRequest} instance.
+	 * @param header the name of the header or <tt>null</tt> if no header is sent
+	 */
+	public BenchmarkHttpServletRequest(String header) {
+		super(new MockHttpServletRequest("GET", "/"));
+		this.header = header;
+	}
+
+	@Override
+	public String getHeader(String name) {
+		return (name.equals(this.header) ? this.value : null);
+	}
+
+	/**
+	 * Set the value of the header.
+	 * @param value the header value
+	 */
+	public void setValue(String value) {
+		this.value = value;
+	}
+}
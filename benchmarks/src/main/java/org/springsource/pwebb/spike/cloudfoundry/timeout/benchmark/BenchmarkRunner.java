@@ -0,0 +1,25 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled. The GC profiler reports both collection counts and the normalized
+ * allocation rate (<tt>gc.alloc.rate.norm</tt>) for each benchmark. Standard JMH command line options (for example a
+ * benchmark name filter) are supported.
+ * 
+ * @author Phillip Webb
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,65 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.util.Assert;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.DuplicatingHttpServletResponseMonitorFactory;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitor;
+
+/**
+ * The {@link java.lang.reflect.Proxy} based implementation of {@link DuplicatingHttpServletResponseMonitorFactory},
+ * retained as a baseline for {@link MonitorDispatchBenchmark}.
+ * 
+ * @author Phillip Webb
+ */
+public class BridgedDuplicatingHttpServletResponseMonitorFactory extends
+		BridgedHttpServletResponseMonitorFactory<HttpServletResponseMonitor> {
+
+	private static final List<MethodHandler> METHOD_HANDLERS;
+	static {
+		METHOD_HANDLERS = new ArrayList<MethodHandler>();
+		METHOD_HANDLERS.add(new WriteByteMethodHandler());
+		METHOD_HANDLERS.add(new WriteBytesMethodHandler());
+		METHOD_HANDLERS.add(new WriteBytesWithOffsetMethodHandler());
+		METHOD_HANDLERS.add(new EqualsMethodHandler());
+		METHOD_HANDLERS.add(new HashCodeMethodHandler());
+		METHOD_HANDLERS.add(new ToStringMethodHandler());
+		METHOD_HANDLERS.add(new DirectlyMappedMethodHandler());
+	}
+
+	private HttpServletResponse response;
+
+	public BridgedDuplicatingHttpServletResponseMonitorFactory(HttpServletResponse response) {
+		Assert.notNull(response, "Response must not be null");
+		this.response = response;
+	}
+
+	@Override
+	protected Collection<MethodHandler> getMethodHandlers() {
+		return METHOD_HANDLERS;
+	}
+
+	@Override
+	protected HttpServletResponseBridge newResponseBridge() {
+		return new DuplicatingHttpServletResponseBridge();
+	}
+
+	private class DuplicatingHttpServletResponseBridge implements HttpServletResponseBridge {
+
+		public void invoke(Method method, Object[] args) throws Throwable {
+			method.invoke(BridgedDuplicatingHttpServletResponseMonitorFactory.this.response, args);
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			return BridgedDuplicatingHttpServletResponseMonitorFactory.this.response.getOutputStream();
+		}
+	}
+
+}
@@ -1,4 +1,4 @@
-package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
+package org.springsource.pwebb.spike.cloudfoundry.timeout.benchmark;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -15,14 +15,17 @@ import javax.servlet.http.HttpServletResponse;
 import org.springframework.core.GenericTypeResolver;
 import org.springframework.util.ReflectionUtils;
 import org.springframework.util.ReflectionUtils.MethodCallback;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitor;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitorFactory;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitor;
 
 /**
  * Base of any {@link HttpServletResponseMonitorFactory} that eventually provides a bridge back to a native
- * {@link HttpServletResponse}.
+ * {@link HttpServletResponse}. This is the {@link Proxy} based implementation that the monitor factories used before
+ * they dispatched directly, it is retained unchanged as a baseline for {@link MonitorDispatchBenchmark}.
  * 
  * @param <T> The {@link HttpServletResponseMonitor} type
- * @see ReplayableHttpServletResponseMonitorFactory
- * @see DuplicatingHttpServletResponseMonitorFactory
+ * @see BridgedDuplicatingHttpServletResponseMonitorFactory
  * 
  * @author Phillip Webb
  */
@@ -176,7 +179,7 @@ public abstract class BridgedHttpServletResponseMonitorFactory<T extends HttpSer
 
 		public Object invoke(HttpServletResponseBridge bridge, Object proxy, Method method, Object[] args)
 				throws Throwable {
-			return new Integer(System.identityHashCode(proxy));
+			return Integer.valueOf(System.identityHashCode(proxy));
 		}
 	}
 
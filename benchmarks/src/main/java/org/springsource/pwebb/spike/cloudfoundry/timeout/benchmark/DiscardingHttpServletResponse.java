@@ -0,0 +1,151 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * {@link HttpServletResponse} that discards all calls without allocating so that benchmarks only measure the code
+ * under test.
+ * 
+ * @author Phillip Webb
+ */
+public class DiscardingHttpServletResponse implements HttpServletResponse {
+
+	private final ServletOutputStream outputStream = new ServletOutputStream() {
+
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	private final PrintWriter writer = new PrintWriter(new OutputStreamWriter(this.outputStream));
+
+	private int status = SC_OK;
+
+	public void addCookie(Cookie cookie) {
+	}
+
+	public boolean containsHeader(String name) {
+		return false;
+	}
+
+	public String encodeURL(String url) {
+		return url;
+	}
+
+	public String encodeRedirectURL(String url) {
+		return url;
+	}
+
+	public String encodeUrl(String url) {
+		return url;
+	}
+
+	public String encodeRedirectUrl(String url) {
+		return url;
+	}
+
+	public void sendError(int sc, String msg) throws IOException {
+		this.status = sc;
+	}
+
+	public void sendError(int sc) throws IOException {
+		this.status = sc;
+	}
+
+	public void sendRedirect(String location) throws IOException {
+	}
+
+	public void setDateHeader(String name, long date) {
+	}
+
+	public void addDateHeader(String name, long date) {
+	}
+
+	public void setHeader(String name, String value) {
+	}
+
+	public void addHeader(String name, String value) {
+	}
+
+	public void setIntHeader(String name, int value) {
+	}
+
+	public void addIntHeader(String name, int value) {
+	}
+
+	public void setStatus(int sc) {
+		this.status = sc;
+	}
+
+	public void setStatus(int sc, String sm) {
+		this.status = sc;
+	}
+
+	public int getStatus() {
+		return this.status;
+	}
+
+	public String getCharacterEncoding() {
+		return "ISO-8859-1";
+	}
+
+	public String getContentType() {
+		return null;
+	}
+
+	public ServletOutputStream getOutputStream() throws IOException {
+		return this.outputStream;
+	}
+
+	public PrintWriter getWriter() throws IOException {
+		return this.writer;
+	}
+
+	public void setCharacterEncoding(String charset) {
+	}
+
+	public void setContentLength(int len) {
+	}
+
+	public void setContentType(String type) {
+	}
+
+	public void setBufferSize(int size) {
+	}
+
+	public int getBufferSize() {
+		return 0;
+	}
+
+	public void flushBuffer() throws IOException {
+	}
+
+	public void resetBuffer() {
+	}
+
+	public boolean isCommitted() {
+		return false;
+	}
+
+	public void reset() {
+		this.status = SC_OK;
+	}
+
+	public void setLocale(Locale loc) {
+	}
+
+	public Locale getLocale() {
+		return Locale.getDefault();
+	}
+}
@@ -0,0 +1,115 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.ReplayingTimeoutProtectionStrategy;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionFilter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionHttpHeader;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionHttpRequest;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.VirtualThreadExecutorFactoryBean;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitorFactory;
+
+/**
+ * Benchmarks 10,000 concurrent blocking polls run by an executor, as used by
+ * {@link TimeoutProtectionFilter#setExecutor(java.util.concurrent.Executor)}, comparing platform threads with virtual
+ * threads. Each operation starts every poll, waits until they have all started, completes every request and then waits
+ * for every poll to receive its response. The virtual thread case requires JDK 21.
+ * 
+ * @author Phillip Webb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+public class ExecutorPollBenchmark {
+
+	private static final int POLLS = 10000;
+
+	@Param({ "platform", "virtual" })
+	private String threads;
+
+	private ExecutorService executor;
+
+	private VirtualThreadExecutorFactoryBean virtualThreadExecutor = new VirtualThreadExecutorFactoryBean();
+
+	private ReplayingTimeoutProtectionStrategy strategy;
+
+	private TimeoutProtectionHttpRequest[] requests = new TimeoutProtectionHttpRequest[POLLS];
+
+	private TimeoutProtectionHttpRequest[] polls = new TimeoutProtectionHttpRequest[POLLS];
+
+	private DiscardingHttpServletResponse[] responses = new DiscardingHttpServletResponse[POLLS];
+
+	@Setup
+	public void setup() {
+		this.executor = ("virtual".equals(this.threads) ? this.virtualThreadExecutor.getObject() : Executors
+				.newCachedThreadPool());
+		this.strategy = new ReplayingTimeoutProtectionStrategy();
+		this.strategy.setThreshold(0);
+		this.strategy.setLongPollTime(TimeUnit.MINUTES.toMillis(1));
+		this.strategy.setFailTimeout(TimeUnit.MINUTES.toMillis(1));
+		BenchmarkHttpServletRequest request = new BenchmarkHttpServletRequest(TimeoutProtectionHttpHeader.INITIAL_REQUEST);
+		BenchmarkHttpServletRequest poll = new BenchmarkHttpServletRequest(TimeoutProtectionHttpHeader.POLL);
+		for (int i = 0; i < POLLS; i++) {
+			request.setValue(Integer.toString(i));
+			poll.setValue(Integer.toString(i));
+			this.requests[i] = TimeoutProtectionHttpRequest.get(request);
+			this.polls[i] = TimeoutProtectionHttpRequest.get(poll);
+			this.responses[i] = new DiscardingHttpServletResponse();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.strategy.destroy();
+		this.executor.shutdown();
+		this.virtualThreadExecutor.destroy();
+	}
+
+	@Benchmark
+	public void concurrentPolls() throws Exception {
+		final CountDownLatch started = new CountDownLatch(POLLS);
+		final CountDownLatch finished = new CountDownLatch(POLLS);
+		for (int i = 0; i < POLLS; i++) {
+			final TimeoutProtectionHttpRequest poll = this.polls[i];
+			final DiscardingHttpServletResponse response = this.responses[i];
+			this.executor.execute(new Runnable() {
+				public void run() {
+					started.countDown();
+					try {
+						ExecutorPollBenchmark.this.strategy.handlePoll(poll, response);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					} finally {
+						finished.countDown();
+					}
+				}
+			});
+		}
+		started.await();
+		for (TimeoutProtectionHttpRequest request : this.requests) {
+			HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(request);
+			monitorFactory.getMonitor().setStatus(200);
+			this.strategy.afterRequest(request, monitorFactory);
+		}
+		finished.await();
+	}
+}
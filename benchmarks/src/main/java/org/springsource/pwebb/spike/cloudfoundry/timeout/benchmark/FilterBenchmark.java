@@ -0,0 +1,179 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.benchmark;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.HotSwappingTimeoutProtectionStrategy;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.ReplayingTimeoutProtectionStrategy;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionFilter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionHttpHeader;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionStrategy;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Benchmarks the overhead that {@link TimeoutProtectionFilter} adds to a request for each strategy. Requests either
+ * send no protection header, are protected but complete under the threshold, or are protected and complete over the
+ * threshold. Requests over the threshold are followed by the poll that collects the recorded response so that no
+ * state is retained between invocations. A short fail timeout is used so that the expiries each request schedules
+ * are reaped during the iteration rather than accumulating for the default 30 seconds. Response bodies are written
+ * either to the output stream in a single call or, as a template engine would, to the writer as many small fragments
+ * with the writer obtained more than once.
+ * 
+ * @author Phillip Webb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+	private static final byte[] BODY = new byte[256];
+
+	private static final int TEMPLATE_ROWS = 32;
+
+	private static final long FAIL_TIMEOUT = 100;
+
+	@Param({ "replaying", "hotSwapping" })
+	private String strategyName;
+
+	@Param({ "stream", "writer" })
+	private String body;
+
+	private TimeoutProtectionStrategy underThresholdStrategy;
+
+	private TimeoutProtectionStrategy overThresholdStrategy;
+
+	private TimeoutProtectionFilter underThresholdFilter;
+
+	private TimeoutProtectionFilter overThresholdFilter;
+
+	private BenchmarkHttpServletRequest request = new BenchmarkHttpServletRequest(null);
+
+	private BenchmarkHttpServletRequest initialRequest = new BenchmarkHttpServletRequest(
+			TimeoutProtectionHttpHeader.INITIAL_REQUEST);
+
+	private BenchmarkHttpServletRequest pollRequest = new BenchmarkHttpServletRequest(TimeoutProtectionHttpHeader.POLL);
+
+	private DiscardingHttpServletResponse response = new DiscardingHttpServletResponse();
+
+	private FilterChain chain;
+
+	private long uid;
+
+	@Setup
+	public void setup() {
+		this.underThresholdStrategy = createStrategy(TimeUnit.MINUTES.toMillis(1));
+		this.underThresholdFilter = createFilter(this.underThresholdStrategy);
+		this.overThresholdStrategy = createStrategy(0);
+		this.overThresholdFilter = createFilter(this.overThresholdStrategy);
+		this.chain = ("writer".equals(this.body) ? new WriterFilterChain() : new StreamFilterChain());
+	}
+
+	private TimeoutProtectionStrategy createStrategy(long threshold) {
+		if ("hotSwapping".equals(this.strategyName)) {
+			HotSwappingTimeoutProtectionStrategy strategy = new HotSwappingTimeoutProtectionStrategy();
+			strategy.setThreshold(threshold);
+			strategy.setFailTimeout(FAIL_TIMEOUT);
+			strategy.setNonBlocking(true);
+			return strategy;
+		}
+		ReplayingTimeoutProtectionStrategy strategy = new ReplayingTimeoutProtectionStrategy();
+		strategy.setThreshold(threshold);
+		strategy.setFailTimeout(FAIL_TIMEOUT);
+		return strategy;
+	}
+
+	private TimeoutProtectionFilter createFilter(TimeoutProtectionStrategy strategy) {
+		TimeoutProtectionFilter filter = new TimeoutProtectionFilter();
+		filter.setProtector(strategy);
+		filter.setAsyncPolls(false);
+		return filter;
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		((DisposableBean) this.underThresholdStrategy).destroy();
+		((DisposableBean) this.overThresholdStrategy).destroy();
+	}
+
+	@Benchmark
+	public void passThrough() throws Exception {
+		this.underThresholdFilter.doFilter(this.request, this.response, this.chain);
+	}
+
+	@Benchmark
+	public void protectedUnderThreshold() throws Exception {
+		this.initialRequest.setValue(nextUid());
+		this.underThresholdFilter.doFilter(this.initialRequest, this.response, this.chain);
+	}
+
+	@Benchmark
+	public void protectedOverThreshold() throws Exception {
+		String uid = nextUid();
+		this.initialRequest.setValue(uid);
+		this.overThresholdFilter.doFilter(this.initialRequest, this.response, this.chain);
+		this.pollRequest.setValue(uid);
+		this.overThresholdFilter.doFilter(this.pollRequest, this.response, this.chain);
+	}
+
+	private String nextUid() {
+		return Long.toString(this.uid++);
+	}
+
+	/**
+	 * {@link FilterChain} that writes the body to the output stream.
+	 */
+	private static class StreamFilterChain implements FilterChain {
+
+		public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+			response.setContentType("application/octet-stream");
+			response.getOutputStream().write(BODY);
+		}
+	}
+
+	/**
+	 * {@link FilterChain} that writes the body to the writer in the same way as a template engine, using many small
+	 * fragments and obtaining the writer for each row.
+	 */
+	private static class WriterFilterChain implements FilterChain {
+
+		public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+			response.setContentType("text/html");
+			PrintWriter writer = response.getWriter();
+			writer.println("<html>");
+			writer.println("<body>");
+			writer.println("<table>");
+			for (int row = 0; row < TEMPLATE_ROWS; row++) {
+				writer = response.getWriter();
+				writer.print("<tr><td>");
+				writer.print(row);
+				writer.print("</td><td>");
+				writer.print("value");
+				writer.println("</td></tr>");
+			}
+			writer.println("</table>");
+			writer.println("</body>");
+			writer.print("</html>");
+		}
+	}
+}
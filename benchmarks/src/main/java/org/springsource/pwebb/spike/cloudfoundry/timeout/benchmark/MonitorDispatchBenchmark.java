@@ -0,0 +1,89 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.DuplicatingHttpServletResponseMonitorFactory;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitor;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitorFactory;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitor;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitorFactory;
+
+/**
+ * Benchmarks the cost of a single call dispatched through a {@link HttpServletResponseMonitor}. The
+ * {@link BridgedDuplicatingHttpServletResponseMonitorFactory bridged} case is the {@link java.lang.reflect.Proxy}
+ * based implementation used before monitors dispatched directly, giving the before and after cost of each
+ * <tt>write(byte[], int, int)</tt> and header call for the {@link DuplicatingHttpServletResponseMonitorFactory
+ * duplicating} and {@link ReplayableHttpServletResponseMonitorFactory replayable} monitors. Each invocation creates a
+ * monitor and makes {@link #CALLS} calls, results are reported per call.
+ * 
+ * @author Phillip Webb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(MonitorDispatchBenchmark.CALLS)
+public class MonitorDispatchBenchmark {
+
+	static final int CALLS = 64;
+
+	private static final int WRITE_SIZE = 64;
+
+	@Param({ "bridged", "duplicating", "replayable" })
+	private String factoryName;
+
+	private HttpServletResponseMonitorFactory<?> factory;
+
+	private byte[] bytes = new byte[WRITE_SIZE];
+
+	@Setup
+	public void setup() {
+		DiscardingHttpServletResponse response = new DiscardingHttpServletResponse();
+		if ("bridged".equals(this.factoryName)) {
+			this.factory = new BridgedDuplicatingHttpServletResponseMonitorFactory(response);
+		} else if ("duplicating".equals(this.factoryName)) {
+			this.factory = new DuplicatingHttpServletResponseMonitorFactory(response);
+		} else {
+			this.factory = new ReplayableHttpServletResponseMonitorFactory();
+		}
+	}
+
+	@Benchmark
+	public void write() throws IOException {
+		HttpServletResponseMonitor monitor = this.factory.getMonitor();
+		for (int i = 0; i < CALLS; i++) {
+			monitor.write(this.bytes, 0, WRITE_SIZE);
+		}
+		release(monitor);
+	}
+
+	@Benchmark
+	public void setHeader() {
+		HttpServletResponseMonitor monitor = this.factory.getMonitor();
+		for (int i = 0; i < CALLS; i++) {
+			monitor.setHeader("Cache-Control", "no-cache");
+		}
+		release(monitor);
+	}
+
+	private void release(HttpServletResponseMonitor monitor) {
+		if (monitor instanceof ReplayableHttpServletResponseMonitor) {
+			((ReplayableHttpServletResponseMonitor) monitor).getReplayableResponse().release();
+		}
+	}
+}
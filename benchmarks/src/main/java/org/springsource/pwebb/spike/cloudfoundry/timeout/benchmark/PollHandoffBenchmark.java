@@ -0,0 +1,116 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.HotSwappingTimeoutProtectionStrategy;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionHttpHeader;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionHttpRequest;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitorFactory;
+
+/**
+ * Benchmarks the latency of handing a request over to a poll with {@link HotSwappingTimeoutProtectionStrategy}. A
+ * request thread and a poll thread run in lockstep, each using the same sequence of uids, so every request blocks
+ * until its poll arrives and every poll blocks until its request finishes.
+ * 
+ * @author Phillip Webb
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PollHandoffBenchmark {
+
+	private HotSwappingTimeoutProtectionStrategy strategy;
+
+	@Setup
+	public void setup() {
+		this.strategy = new HotSwappingTimeoutProtectionStrategy();
+		this.strategy.setThreshold(0);
+		// Short timeouts release the partner thread left waiting at the end of an iteration
+		this.strategy.setLongPollTime(500);
+		this.strategy.setFailTimeout(500);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		this.strategy.destroy();
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public void request(RequestState state) throws Exception {
+		TimeoutProtectionHttpRequest request = state.next();
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(request);
+		try {
+			monitorFactory.getMonitor().setStatus(200);
+		} catch (IllegalStateException e) {
+			// The poll thread stopped at the end of the iteration
+		}
+		this.strategy.afterRequest(request, monitorFactory);
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public void poll(PollState state) throws Exception {
+		this.strategy.handlePoll(state.next(), state.response);
+	}
+
+	/**
+	 * Per-thread uid sequence.
+	 */
+	@State(Scope.Thread)
+	public static abstract class UidState {
+
+		private final BenchmarkHttpServletRequest request;
+
+		private long uid;
+
+		protected UidState(String header) {
+			this.request = new BenchmarkHttpServletRequest(header);
+		}
+
+		public TimeoutProtectionHttpRequest next() {
+			this.request.setValue(Long.toString(this.uid++));
+			return TimeoutProtectionHttpRequest.get(this.request);
+		}
+	}
+
+	/**
+	 * State for the request thread.
+	 */
+	public static class RequestState extends UidState {
+
+		public RequestState() {
+			super(TimeoutProtectionHttpHeader.INITIAL_REQUEST);
+		}
+	}
+
+	/**
+	 * State for the poll thread.
+	 */
+	public static class PollState extends UidState {
+
+		private final DiscardingHttpServletResponse response = new DiscardingHttpServletResponse();
+
+		public PollState() {
+			super(TimeoutProtectionHttpHeader.POLL);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ChunkPool;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitor;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitorFactory;
+
+/**
+ * Benchmarks recording responses of various body sizes (with and without a {@link ChunkPool}),
+ * {@link ReplayableHttpServletResponse#replay replaying} them, and the {@link ReplayableHttpServletResponse#writeTo
+ * write}/{@link ReplayableHttpServletResponseMonitorFactory#readFrom read} round-trip used to move recorded responses
+ * between instances. The 50 MB case is the one where spilling to disk and chunk pooling matter, run the suite using
+ * {@link BenchmarkRunner} so that the GC profiler reports the allocation per operation of each size.
+ * 
+ * @author Phillip Webb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class ReplayBenchmark {
+
+	private static final int WRITE_SIZE = 8192;
+
+	@Param({ "0", "1024", "65536", "1048576", "52428800" })
+	private int size;
+
+	private ReplayableHttpServletResponseMonitorFactory factory = new ReplayableHttpServletResponseMonitorFactory();
+
+	private ReplayableHttpServletResponseMonitorFactory pooledFactory = new ReplayableHttpServletResponseMonitorFactory();
+
+	private byte[] bytes = new byte[WRITE_SIZE];
+
+	private ReplayableHttpServletResponse replayableResponse;
+
+	private DiscardingHttpServletResponse response = new DiscardingHttpServletResponse();
+
+	private ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+	@Setup
+	public void setup() throws Exception {
+		int maxPooledChunks = ReplayableHttpServletResponseMonitorFactory.DEFAULT_MAX_IN_MEMORY_SIZE
+				/ ChunkPool.DEFAULT_CHUNK_SIZE;
+		this.pooledFactory.setChunkPool(new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, maxPooledChunks));
+		this.replayableResponse = record(this.factory);
+	}
+
+	private ReplayableHttpServletResponse record(ReplayableHttpServletResponseMonitorFactory factory)
+			throws IOException {
+		ReplayableHttpServletResponseMonitor monitor = factory.getMonitor();
+		monitor.setStatus(200);
+		monitor.setContentType("application/octet-stream");
+		monitor.setHeader("Cache-Control", "no-cache");
+		monitor.addCookie(new Cookie("session", "value"));
+		for (int remaining = this.size; remaining > 0; remaining -= WRITE_SIZE) {
+			monitor.write(this.bytes, 0, Math.min(remaining, WRITE_SIZE));
+		}
+		return monitor.getReplayableResponse();
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.replayableResponse.release();
+	}
+
+	@Benchmark
+	public void record() throws Exception {
+		record(this.factory).release();
+	}
+
+	@Benchmark
+	public void recordPooled() throws Exception {
+		record(this.pooledFactory).release();
+	}
+
+	@Benchmark
+	public void replay() throws Exception {
+		this.replayableResponse.replay(this.response);
+	}
+
+	@Benchmark
+	public void roundTrip() throws Exception {
+		this.outputStream.reset();
+		this.replayableResponse.writeTo(this.outputStream);
+		ReplayableHttpServletResponse read = this.factory.readFrom(new ByteArrayInputStream(
+				this.outputStream.toByteArray()));
+		read.release();
+	}
+}
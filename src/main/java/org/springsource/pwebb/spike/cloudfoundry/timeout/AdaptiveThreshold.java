@@ -0,0 +1,325 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.util.Assert;
+
+/**
+ * Adapts the threshold of a {@link TimeoutProtectionStrategy} for each route based on the latencies observed for
+ * recent requests. A rolling window of latencies is kept for each route and, once enough samples have been seen, the
+ * route is classified as:
+ * <ul>
+ * <li>{@link Protection#IMMEDIATE} - when even the {@link #setSlowPercentile(double) slow percentile} latency has
+ * reached the configured threshold, the route is protected from time zero rather than waiting for the threshold.</li>
+ * <li>{@link Protection#NONE} - when every latency in the window is below the {@link #setFastLatency(long) fast
+ * latency}, the route is not monitored at all.</li>
+ * <li>{@link Protection#DEFAULT} - otherwise, the configured threshold is used.</li>
+ * </ul>
+ * An unmonitored route is reclassified as soon as it records a latency that is not fast. The learned state of each
+ * route can be inspected using {@link #getRoutes()}. Routes are identified by the request path; subclasses can
+ * override {@link #getRoute(HttpServletRequest)} to group paths (for example by removing ids). At most
+ * {@link #setMaxRoutes(int) max routes} are tracked, requests for any further route use the configured threshold.
+ * 
+ * @author Phillip Webb
+ */
+public class AdaptiveThreshold {
+
+	/**
+	 * The number of samples recorded between each reclassification of a route.
+	 */
+	private static final int CLASSIFY_INTERVAL = 10;
+
+	private int windowSize = 100;
+
+	private int minSamples = 20;
+
+	private double slowPercentile = 10.0;
+
+	private long fastLatency = 200;
+
+	private int maxRoutes = 1000;
+
+	private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+
+	/**
+	 * Returns the threshold that should be used for the given request.
+	 * @param request the request
+	 * @param threshold the configured threshold in milliseconds
+	 * @return the threshold in milliseconds, <tt>0</tt> if the request should be protected immediately or
+	 * {@link Long#MAX_VALUE} if the request should not be monitored
+	 */
+	public long getThreshold(TimeoutProtectionHttpRequest request, long threshold) {
+		Route route = findRoute(request, false);
+		if (route == null) {
+			return threshold;
+		}
+		switch (route.getProtection()) {
+		case IMMEDIATE:
+			return 0;
+		case NONE:
+			return Long.MAX_VALUE;
+		default:
+			return threshold;
+		}
+	}
+
+	/**
+	 * Record the latency of a completed request.
+	 * @param request the request
+	 * @param latency the latency in milliseconds
+	 * @param threshold the configured threshold in milliseconds
+	 */
+	public void record(TimeoutProtectionHttpRequest request, long latency, long threshold) {
+		Route route = findRoute(request, true);
+		if (route != null) {
+			route.record(latency, threshold);
+		}
+	}
+
+	private Route findRoute(TimeoutProtectionHttpRequest request, boolean create) {
+		HttpServletRequest servletRequest = request.getServletRequest();
+		String name = (servletRequest == null ? null : getRoute(servletRequest));
+		if (name == null) {
+			return null;
+		}
+		Route route = this.routes.get(name);
+		if (route == null && create && this.routes.size() < this.maxRoutes) {
+			route = new Route();
+			Route existing = this.routes.putIfAbsent(name, route);
+			route = (existing == null ? route : existing);
+		}
+		return route;
+	}
+
+	/**
+	 * Returns the route used to group latencies for the given request. By default the request URI without the context
+	 * path is used.
+	 * @param request the request
+	 * @return the route or <tt>null</tt> if the request should not be tracked
+	 */
+	protected String getRoute(HttpServletRequest request) {
+		String uri = request.getRequestURI();
+		String contextPath = request.getContextPath();
+		if (uri != null && contextPath != null && uri.startsWith(contextPath)) {
+			uri = uri.substring(contextPath.length());
+		}
+		return uri;
+	}
+
+	/**
+	 * Returns a snapshot of the learned state of each route, ordered by route.
+	 * @return the route statistics keyed by route
+	 */
+	public Map<String, RouteStatistics> getRoutes() {
+		Map<String, RouteStatistics> statistics = new TreeMap<String, RouteStatistics>();
+		for (Map.Entry<String, Route> entry : this.routes.entrySet()) {
+			statistics.put(entry.getKey(), entry.getValue().getStatistics());
+		}
+		return Collections.unmodifiableMap(statistics);
+	}
+
+	/**
+	 * Forget all learned routes.
+	 */
+	public void reset() {
+		this.routes.clear();
+	}
+
+	/**
+	 * Set the number of recent latencies kept for each route. Defaults to 100.
+	 * @param windowSize the window size
+	 */
+	public void setWindowSize(int windowSize) {
+		Assert.isTrue(windowSize > 0, "WindowSize must be positive");
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Set the minimum number of samples that must be recorded before a route is classified. Defaults to 20.
+	 * @param minSamples the minimum number of samples
+	 */
+	public void setMinSamples(int minSamples) {
+		Assert.isTrue(minSamples > 0, "MinSamples must be positive");
+		this.minSamples = minSamples;
+	}
+
+	/**
+	 * Set the percentile latency that must reach the threshold for a route to be protected immediately. Defaults to
+	 * <tt>10.0</tt>, meaning that 90% of recent requests must have exceeded the threshold.
+	 * @param slowPercentile the slow percentile
+	 */
+	public void setSlowPercentile(double slowPercentile) {
+		Assert.isTrue(slowPercentile >= 0 && slowPercentile <= 100, "SlowPercentile must be between 0 and 100");
+		this.slowPercentile = slowPercentile;
+	}
+
+	/**
+	 * Set the latency below which every recent request must have completed for a route not to be monitored. Defaults
+	 * to 200 milliseconds.
+	 * @param fastLatency the fast latency in milliseconds
+	 */
+	public void setFastLatency(long fastLatency) {
+		Assert.isTrue(fastLatency >= 0, "FastLatency must not be negative");
+		this.fastLatency = fastLatency;
+	}
+
+	/**
+	 * Set the maximum number of routes that will be tracked. Defaults to 1000.
+	 * @param maxRoutes the maximum number of routes
+	 */
+	public void setMaxRoutes(int maxRoutes) {
+		Assert.isTrue(maxRoutes >= 0, "MaxRoutes must not be negative");
+		this.maxRoutes = maxRoutes;
+	}
+
+	/**
+	 * The protection applied to a route.
+	 */
+	public static enum Protection {
+
+		/**
+		 * The configured threshold is used.
+		 */
+		DEFAULT,
+
+		/**
+		 * The route is protected from time zero.
+		 */
+		IMMEDIATE,
+
+		/**
+		 * The route is not monitored.
+		 */
+		NONE
+	}
+
+	/**
+	 * A snapshot of the learned state of a single route.
+	 */
+	public static class RouteStatistics {
+
+		private final int sampleCount;
+
+		private final long median;
+
+		private final long max;
+
+		private final Protection protection;
+
+		public RouteStatistics(int sampleCount, long median, long max, Protection protection) {
+			this.sampleCount = sampleCount;
+			this.median = median;
+			this.max = max;
+			this.protection = protection;
+		}
+
+		/**
+		 * Returns the number of latencies currently in the window.
+		 * @return the sample count
+		 */
+		public int getSampleCount() {
+			return this.sampleCount;
+		}
+
+		/**
+		 * Returns the median latency in the window.
+		 * @return the median latency in milliseconds
+		 */
+		public long getMedian() {
+			return this.median;
+		}
+
+		/**
+		 * Returns the maximum latency in the window.
+		 * @return the maximum latency in milliseconds
+		 */
+		public long getMax() {
+			return this.max;
+		}
+
+		/**
+		 * Returns the protection currently applied to the route.
+		 * @return the protection
+		 */
+		public Protection getProtection() {
+			return this.protection;
+		}
+
+		@Override
+		public String toString() {
+			return this.protection + " (samples=" + this.sampleCount + ", median=" + this.median + "ms, max="
+					+ this.max + "ms)";
+		}
+	}
+
+	/**
+	 * The rolling latency window of a single route. The window is a ring buffer guarded by the route, the
+	 * classification is read without locking.
+	 */
+	private class Route {
+
+		private final long[] samples = new long[AdaptiveThreshold.this.windowSize];
+
+		private int count;
+
+		private int next;
+
+		private long recorded;
+
+		private volatile Protection protection = Protection.DEFAULT;
+
+		public Protection getProtection() {
+			return this.protection;
+		}
+
+		public synchronized void record(long latency, long threshold) {
+			this.samples[this.next] = latency;
+			this.next = (this.next + 1) % this.samples.length;
+			this.count = Math.min(this.count + 1, this.samples.length);
+			this.recorded++;
+			boolean notFast = (this.protection == Protection.NONE && latency >= AdaptiveThreshold.this.fastLatency);
+			if (notFast || this.recorded % CLASSIFY_INTERVAL == 0) {
+				this.protection = classify(sortedSamples(), threshold);
+			}
+		}
+
+		private Protection classify(long[] sorted, long threshold) {
+			if (sorted.length < AdaptiveThreshold.this.minSamples) {
+				return Protection.DEFAULT;
+			}
+			if (sorted[sorted.length - 1] < AdaptiveThreshold.this.fastLatency) {
+				return Protection.NONE;
+			}
+			if (percentile(sorted, AdaptiveThreshold.this.slowPercentile) >= threshold) {
+				return Protection.IMMEDIATE;
+			}
+			return Protection.DEFAULT;
+		}
+
+		public synchronized RouteStatistics getStatistics() {
+			long[] sorted = sortedSamples();
+			long median = (sorted.length == 0 ? 0 : percentile(sorted, 50.0));
+			long max = (sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+			return new RouteStatistics(sorted.length, median, max, this.protection);
+		}
+
+		private long[] sortedSamples() {
+			long[] sorted = new long[this.count];
+			System.arraycopy(this.samples, 0, sorted, 0, this.count);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		private long percentile(long[] sorted, double percentile) {
+			int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+			return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A poll request that has been suspended so that it can be completed at a later time without holding a container
+ * thread. Used by {@link AsyncTimeoutProtectionStrategy} implementations.
+ * 
+ * @author Phillip Webb
+ * @see ServletAsyncPoll
+ */
+public interface AsyncPoll {
+
+	/**
+	 * Returns the poll response.
+	 * @return the poll response
+	 */
+	HttpServletResponse getResponse();
+
+	/**
+	 * Run the specified action using a container thread. Used to resume the poll once the event that it is waiting on
+	 * has occurred.
+	 * @param action the action to run
+	 */
+	void dispatch(Runnable action);
+
+	/**
+	 * Complete the poll, committing the response. Calling this method more than once has no effect.
+	 */
+	void complete();
+
+}
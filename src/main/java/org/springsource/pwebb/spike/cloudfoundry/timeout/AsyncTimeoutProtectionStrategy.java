@@ -0,0 +1,23 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import java.io.IOException;
+
+/**
+ * Extension of {@link TimeoutProtectionStrategy} that is able to handle poll requests asynchronously. When supported
+ * by the container the {@link TimeoutProtectionFilter} will use {@link #handleAsyncPoll} in preference to
+ * {@link #handlePoll}, allowing a waiting poll to be parked without consuming a thread.
+ * 
+ * @author Phillip Webb
+ */
+public interface AsyncTimeoutProtectionStrategy extends TimeoutProtectionStrategy {
+
+	/**
+	 * Handle a poll request from the client asynchronously. Implementations must ensure that the poll is eventually
+	 * {@link AsyncPoll#complete() completed}.
+	 * @param request the poll request
+	 * @param poll the suspended poll
+	 * @throws IOException
+	 */
+	void handleAsyncPoll(TimeoutProtectionHttpRequest request, AsyncPoll poll) throws IOException;
+
+}
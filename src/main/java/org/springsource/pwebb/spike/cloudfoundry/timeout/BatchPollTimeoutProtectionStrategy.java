@@ -0,0 +1,29 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Extension of {@link TimeoutProtectionStrategy} that is able to handle a single poll request for a number of
+ * outstanding requests. This allows a client with many timed out requests to use a single long poll connection rather
+ * than one per request. When the strategy does not support batch polls the {@link TimeoutProtectionFilter} answers
+ * them with <tt>501 Not Implemented</tt> and the client falls back to polling for each request.
+ * 
+ * @author Phillip Webb
+ * @see TimeoutProtectionHttpHeader#BATCH_POLL
+ */
+public interface BatchPollTimeoutProtectionStrategy extends TimeoutProtectionStrategy {
+
+	/**
+	 * Handle a batch poll request from the client. The response for whichever of the
+	 * {@link TimeoutProtectionHttpRequest#getUids() requests} becomes available first should be written along with
+	 * the {@link TimeoutProtectionHttpHeader#POLL} header identifying it. If no response becomes available the client
+	 * should be asked to poll again using <tt>204 No Content</tt>.
+	 * @param request the batch poll request
+	 * @param response the poll response
+	 * @throws IOException
+	 */
+	void handleBatchPoll(TimeoutProtectionHttpRequest request, HttpServletResponse response) throws IOException;
+
+}
@@ -0,0 +1,140 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Background reaper used to expire entries once a deadline has passed. Scheduled expiries are held in deadline order
+ * so that the cost of expiry is amortised and never requires a scan of outstanding entries. The reaper thread is
+ * started lazily when the first expiry is {@link #schedule(long, Runnable) scheduled}. Once the reaper has been
+ * {@link #destroy() destroyed} any outstanding expiries are discarded and further expiries are ignored.
+ *
+ * @author Phillip Webb
+ */
+public class ExpiryReaper implements DisposableBean {
+
+	private static final Log logger = LogFactory.getLog(ExpiryReaper.class);
+
+	private final String name;
+
+	private final DelayQueue<Expiry> expiries = new DelayQueue<Expiry>();
+
+	private volatile Thread thread;
+
+	private volatile boolean destroyed;
+
+	/**
+	 * Create a new {@link ExpiryReaper} instance.
+	 * @param name the name of the reaper thread
+	 */
+	public ExpiryReaper(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Schedule an expiry action. Actions scheduled after the reaper has been destroyed are ignored.
+	 * @param deadline the time (in milliseconds since the epoch) after which the action should run
+	 * @param action the action to run
+	 */
+	public void schedule(long deadline, Runnable action) {
+		if (this.destroyed) {
+			return;
+		}
+		Expiry expiry = new Expiry(deadline, action);
+		this.expiries.add(expiry);
+		if (this.destroyed) {
+			this.expiries.remove(expiry);
+			return;
+		}
+		if (this.thread == null) {
+			start();
+		}
+	}
+
+	/**
+	 * Run any expiry actions that have passed their deadline on the calling thread.
+	 */
+	public void expire() {
+		Expiry expiry = this.expiries.poll();
+		while (expiry != null) {
+			expiry.run();
+			expiry = this.expiries.poll();
+		}
+	}
+
+	/**
+	 * Returns the number of expiries that are currently scheduled.
+	 * @return the number of scheduled expiries
+	 */
+	public int size() {
+		return this.expiries.size();
+	}
+
+	private synchronized void start() {
+		if (this.thread == null && !this.destroyed) {
+			Thread thread = new Thread(this.name) {
+				@Override
+				public void run() {
+					reap();
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+			this.thread = thread;
+		}
+	}
+
+	private void reap() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				this.expiries.take().run();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				logger.error("Unable to run expiry", e);
+			}
+		}
+	}
+
+	public synchronized void destroy() {
+		this.destroyed = true;
+		if (this.thread != null) {
+			this.thread.interrupt();
+			this.thread = null;
+		}
+		this.expiries.clear();
+	}
+
+	/**
+	 * A single scheduled expiry.
+	 */
+	private static class Expiry implements Delayed {
+
+		private final long deadline;
+
+		private final Runnable action;
+
+		public Expiry(long deadline, Runnable action) {
+			this.deadline = deadline;
+			this.action = action;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(this.deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			long otherDeadline = ((Expiry) other).deadline;
+			return (this.deadline < otherDeadline ? -1 : (this.deadline == otherDeadline ? 0 : 1));
+		}
+
+		public void run() {
+			this.action.run();
+		}
+	}
+}
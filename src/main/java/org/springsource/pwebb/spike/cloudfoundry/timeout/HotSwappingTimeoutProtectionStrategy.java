@@ -1,18 +1,28 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.http.HttpStatus;
 import org.springframework.util.Assert;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Counter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Gauge;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Timer;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.DuplicatingHttpServletResponseMonitorFactory;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitor;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitorFactory;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.MemoryBudget;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitor;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitorFactory;
 
 /**
  * {@link TimeoutProtectionStrategy} that works by hot-swapping the original request with the subsequent poll request.
@@ -23,10 +33,20 @@ import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResp
  * {@link #setFailTimeout(long)} method should be used to the timeout that will protect against requests that never
  * receive a poll (for example due to network failure). The {@link #setLongPollTime(long)} method can be used to set the
  * long-poll time for the poll request. This value should obviously be less than the gateway timeout.
+ * <p>
+ * If {@link #setNonBlocking(boolean) non-blocking} mode is enabled the original response will not block when no poll
+ * is available. Instead the response is recorded to a replay buffer (held in memory up to
+ * {@link #setMaxBufferSize(int) max buffer size} before spilling to disk) and the buffered content is drained to the
+ * poll response when it arrives, after which any subsequent output is written directly to the poll. Recordings that
+ * never receive a poll are discarded once the {@link #setFailTimeout(long) fail timeout} has passed.
+ * <p>
+ * {@link #handleAsyncPoll(TimeoutProtectionHttpRequest, AsyncPoll) Async polls} are held by the
+ * {@link RequestCoordinator} and completed when the request finishes, or when the long poll time expires without the
+ * poll response being consumed.
  * 
  * @author Phillip Webb
  */
-public class HotSwappingTimeoutProtectionStrategy implements TimeoutProtectionStrategy {
+public class HotSwappingTimeoutProtectionStrategy implements AsyncTimeoutProtectionStrategy, DisposableBean {
 
 	private long threshold = TimeUnit.SECONDS.toMillis(14);
 
@@ -34,72 +54,231 @@ public class HotSwappingTimeoutProtectionStrategy implements TimeoutProtectionSt
 
 	private long failTimeout = TimeUnit.SECONDS.toMillis(30);
 
+	private boolean nonBlocking;
+
+	private int maxBufferSize = ReplayableHttpServletResponseMonitorFactory.DEFAULT_MAX_IN_MEMORY_SIZE;
+
+	private MemoryBudget memoryBudget;
+
+	private TimeoutProtectionMetrics metrics = TimeoutProtectionMetrics.NONE;
+
+	private AdaptiveThreshold adaptiveThreshold;
+
 	private RequestCoordinators requestCoordinators = new RequestCoordinators();
 
+	private final ExpiryReaper reaper = new ExpiryReaper("hot-swapping-timeout-protection-reaper");
+
 	public HttpServletResponseMonitorFactory handleRequest(final TimeoutProtectionHttpRequest request) {
-		final long startTime = System.currentTimeMillis();
-		return new HttpServletResponseMonitorFactory<HttpServletResponseMonitor>() {
-			public HttpServletResponseMonitor getMonitor() {
-				if ((HotSwappingTimeoutProtectionStrategy.this.threshold != 0)
-						&& (System.currentTimeMillis() - startTime < HotSwappingTimeoutProtectionStrategy.this.threshold)) {
-					return null;
-				}
-				RequestCoordinator requestCoordinator = HotSwappingTimeoutProtectionStrategy.this.requestCoordinators
-						.get(request);
-				HttpServletResponse pollResponse;
-				synchronized (requestCoordinator) {
-					pollResponse = requestCoordinator.consumePollResponse();
-				}
-				if (pollResponse == null) {
-					try {
-						requestCoordinator.awaitPollResponse(HotSwappingTimeoutProtectionStrategy.this.failTimeout);
-					} catch (InterruptedException e) {
-						throw new IllegalStateException("Timeout waiting for poll", e);
-					}
-					pollResponse = requestCoordinator.consumePollResponse();
-					Assert.state(pollResponse != null, "Unable to consume poll response");
-				}
-				return new DuplicatingHttpServletResponseMonitorFactory(pollResponse).getMonitor();
-			}
-		};
+		long threshold = this.threshold;
+		if (this.adaptiveThreshold != null) {
+			threshold = this.adaptiveThreshold.getThreshold(request, threshold);
+		}
+		return new MonitorFactory(request, threshold);
+	}
+
+	private HttpServletResponseMonitor record(RequestCoordinator requestCoordinator, boolean detached) {
+		if (!detached && this.memoryBudget != null && !this.memoryBudget.tryProtect()) {
+			return null;
+		}
+		ReplayableHttpServletResponseMonitorFactory monitorFactory = new ReplayableHttpServletResponseMonitorFactory();
+		monitorFactory.setMaxInMemorySize(this.maxBufferSize);
+		monitorFactory.setMemoryBudget(this.memoryBudget);
+		ReplayableHttpServletResponseMonitor monitor = monitorFactory.getMonitor();
+		requestCoordinator.setRecording(monitor.getReplayableResponse());
+		this.metrics.adjust(Gauge.PENDING_RESPONSES, 1);
+		return monitor;
 	}
 
 	public void afterRequest(TimeoutProtectionHttpRequest request, HttpServletResponseMonitorFactory monitorFactory) {
-		RequestCoordinator requestCoordinator = this.requestCoordinators.get(request);
+		if (this.adaptiveThreshold != null && monitorFactory instanceof MonitorFactory) {
+			long latency = System.currentTimeMillis() - ((MonitorFactory) monitorFactory).getStartTime();
+			this.adaptiveThreshold.record(request, latency, this.threshold);
+		}
+		RequestCoordinator requestCoordinator = this.requestCoordinators.find(request);
+		if (requestCoordinator == null) {
+			// The request finished under the threshold and no poll has arrived
+			return;
+		}
 		requestCoordinator.finish();
-		synchronized (requestCoordinator) {
-			if (!requestCoordinator.isPollResponseConsumed()) {
+		if (!requestCoordinator.isPollResponseConsumed()) {
+			if (requestCoordinator.hasRecording()) {
+				scheduleExpiry(request, requestCoordinator);
+			} else {
 				this.requestCoordinators.delete(request);
 			}
+			return;
+		}
+		AsyncPoll asyncPoll = requestCoordinator.takeAsyncPoll();
+		if (asyncPoll != null) {
+			this.requestCoordinators.delete(request);
+			asyncPoll.complete();
 		}
 	}
 
+	private void scheduleExpiry(final TimeoutProtectionHttpRequest request,
+			final RequestCoordinator requestCoordinator) {
+		this.reaper.schedule(System.currentTimeMillis() + this.failTimeout, new Runnable() {
+			public void run() {
+				if (requestCoordinator.discardRecording()) {
+					HotSwappingTimeoutProtectionStrategy.this.metrics.adjust(Gauge.PENDING_RESPONSES, -1);
+					HotSwappingTimeoutProtectionStrategy.this.metrics.increment(Counter.EXPIRED_RESPONSES);
+					HotSwappingTimeoutProtectionStrategy.this.requestCoordinators.delete(request);
+				}
+			}
+		});
+	}
+
 	public void handlePoll(TimeoutProtectionHttpRequest request, HttpServletResponse response) throws IOException {
 		RequestCoordinator requestCoordinator = this.requestCoordinators.get(request);
-		synchronized (requestCoordinator) {
-			requestCoordinator.setPollResponse(response);
+		ReplayableHttpServletResponse recording = requestCoordinator.consumeRecording();
+		if (recording != null) {
+			drainRecording(request, requestCoordinator, recording, response);
+			return;
+		}
+		requestCoordinator.setPollResponse(response);
+		// A non-blocking request that passed the threshold before the poll response was set will have recorded
+		recording = requestCoordinator.consumeRecording();
+		if (recording != null && requestCoordinator.clearPollResponse()) {
+			drainRecording(request, requestCoordinator, recording, response);
+			return;
 		}
 		try {
 			requestCoordinator.awaitPollReponseConsumed(this.longPollTime);
 		} catch (InterruptedException e) {
 		}
-		synchronized (requestCoordinator) {
-			if (requestCoordinator.isPollResponseConsumed()) {
+		if (requestCoordinator.clearPollResponse()) {
+			this.metrics.increment(Counter.EMPTY_POLLS);
+			response.setHeader(TimeoutProtectionHttpHeader.POLL, request.getUid());
+			response.setStatus(HttpStatus.NO_CONTENT.value());
+			return;
+		}
+		try {
+			requestCoordinator.awaitFinish(this.failTimeout);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Timeout waiting for cleanup");
+		} finally {
+			this.requestCoordinators.delete(request);
+		}
+	}
+
+	private void drainRecording(TimeoutProtectionHttpRequest request, RequestCoordinator requestCoordinator,
+			ReplayableHttpServletResponse recording, HttpServletResponse response) throws IOException {
+		try {
+			attach(requestCoordinator, recording, response);
+			requestCoordinator.awaitFinish(this.failTimeout);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Timeout waiting for cleanup");
+		} finally {
+			this.requestCoordinators.delete(request);
+		}
+	}
+
+	public void handleAsyncPoll(final TimeoutProtectionHttpRequest request, final AsyncPoll poll) throws IOException {
+		final RequestCoordinator requestCoordinator = this.requestCoordinators.get(request);
+		HttpServletResponse response = poll.getResponse();
+		ReplayableHttpServletResponse recording = requestCoordinator.consumeRecording();
+		if (recording != null) {
+			try {
+				attach(requestCoordinator, recording, response);
+			} finally {
+				holdConsumedAsyncPoll(request, requestCoordinator, poll);
+			}
+			return;
+		}
+		requestCoordinator.setAsyncPoll(poll);
+		requestCoordinator.setPollResponse(response);
+		// A non-blocking request that passed the threshold before the poll response was set will have recorded, the
+		// poll is reclaimed first so that the request thread cannot complete it while the recording is attached
+		if (requestCoordinator.hasRecording() && requestCoordinator.takeAsyncPoll(poll)) {
+			recording = requestCoordinator.consumeRecording();
+			if (recording != null && requestCoordinator.clearPollResponse()) {
 				try {
-					requestCoordinator.awaitFinish(this.failTimeout);
-				} catch (InterruptedException e) {
-					throw new IllegalStateException("Timeout waiting for cleanup");
+					attach(requestCoordinator, recording, response);
 				} finally {
-					this.requestCoordinators.delete(request);
+					holdConsumedAsyncPoll(request, requestCoordinator, poll);
 				}
-			} else {
-				requestCoordinator.clearPollResponse();
-				response.setHeader(TimeoutProtectionHttpHeader.POLL, request.getUid());
-				response.setStatus(HttpStatus.NO_CONTENT.value());
+				return;
+			}
+			requestCoordinator.setAsyncPoll(poll);
+		}
+		this.reaper.schedule(System.currentTimeMillis() + this.longPollTime, new Runnable() {
+			public void run() {
+				expireAsyncPoll(request, requestCoordinator, poll);
+			}
+		});
+	}
+
+	/**
+	 * Attach a consumed recording to the poll response, draining any buffered content.
+	 * @param requestCoordinator the request coordinator
+	 * @param recording the recording
+	 * @param response the poll response
+	 * @throws IOException
+	 */
+	private void attach(RequestCoordinator requestCoordinator, ReplayableHttpServletResponse recording,
+			HttpServletResponse response) throws IOException {
+		long startTime = System.nanoTime();
+		this.metrics.adjust(Gauge.PENDING_RESPONSES, -1);
+		this.metrics.record(Timer.TIME_TO_POLL, startTime - requestCoordinator.getRecordingTime());
+		recording.attach(response);
+		this.metrics.record(Timer.REPLAY, System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Called when the long poll time for an async poll has passed. If the poll response has not been consumed the
+	 * client is asked to poll again, otherwise the poll is held until the request finishes.
+	 * @param request the request
+	 * @param requestCoordinator the request coordinator
+	 * @param poll the poll
+	 */
+	private void expireAsyncPoll(TimeoutProtectionHttpRequest request, RequestCoordinator requestCoordinator,
+			AsyncPoll poll) {
+		if (!requestCoordinator.takeAsyncPoll(poll)) {
+			return;
+		}
+		if (requestCoordinator.clearPollResponse()) {
+			this.metrics.increment(Counter.EMPTY_POLLS);
+			poll.getResponse().setHeader(TimeoutProtectionHttpHeader.POLL, request.getUid());
+			poll.getResponse().setStatus(HttpStatus.NO_CONTENT.value());
+			poll.complete();
+			return;
+		}
+		holdConsumedAsyncPoll(request, requestCoordinator, poll);
+	}
+
+	/**
+	 * Hold an async poll whose response has been consumed until the request finishes or the fail timeout passes.
+	 * @param request the request
+	 * @param requestCoordinator the request coordinator
+	 * @param poll the poll
+	 */
+	private void holdConsumedAsyncPoll(final TimeoutProtectionHttpRequest request,
+			final RequestCoordinator requestCoordinator, final AsyncPoll poll) {
+		// Publish the poll before checking for finish so that either this thread or the request thread completes it
+		requestCoordinator.setAsyncPoll(poll);
+		if (requestCoordinator.isFinished()) {
+			completeAsyncPoll(request, requestCoordinator, poll);
+			return;
+		}
+		this.reaper.schedule(System.currentTimeMillis() + this.failTimeout, new Runnable() {
+			public void run() {
+				completeAsyncPoll(request, requestCoordinator, poll);
 			}
+		});
+	}
+
+	private void completeAsyncPoll(TimeoutProtectionHttpRequest request, RequestCoordinator requestCoordinator,
+			AsyncPoll poll) {
+		if (requestCoordinator.takeAsyncPoll(poll)) {
+			this.requestCoordinators.delete(request);
+			poll.complete();
 		}
 	}
 
+	public void destroy() throws Exception {
+		this.reaper.destroy();
+	}
+
 	protected void setRequestCoordinators(RequestCoordinators requestCoordinators) {
 		this.requestCoordinators = requestCoordinators;
 	}
@@ -129,67 +308,276 @@ public class HotSwappingTimeoutProtectionStrategy implements TimeoutProtectionSt
 	}
 
 	/**
-	 * Maintains a map of {@link RequestCoordinator}s against {@link TimeoutProtectionHttpRequest}s.
+	 * Set if the original response should be recorded rather than blocking when no poll is available. Defaults to
+	 * <tt>false</tt>.
+	 * @param nonBlocking if the strategy should not block waiting for a poll
+	 */
+	public void setNonBlocking(boolean nonBlocking) {
+		this.nonBlocking = nonBlocking;
+	}
+
+	/**
+	 * Set the maximum number of bytes of a non-blocking recording that will be held in memory before spilling to disk.
+	 * @param maxBufferSize the max buffer size
+	 * @see #setNonBlocking(boolean)
+	 */
+	public void setMaxBufferSize(int maxBufferSize) {
+		Assert.isTrue(maxBufferSize >= 0, "MaxBufferSize must not be negative");
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	/**
+	 * Set the {@link MemoryBudget} shared by all non-blocking recordings. When the budget uses the
+	 * {@link MemoryBudget.Policy#REJECT REJECT} policy and is exhausted, requests that would be recorded are not
+	 * protected.
+	 * @param memoryBudget the memory budget
+	 * @see #setNonBlocking(boolean)
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Set an {@link AdaptiveThreshold} used to adjust the {@link #setThreshold(long) threshold} for each route based
+	 * on observed latencies. Reliably slow routes are protected from time zero and reliably fast routes are not
+	 * monitored.
+	 * @param adaptiveThreshold the adaptive threshold or <tt>null</tt> to always use the configured threshold
+	 */
+	public void setAdaptiveThreshold(AdaptiveThreshold adaptiveThreshold) {
+		this.adaptiveThreshold = adaptiveThreshold;
+	}
+
+	/**
+	 * Set the {@link TimeoutProtectionMetrics} that the strategy reports to.
+	 * @param metrics the metrics
+	 */
+	public void setMetrics(TimeoutProtectionMetrics metrics) {
+		Assert.notNull(metrics, "Metrics must not be null");
+		this.metrics = metrics;
+	}
+
+	/**
+	 * The {@link HttpServletResponseMonitorFactory} used internally.
+	 */
+	private class MonitorFactory implements HttpServletResponseMonitorFactory<HttpServletResponseMonitor> {
+
+		private final TimeoutProtectionHttpRequest request;
+
+		private final long threshold;
+
+		private final long startTime;
+
+		public MonitorFactory(TimeoutProtectionHttpRequest request, long threshold) {
+			this.request = request;
+			this.threshold = threshold;
+			this.startTime = System.currentTimeMillis();
+		}
+
+		public long getStartTime() {
+			return this.startTime;
+		}
+
+		public HttpServletResponseMonitor getMonitor() {
+			// Detached requests must always be protected since the client is already polling
+			boolean detached = this.request.isDetached();
+			long elapsed = System.currentTimeMillis() - this.startTime;
+			if (!detached && (this.threshold != 0) && (elapsed < this.threshold)) {
+				return null;
+			}
+			TimeoutProtectionMetrics metrics = HotSwappingTimeoutProtectionStrategy.this.metrics;
+			RequestCoordinator requestCoordinator = HotSwappingTimeoutProtectionStrategy.this.requestCoordinators
+					.get(this.request);
+			HttpServletResponse pollResponse = requestCoordinator.consumePollResponse();
+			if (pollResponse == null && HotSwappingTimeoutProtectionStrategy.this.nonBlocking) {
+				HttpServletResponseMonitor monitor = record(requestCoordinator, detached);
+				if (monitor != null) {
+					recordThresholdExceeded(elapsed);
+				}
+				return monitor;
+			}
+			recordThresholdExceeded(elapsed);
+			if (pollResponse == null) {
+				long waitStartTime = System.nanoTime();
+				try {
+					requestCoordinator.awaitPollResponse(HotSwappingTimeoutProtectionStrategy.this.failTimeout);
+				} catch (InterruptedException e) {
+					throw new IllegalStateException("Timeout waiting for poll", e);
+				}
+				metrics.record(Timer.HANDOFF_WAIT, System.nanoTime() - waitStartTime);
+				pollResponse = requestCoordinator.consumePollResponse();
+				Assert.state(pollResponse != null, "Unable to consume poll response");
+			}
+			return new DuplicatingHttpServletResponseMonitorFactory(pollResponse).getMonitor();
+		}
+
+		private void recordThresholdExceeded(long elapsed) {
+			TimeoutProtectionMetrics metrics = HotSwappingTimeoutProtectionStrategy.this.metrics;
+			metrics.increment(Counter.THRESHOLD_EXCEEDED);
+			metrics.record(Timer.TIME_TO_THRESHOLD, TimeUnit.MILLISECONDS.toNanos(elapsed));
+		}
+	}
+
+	/**
+	 * Maintains a map of {@link RequestCoordinator}s against {@link TimeoutProtectionHttpRequest}s. Coordinators are
+	 * only created once a request passes the threshold or a poll arrives, requests that finish quickly never touch the
+	 * map.
 	 */
 	protected static class RequestCoordinators {
 
-		private Map<String, RequestCoordinator> coordinators = new HashMap<String, RequestCoordinator>();
+		private ConcurrentMap<String, RequestCoordinator> coordinators = new ConcurrentHashMap<String, RequestCoordinator>();
 
-		public synchronized RequestCoordinator get(TimeoutProtectionHttpRequest request) {
+		/**
+		 * Get the {@link RequestCoordinator} for the given request, creating it if necessary.
+		 * @param request the request
+		 * @return the request coordinator
+		 */
+		public RequestCoordinator get(TimeoutProtectionHttpRequest request) {
 			String uid = request.getUid();
 			RequestCoordinator requestCoordinator = this.coordinators.get(uid);
 			if (requestCoordinator == null) {
 				requestCoordinator = new RequestCoordinator();
-				this.coordinators.put(uid, requestCoordinator);
+				RequestCoordinator existing = this.coordinators.putIfAbsent(uid, requestCoordinator);
+				requestCoordinator = (existing == null ? requestCoordinator : existing);
 			}
 			return requestCoordinator;
 		}
 
-		public synchronized void delete(TimeoutProtectionHttpRequest request) {
+		/**
+		 * Find an existing {@link RequestCoordinator} for the given request.
+		 * @param request the request
+		 * @return the request coordinator or <tt>null</tt>
+		 */
+		public RequestCoordinator find(TimeoutProtectionHttpRequest request) {
+			return this.coordinators.get(request.getUid());
+		}
+
+		public void delete(TimeoutProtectionHttpRequest request) {
 			this.coordinators.remove(request.getUid());
 		}
 	}
 
 	protected static enum CoordinatedEvent {
-		POLL_RESPONSE, POLL_RESPONSE_CONSUMED, FINISH
+
+		POLL_RESPONSE(1), POLL_RESPONSE_CONSUMED(2), FINISH(4);
+
+		private final int mask;
+
+		private CoordinatedEvent(int mask) {
+			this.mask = mask;
+		}
+
+		public int getMask() {
+			return this.mask;
+		}
 	};
 
 	/**
-	 * A single coordinator used to manage access to a {@link TimeoutProtectionHttpRequest}. The coordinator object
-	 * should be used as the lock for synchronized blocks to prevent concurrent updates.
+	 * A single coordinator used to manage access to a {@link TimeoutProtectionHttpRequest}. The
+	 * {@link CoordinatedEvent} lifecycle is held as a single state word, events are signaled using CAS and waiting
+	 * threads are only queued when an event has not yet occurred. The poll response, recording and async poll are
+	 * each handed between the request and poll threads using an atomic swap so that exactly one thread claims them.
 	 */
 	protected static class RequestCoordinator {
 
-		private HttpServletResponse pollResponse;
+		private static final AtomicReferenceFieldUpdater<RequestCoordinator, HttpServletResponse> POLL_RESPONSE;
 
-		private volatile boolean pollResponseConsumed;
+		private static final AtomicReferenceFieldUpdater<RequestCoordinator, ReplayableHttpServletResponse> RECORDING;
 
-		private Map<CoordinatedEvent, CountDownLatch> latches;
+		private static final AtomicReferenceFieldUpdater<RequestCoordinator, AsyncPoll> ASYNC_POLL;
 
-		public RequestCoordinator() {
-			this.latches = new HashMap<CoordinatedEvent, CountDownLatch>();
-			for (CoordinatedEvent event : CoordinatedEvent.values()) {
-				this.latches.put(event, new CountDownLatch(1));
-			}
+		static {
+			POLL_RESPONSE = AtomicReferenceFieldUpdater.newUpdater(RequestCoordinator.class, HttpServletResponse.class,
+					"pollResponse");
+			RECORDING = AtomicReferenceFieldUpdater.newUpdater(RequestCoordinator.class,
+					ReplayableHttpServletResponse.class, "recording");
+			ASYNC_POLL = AtomicReferenceFieldUpdater.newUpdater(RequestCoordinator.class, AsyncPoll.class, "asyncPoll");
 		}
 
+		private volatile HttpServletResponse pollResponse;
+
+		private volatile ReplayableHttpServletResponse recording;
+
+		private volatile AsyncPoll asyncPoll;
+
+		private volatile long recordingTime;
+
+		private final Events events = new Events();
+
 		public void setPollResponse(HttpServletResponse pollResponse) {
-			Assert.state(!this.pollResponseConsumed, "Unable to set an already consumed poll response");
+			Assert.state(!isPollResponseConsumed(), "Unable to set an already consumed poll response");
 			this.pollResponse = pollResponse;
 			signal(CoordinatedEvent.POLL_RESPONSE);
 		}
 
-		public void clearPollResponse() {
-			Assert.state(!this.pollResponseConsumed, "Unable to clear an already consumed poll response");
-			this.pollResponse = null;
+		/**
+		 * Clear a previously set poll response.
+		 * @return <tt>true</tt> if the poll response was cleared or <tt>false</tt> if it has already been consumed
+		 */
+		public boolean clearPollResponse() {
+			return POLL_RESPONSE.getAndSet(this, null) != null;
 		}
 
 		public HttpServletResponse consumePollResponse() {
-			if (this.pollResponse != null) {
-				this.pollResponseConsumed = true;
+			HttpServletResponse pollResponse = POLL_RESPONSE.getAndSet(this, null);
+			if (pollResponse != null) {
 				signal(CoordinatedEvent.POLL_RESPONSE_CONSUMED);
 			}
-			return this.pollResponse;
+			return pollResponse;
+		}
+
+		public void setRecording(ReplayableHttpServletResponse recording) {
+			Assert.state(!isPollResponseConsumed(), "Unable to record an already consumed poll response");
+			this.recordingTime = System.nanoTime();
+			this.recording = recording;
+		}
+
+		/**
+		 * Returns the {@link System#nanoTime() time} that the recording was set.
+		 * @return the recording time
+		 */
+		public long getRecordingTime() {
+			return this.recordingTime;
+		}
+
+		public boolean hasRecording() {
+			return this.recording != null;
+		}
+
+		public ReplayableHttpServletResponse consumeRecording() {
+			ReplayableHttpServletResponse recording = RECORDING.getAndSet(this, null);
+			if (recording != null) {
+				signal(CoordinatedEvent.POLL_RESPONSE_CONSUMED);
+			}
+			return recording;
+		}
+
+		/**
+		 * Discard and release any recording that has not been consumed.
+		 * @return <tt>true</tt> if a recording was discarded
+		 */
+		public boolean discardRecording() {
+			ReplayableHttpServletResponse recording = RECORDING.getAndSet(this, null);
+			if (recording == null) {
+				return false;
+			}
+			recording.release();
+			return true;
+		}
+
+		public void setAsyncPoll(AsyncPoll asyncPoll) {
+			this.asyncPoll = asyncPoll;
+		}
+
+		public AsyncPoll takeAsyncPoll() {
+			return ASYNC_POLL.getAndSet(this, null);
+		}
+
+		public boolean takeAsyncPoll(AsyncPoll asyncPoll) {
+			return ASYNC_POLL.compareAndSet(this, asyncPoll, null);
+		}
+
+		public boolean isFinished() {
+			return this.events.hasOccurred(CoordinatedEvent.FINISH);
 		}
 
 		public void finish() {
@@ -197,7 +585,7 @@ public class HotSwappingTimeoutProtectionStrategy implements TimeoutProtectionSt
 		}
 
 		public boolean isPollResponseConsumed() {
-			return this.pollResponseConsumed;
+			return this.events.hasOccurred(CoordinatedEvent.POLL_RESPONSE_CONSUMED);
 		}
 
 		public void awaitPollResponse(long timeout) throws InterruptedException {
@@ -213,12 +601,42 @@ public class HotSwappingTimeoutProtectionStrategy implements TimeoutProtectionSt
 		}
 
 		private void signal(CoordinatedEvent event) {
-			this.latches.get(event).countDown();
+			this.events.releaseShared(event.getMask());
 		}
 
 		private void await(CoordinatedEvent event, long timeout) throws InterruptedException {
-			this.latches.get(event).await(timeout, TimeUnit.MILLISECONDS);
+			this.events.tryAcquireSharedNanos(event.getMask(), TimeUnit.MILLISECONDS.toNanos(timeout));
+		}
+	}
+
+	/**
+	 * Synchronizer holding {@link CoordinatedEvent}s that have occurred as a bit mask. Acquiring succeeds once any of
+	 * the requested events has occurred, releasing records events and wakes any queued threads.
+	 */
+	private static class Events extends AbstractQueuedSynchronizer {
+
+		private static final long serialVersionUID = 1L;
+
+		public boolean hasOccurred(CoordinatedEvent event) {
+			return (getState() & event.getMask()) != 0;
+		}
+
+		@Override
+		protected int tryAcquireShared(int mask) {
+			return ((getState() & mask) != 0 ? 1 : -1);
 		}
 
+		@Override
+		protected boolean tryReleaseShared(int mask) {
+			while (true) {
+				int state = getState();
+				if ((state & mask) == mask) {
+					return false;
+				}
+				if (compareAndSetState(state, state | mask)) {
+					return true;
+				}
+			}
+		}
 	}
 }
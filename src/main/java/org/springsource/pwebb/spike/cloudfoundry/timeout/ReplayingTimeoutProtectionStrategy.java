@@ -1,19 +1,39 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.http.HttpStatus;
 import org.springframework.util.Assert;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Counter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Gauge;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Timer;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ChunkPool;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitor;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitorFactory;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.MemoryBudget;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitor;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitorFactory;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.store.CompletedResponseStore;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.store.MappedSegmentCompletedResponseStore;
 
 /**
  * {@link TimeoutProtectionStrategy} that works by recording the original request such that it can be replayed to a
@@ -25,10 +45,27 @@ import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpS
  * <p>
  * This strategy consumes more memory than {@link HotSwappingTimeoutProtectionStrategy} but does not require that
  * timeouts only occur.
+ * <p>
+ * When {@link #setStreaming(boolean) streaming} is enabled a poll that arrives before the request has completed will
+ * receive the response recorded so far followed by any further data as it is written. Unlike
+ * {@link HotSwappingTimeoutProtectionStrategy} the request thread is never blocked waiting for a poll.
+ * <p>
+ * {@link #handleAsyncPoll(TimeoutProtectionHttpRequest, AsyncPoll) Async polls} are parked against their
+ * {@link CompletedRequest} entry and resumed when the request is published, or when the long poll time expires.
+ * <p>
+ * A {@link #setStore(CompletedResponseStore) store} can be used to allow polls to be handled by a different application
+ * instance to the one that ran the original request. Completed responses that are not already awaited by a poll on
+ * the local instance are put in the store, and polls check the store every {@link #setStorePollInterval(long) store
+ * poll interval} while they wait. Responses that are {@link #setStreaming(boolean) streamed} are only available to the
+ * local instance.
+ * <p>
+ * {@link #handleBatchPoll(TimeoutProtectionHttpRequest, HttpServletResponse) Batch polls} wait on the entries of all
+ * requested uids at once and are answered with the first response that becomes available.
  * 
  * @author Phillip Webb
  */
-public class ReplayingTimeoutProtectionStrategy implements TimeoutProtectionStrategy {
+public class ReplayingTimeoutProtectionStrategy implements AsyncTimeoutProtectionStrategy,
+		BatchPollTimeoutProtectionStrategy, DisposableBean {
 
 	private long threshold = TimeUnit.SECONDS.toMillis(14);
 
@@ -36,14 +73,44 @@ public class ReplayingTimeoutProtectionStrategy implements TimeoutProtectionStra
 
 	private long failTimeout = TimeUnit.SECONDS.toMillis(30);
 
-	private Map<String, MonitorFactory> completedRequests = new HashMap<String, MonitorFactory>();
+	private int maxInMemorySize = ReplayableHttpServletResponseMonitorFactory.DEFAULT_MAX_IN_MEMORY_SIZE;
+
+	private ChunkPool chunkPool = ChunkPool.NONE;
+
+	private MemoryBudget memoryBudget;
+
+	private boolean streaming;
+
+	private ConcurrentMap<String, CompletedRequest> completedRequests = new ConcurrentHashMap<String, CompletedRequest>();
+
+	private ExpiryReaper reaper = new ExpiryReaper("timeout-protection-reaper");
+
+	private CompletedResponseStore store;
 
-	protected final Map<String, MonitorFactory> getCompletedRequests() {
+	private long storePollInterval = 500;
+
+	private Executor storeExecutor;
+
+	private ExecutorService defaultStoreExecutor;
+
+	private TimeoutProtectionMetrics metrics = TimeoutProtectionMetrics.NONE;
+
+	private AdaptiveThreshold adaptiveThreshold;
+
+	protected final Map<String, CompletedRequest> getCompletedRequests() {
 		return this.completedRequests;
 	}
 
+	protected final ExpiryReaper getReaper() {
+		return this.reaper;
+	}
+
 	public HttpServletResponseMonitorFactory handleRequest(final TimeoutProtectionHttpRequest request) {
-		return new MonitorFactory();
+		long threshold = this.threshold;
+		if (this.adaptiveThreshold != null) {
+			threshold = this.adaptiveThreshold.getThreshold(request, threshold);
+		}
+		return new MonitorFactory(request, threshold);
 	}
 
 	public void afterRequest(TimeoutProtectionHttpRequest request, HttpServletResponseMonitorFactory monitorFactory) {
@@ -51,51 +118,562 @@ public class ReplayingTimeoutProtectionStrategy implements TimeoutProtectionStra
 	}
 
 	private void afterRequest(TimeoutProtectionHttpRequest request, MonitorFactory monitorFactory) {
+		if (this.adaptiveThreshold != null) {
+			long latency = System.currentTimeMillis() - monitorFactory.getStartTime();
+			this.adaptiveThreshold.record(request, latency, this.threshold);
+		}
 		if (monitorFactory.wasMonitored()) {
-			synchronized (this.completedRequests) {
-				purgeUnpolledRequests();
-				this.completedRequests.put(request.getUid(), monitorFactory);
-				this.completedRequests.notifyAll();
+			String uid = request.getUid();
+			if (!monitorFactory.isPublished()) {
+				monitorFactory.markAvailable();
 			}
+			CompletedRequest completedRequest = null;
+			if (this.store != null && !monitorFactory.isPublished()) {
+				completedRequest = publishIfAwaited(uid, monitorFactory);
+				if (completedRequest == null && put(uid, monitorFactory)) {
+					return;
+				}
+			}
+			if (completedRequest == null) {
+				completedRequest = publish(uid, monitorFactory, true);
+			}
+			schedulePurge(uid, completedRequest);
+			completedRequest.unparkReady();
 		}
 	}
 
 	/**
-	 * Cleanup any started monitors that may have never received a poll. This can happen if the client is closed after a
-	 * timeout but before a poll.
+	 * Publish a completed monitor factory only if a poll on this instance is already waiting for it.
+	 * @param uid the request uid
+	 * @param monitorFactory the monitor factory
+	 * @return the entry that the monitor factory was published to or <tt>null</tt> if no poll is waiting
 	 */
-	private void purgeUnpolledRequests() {
-		Iterator<Map.Entry<String, MonitorFactory>> iterator = this.completedRequests.entrySet().iterator();
-		while (iterator.hasNext()) {
-			if (iterator.next().getValue().isPurgable(this.threshold + this.failTimeout)) {
-				iterator.remove();
+	private CompletedRequest publishIfAwaited(String uid, MonitorFactory monitorFactory) {
+		CompletedRequest completedRequest = this.completedRequests.get(uid);
+		if (completedRequest != null && completedRequest.publish(monitorFactory, true)) {
+			return completedRequest;
+		}
+		return null;
+	}
+
+	/**
+	 * Put a completed monitor factory in the store.
+	 * @param uid the request uid
+	 * @param monitorFactory the monitor factory
+	 * @return <tt>true</tt> if the response was stored or <tt>false</tt> if the store failed and the response should be
+	 * held locally
+	 */
+	private boolean put(final String uid, MonitorFactory monitorFactory) {
+		long expiryTime = System.currentTimeMillis() + this.failTimeout;
+		try {
+			this.store.put(uid, monitorFactory.getReplayableResponse(), expiryTime);
+		} catch (IOException e) {
+			return false;
+		}
+		this.reaper.schedule(expiryTime, new Runnable() {
+			public void run() {
+				getStoreExecutor().execute(new Runnable() {
+					public void run() {
+						ReplayingTimeoutProtectionStrategy.this.store.remove(uid);
+					}
+				});
 			}
+		});
+		return true;
+	}
+
+	/**
+	 * Take a response from the store and replay it. Any local entry is abandoned so that it is not also published.
+	 * @param uid the request uid
+	 * @param completedRequest the local completed request entry
+	 * @param response the poll response
+	 * @return <tt>true</tt> if a response was taken from the store
+	 * @throws IOException
+	 */
+	private boolean replayStored(String uid, CompletedRequest completedRequest, HttpServletResponse response)
+			throws IOException {
+		ReplayableHttpServletResponse stored = take(uid);
+		if (stored == null) {
+			return false;
 		}
+		replayStored(uid, completedRequest, stored, response);
+		return true;
 	}
 
-	public void handlePoll(TimeoutProtectionHttpRequest request, HttpServletResponse response) throws IOException {
-		String uid = request.getUid();
-		long startTime = System.currentTimeMillis();
-		do {
-			MonitorFactory completedRequest;
-			synchronized (this.completedRequests) {
-				if (!this.completedRequests.containsKey(uid)) {
-					try {
-						this.completedRequests.wait(this.longPollTime);
-					} catch (InterruptedException e) {
+	private void replayStored(String uid, CompletedRequest completedRequest, ReplayableHttpServletResponse stored,
+			HttpServletResponse response) throws IOException {
+		completedRequest.claim();
+		this.completedRequests.remove(uid, completedRequest);
+		try {
+			replay(stored, response);
+		} finally {
+			stored.release();
+		}
+	}
+
+	private ReplayableHttpServletResponse take(String uid) throws IOException {
+		return (this.store == null ? null : this.store.take(uid));
+	}
+
+	/**
+	 * Publish a monitor factory so that it is available to polls.
+	 * @param uid the request uid
+	 * @param monitorFactory the monitor factory
+	 * @param complete if the request has completed
+	 * @return the entry that the monitor factory was published to
+	 */
+	private CompletedRequest publish(String uid, MonitorFactory monitorFactory, boolean complete) {
+		CompletedRequest completedRequest = getCompletedRequest(uid);
+		while (!completedRequest.publish(monitorFactory, complete)) {
+			// The poll that created the entry gave up, replace it with a new one
+			this.completedRequests.remove(uid, completedRequest);
+			completedRequest = getCompletedRequest(uid);
+		}
+		return completedRequest;
+	}
+
+	/**
+	 * Schedule the cleanup of a completed request that may never receive a poll. This can happen if the client is
+	 * closed after a timeout but before a poll.
+	 * @param uid the request uid
+	 * @param completedRequest the completed request
+	 */
+	private void schedulePurge(final String uid, final CompletedRequest completedRequest) {
+		long deadline = System.currentTimeMillis() + this.failTimeout;
+		this.reaper.schedule(deadline, new Runnable() {
+			public void run() {
+				if (ReplayingTimeoutProtectionStrategy.this.completedRequests.remove(uid, completedRequest)) {
+					MonitorFactory monitorFactory = completedRequest.claim();
+					if (monitorFactory != null) {
+						ReplayingTimeoutProtectionStrategy.this.metrics.increment(Counter.EXPIRED_RESPONSES);
+						monitorFactory.release();
 					}
 				}
-				completedRequest = this.completedRequests.remove(uid);
 			}
-			if (completedRequest != null) {
-				completedRequest.replay(response);
+		});
+	}
+
+	public void handlePoll(TimeoutProtectionHttpRequest request, HttpServletResponse response) throws IOException {
+		String uid = request.getUid();
+		CompletedRequest completedRequest = getCompletedRequest(uid);
+		long pollStartTime = System.nanoTime();
+		try {
+			if (awaitAvailable(uid, completedRequest, response)) {
 				return;
 			}
-		} while (System.currentTimeMillis() - startTime < this.longPollTime);
+		} catch (InterruptedException e) {
+		}
+		this.metrics.record(Timer.HANDOFF_WAIT, System.nanoTime() - pollStartTime);
+		MonitorFactory monitorFactory = completedRequest.claim();
+		if (monitorFactory == null) {
+			respondNoContent(uid, completedRequest, response);
+			return;
+		}
+		replayClaimed(uid, completedRequest, monitorFactory, response);
+	}
+
+	/**
+	 * Replay a claimed monitor factory to a poll, streaming it if the request has not yet completed.
+	 * @param uid the request uid
+	 * @param completedRequest the completed request entry
+	 * @param monitorFactory the claimed monitor factory
+	 * @param response the poll response
+	 * @throws IOException
+	 */
+	private void replayClaimed(String uid, CompletedRequest completedRequest, MonitorFactory monitorFactory,
+			HttpServletResponse response) throws IOException {
+		this.metrics.record(Timer.TIME_TO_POLL, System.nanoTime() - monitorFactory.getAvailableTime());
+		try {
+			if (completedRequest.isComplete()) {
+				this.completedRequests.remove(uid, completedRequest);
+				monitorFactory.replay(response);
+			} else {
+				streamPoll(uid, completedRequest, monitorFactory, response);
+			}
+		} finally {
+			monitorFactory.release();
+		}
+	}
+
+	public void handleBatchPoll(TimeoutProtectionHttpRequest request, HttpServletResponse response)
+			throws IOException {
+		Map<String, CompletedRequest> batch = new LinkedHashMap<String, CompletedRequest>();
+		for (String uid : request.getUids()) {
+			batch.put(uid, getCompletedRequest(uid));
+		}
+		long pollStartTime = System.nanoTime();
+		long deadline = System.currentTimeMillis() + this.longPollTime;
+		String answered = null;
+		try {
+			while (answered == null) {
+				answered = replayAvailable(batch, response, pollStartTime);
+				long remaining = deadline - System.currentTimeMillis();
+				if (answered != null || remaining <= 0) {
+					break;
+				}
+				long timeout = (this.store == null ? remaining : Math.min(remaining, this.storePollInterval));
+				awaitAnyAvailable(batch, timeout);
+			}
+		} catch (InterruptedException e) {
+		} finally {
+			abandon(batch, answered);
+		}
+		if (answered == null) {
+			this.metrics.increment(Counter.EMPTY_POLLS);
+			response.setHeader(TimeoutProtectionHttpHeader.BATCH_POLL, request.getUid());
+			response.setStatus(HttpStatus.NO_CONTENT.value());
+		}
+	}
+
+	/**
+	 * Replay the first response of a batch that is available either locally or from the store.
+	 * @param batch the completed request entries of the batch
+	 * @param response the poll response
+	 * @param pollStartTime the time that the poll started
+	 * @return the uid of the replayed response or <tt>null</tt> if no response is available
+	 * @throws IOException
+	 */
+	private String replayAvailable(Map<String, CompletedRequest> batch, HttpServletResponse response,
+			long pollStartTime) throws IOException {
+		for (Map.Entry<String, CompletedRequest> entry : batch.entrySet()) {
+			String uid = entry.getKey();
+			CompletedRequest completedRequest = entry.getValue();
+			MonitorFactory monitorFactory = (completedRequest.isAvailable() ? completedRequest.claim() : null);
+			if (monitorFactory != null) {
+				this.metrics.record(Timer.HANDOFF_WAIT, System.nanoTime() - pollStartTime);
+				replayClaimed(uid, completedRequest, monitorFactory, new BatchPollHttpServletResponse(response, uid));
+				return uid;
+			}
+			ReplayableHttpServletResponse stored = take(uid);
+			if (stored != null) {
+				replayStored(uid, completedRequest, stored, new BatchPollHttpServletResponse(response, uid));
+				return uid;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Wait for any entry of a batch to become available. A single latch is added as a waiter to every entry so that
+	 * publishing any one of them wakes the poll. Waiters do not use the single parked action of an entry so every uid
+	 * is registered, even when another poll is already parked against it.
+	 * @param batch the completed request entries of the batch
+	 * @param timeout the timeout in milliseconds
+	 * @throws InterruptedException
+	 */
+	private void awaitAnyAvailable(Map<String, CompletedRequest> batch, long timeout) throws InterruptedException {
+		final CountDownLatch available = new CountDownLatch(1);
+		Runnable waiter = new Runnable() {
+			public void run() {
+				available.countDown();
+			}
+		};
+		try {
+			for (CompletedRequest completedRequest : batch.values()) {
+				if (!completedRequest.addWaiter(waiter)) {
+					return;
+				}
+			}
+			available.await(timeout, TimeUnit.MILLISECONDS);
+		} finally {
+			for (CompletedRequest completedRequest : batch.values()) {
+				completedRequest.removeWaiter(waiter);
+			}
+		}
+	}
+
+	/**
+	 * Abandon the entries of a batch that were not answered and have nothing published, in the same way as a single
+	 * poll that receives no content.
+	 * @param batch the completed request entries of the batch
+	 * @param answered the uid that was answered or <tt>null</tt>
+	 */
+	private void abandon(Map<String, CompletedRequest> batch, String answered) {
+		for (Map.Entry<String, CompletedRequest> entry : batch.entrySet()) {
+			if (!entry.getKey().equals(answered) && entry.getValue().abandon()) {
+				this.completedRequests.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Wait for a monitor factory to be published to the local entry, checking the store at each poll interval.
+	 * @param uid the request uid
+	 * @param completedRequest the local completed request entry
+	 * @param response the poll response
+	 * @return <tt>true</tt> if a stored response was replayed
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private boolean awaitAvailable(String uid, CompletedRequest completedRequest, HttpServletResponse response)
+			throws IOException, InterruptedException {
+		if (this.store == null) {
+			completedRequest.awaitAvailable(this.longPollTime);
+			return false;
+		}
+		long deadline = System.currentTimeMillis() + this.longPollTime;
+		while (!replayStored(uid, completedRequest, response)) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0 || completedRequest.awaitAvailable(Math.min(remaining, this.storePollInterval))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void respondNoContent(String uid, CompletedRequest completedRequest, HttpServletResponse response) {
+		if (completedRequest.isAbandoned()) {
+			this.completedRequests.remove(uid, completedRequest);
+		}
+		this.metrics.increment(Counter.EMPTY_POLLS);
 		response.setHeader(TimeoutProtectionHttpHeader.POLL, uid);
 		response.setStatus(HttpStatus.NO_CONTENT.value());
 	}
 
+	/**
+	 * Replay a response, recording the time taken.
+	 * @param replayableResponse the response to replay
+	 * @param response the poll response
+	 * @throws IOException
+	 */
+	private void replay(ReplayableHttpServletResponse replayableResponse, HttpServletResponse response)
+			throws IOException {
+		long startTime = System.nanoTime();
+		replayableResponse.replay(response);
+		this.metrics.record(Timer.REPLAY, System.nanoTime() - startTime);
+	}
+
+	public void handleAsyncPoll(TimeoutProtectionHttpRequest request, final AsyncPoll poll) throws IOException {
+		final String uid = request.getUid();
+		final CompletedRequest completedRequest = getCompletedRequest(uid);
+		if (replayStored(uid, completedRequest, poll)) {
+			return;
+		}
+		final long pollStartTime = System.nanoTime();
+		Runnable resume = park(completedRequest, false, this.longPollTime, poll, new Runnable() {
+			public void run() {
+				resumeAsyncPoll(uid, completedRequest, poll, pollStartTime);
+			}
+		});
+		if (this.store != null && resume != null) {
+			scheduleStoreCheck(uid, completedRequest, poll, resume, System.currentTimeMillis() + this.longPollTime);
+		}
+	}
+
+	/**
+	 * Schedule a check of the store for a parked async poll. If a response is found it is replayed to the poll,
+	 * otherwise the poll is parked again and a further check scheduled. The reaper only unparks the poll, the store is
+	 * checked using the {@link #setStoreExecutor(Executor) store executor} since a store lookup may block.
+	 * @param uid the request uid
+	 * @param completedRequest the local completed request entry
+	 * @param poll the poll
+	 * @param resume the resume action that was parked
+	 * @param deadline the time after which no further checks are made
+	 */
+	private void scheduleStoreCheck(final String uid, final CompletedRequest completedRequest, final AsyncPoll poll,
+			final Runnable resume, final long deadline) {
+		long checkTime = Math.min(System.currentTimeMillis() + this.storePollInterval, deadline);
+		this.reaper.schedule(checkTime, new Runnable() {
+			public void run() {
+				if (completedRequest.unpark(resume)) {
+					getStoreExecutor().execute(new Runnable() {
+						public void run() {
+							checkStore(uid, completedRequest, poll, resume, deadline);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Check the store for an unparked async poll, replaying any response or parking the poll again until the deadline.
+	 * Called using the {@link #setStoreExecutor(Executor) store executor}.
+	 */
+	private void checkStore(final String uid, final CompletedRequest completedRequest, final AsyncPoll poll,
+			Runnable resume, long deadline) {
+		ReplayableHttpServletResponse stored = null;
+		try {
+			stored = take(uid);
+		} catch (IOException e) {
+		}
+		if (stored != null) {
+			final ReplayableHttpServletResponse response = stored;
+			poll.dispatch(new Runnable() {
+				public void run() {
+					replayStored(uid, completedRequest, poll, response);
+				}
+			});
+		} else if (System.currentTimeMillis() >= deadline || !completedRequest.park(resume, false)) {
+			resume.run();
+		} else {
+			scheduleStoreCheck(uid, completedRequest, poll, resume, deadline);
+		}
+	}
+
+	private boolean replayStored(String uid, CompletedRequest completedRequest, AsyncPoll poll) throws IOException {
+		ReplayableHttpServletResponse stored = take(uid);
+		if (stored == null) {
+			return false;
+		}
+		replayStored(uid, completedRequest, poll, stored);
+		return true;
+	}
+
+	private void replayStored(String uid, CompletedRequest completedRequest, AsyncPoll poll,
+			ReplayableHttpServletResponse stored) {
+		completedRequest.claim();
+		this.completedRequests.remove(uid, completedRequest);
+		try {
+			replay(stored, poll.getResponse());
+		} catch (IOException e) {
+			// The poll client has gone, the response cannot be sent
+		} finally {
+			stored.release();
+			poll.complete();
+		}
+	}
+
+	/**
+	 * Park an async poll against a completed request entry. If the entry is already in the required state the action
+	 * is run immediately on the calling thread, otherwise it is dispatched to the poll when the entry is published or
+	 * the timeout expires (whichever happens first).
+	 * @param completedRequest the completed request entry
+	 * @param untilComplete if the poll should be parked until the request completes rather than until the request is
+	 * available
+	 * @param timeout the timeout in milliseconds
+	 * @param poll the poll
+	 * @param action the action to run when the poll is resumed
+	 * @return the resume action that was parked or <tt>null</tt> if the action was run immediately
+	 */
+	private Runnable park(final CompletedRequest completedRequest, boolean untilComplete, long timeout,
+			final AsyncPoll poll, final Runnable action) {
+		final Runnable resume = new Runnable() {
+			public void run() {
+				poll.dispatch(action);
+			}
+		};
+		if (!completedRequest.park(resume, untilComplete)) {
+			action.run();
+			return null;
+		}
+		this.reaper.schedule(System.currentTimeMillis() + timeout, new Runnable() {
+			public void run() {
+				if (completedRequest.unpark(resume)) {
+					resume.run();
+				}
+			}
+		});
+		return resume;
+	}
+
+	private void resumeAsyncPoll(String uid, CompletedRequest completedRequest, AsyncPoll poll, long pollStartTime) {
+		HttpServletResponse response = poll.getResponse();
+		this.metrics.record(Timer.HANDOFF_WAIT, System.nanoTime() - pollStartTime);
+		MonitorFactory monitorFactory = completedRequest.claim();
+		if (monitorFactory == null) {
+			respondNoContent(uid, completedRequest, response);
+			poll.complete();
+			return;
+		}
+		this.metrics.record(Timer.TIME_TO_POLL, System.nanoTime() - monitorFactory.getAvailableTime());
+		if (completedRequest.isComplete()) {
+			this.completedRequests.remove(uid, completedRequest);
+			try {
+				monitorFactory.replay(response);
+			} catch (IOException e) {
+				// The poll client has gone, the response cannot be sent
+			} finally {
+				monitorFactory.release();
+				poll.complete();
+			}
+			return;
+		}
+		streamAsyncPoll(uid, completedRequest, monitorFactory, poll);
+	}
+
+	private void streamAsyncPoll(final String uid, final CompletedRequest completedRequest,
+			final MonitorFactory monitorFactory, final AsyncPoll poll) {
+		Runnable finish = new Runnable() {
+			public void run() {
+				ReplayingTimeoutProtectionStrategy.this.completedRequests.remove(uid, completedRequest);
+				monitorFactory.release();
+				poll.complete();
+			}
+		};
+		try {
+			monitorFactory.attach(poll.getResponse());
+		} catch (IOException e) {
+			finish.run();
+			return;
+		}
+		park(completedRequest, true, this.failTimeout, poll, finish);
+	}
+
+	/**
+	 * Stream a response that is still in progress to the poll. All monitored events are sent immediately with the
+	 * remaining events passed to the poll as they happen.
+	 * @param uid the request uid
+	 * @param completedRequest the completed request entry
+	 * @param monitorFactory the in-progress monitor factory
+	 * @param response the poll response
+	 * @throws IOException
+	 */
+	private void streamPoll(String uid, CompletedRequest completedRequest, MonitorFactory monitorFactory,
+			HttpServletResponse response) throws IOException {
+		try {
+			monitorFactory.attach(response);
+			completedRequest.awaitComplete(this.failTimeout);
+		} catch (InterruptedException e) {
+		} finally {
+			this.completedRequests.remove(uid, completedRequest);
+		}
+	}
+
+	/**
+	 * Return the {@link CompletedRequest} for the given uid, creating it if necessary.
+	 * @param uid the request uid
+	 * @return the completed request entry
+	 */
+	private CompletedRequest getCompletedRequest(String uid) {
+		CompletedRequest completedRequest = this.completedRequests.get(uid);
+		if (completedRequest == null) {
+			completedRequest = new CompletedRequest(this.metrics);
+			CompletedRequest existing = this.completedRequests.putIfAbsent(uid, completedRequest);
+			completedRequest = (existing == null ? completedRequest : existing);
+		}
+		return completedRequest;
+	}
+
+	/**
+	 * Returns the {@link #setStoreExecutor(Executor) store executor}, creating a default executor if necessary.
+	 * @return the store executor
+	 */
+	private synchronized Executor getStoreExecutor() {
+		if (this.storeExecutor == null) {
+			this.defaultStoreExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "timeout-protection-store-" + this.count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.storeExecutor = this.defaultStoreExecutor;
+		}
+		return this.storeExecutor;
+	}
+
+	public void destroy() {
+		this.reaper.destroy();
+		synchronized (this) {
+			if (this.defaultStoreExecutor != null) {
+				this.defaultStoreExecutor.shutdownNow();
+			}
+		}
+	}
+
 	/**
 	 * Set the threshold that must be passed before timeout protection will be used
 	 * @param threshold the threshold in milliseconds
@@ -113,45 +691,435 @@ public class ReplayingTimeoutProtectionStrategy implements TimeoutProtectionStra
 	}
 
 	/**
-	 * Set the amount of time before a request is considered failed.
+	 * Set the amount of time before a request is considered failed. Completed requests that have not been polled within
+	 * this time are discarded.
 	 * @param failTimeout
 	 */
 	public void setFailTimeout(long failTimeout) {
 		this.failTimeout = failTimeout;
 	}
 
+	/**
+	 * Set the maximum number of response body bytes that will be held in memory for each recorded response. Larger
+	 * bodies will be buffered to a temporary file.
+	 * @param maxInMemorySize the maximum in-memory size in bytes
+	 */
+	public void setMaxInMemorySize(int maxInMemorySize) {
+		this.maxInMemorySize = maxInMemorySize;
+	}
+
+	/**
+	 * Set if responses that are still in progress should be streamed to a poll. When streaming a poll will receive all
+	 * data recorded so far as soon as the threshold has passed, followed by any further data as it is written. When not
+	 * streaming a poll will not receive any data until the request has completed.
+	 * @param streaming if responses should be streamed
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Set the {@link CompletedResponseStore} used to hold completed responses that are not already awaited by a poll on
+	 * this instance. A store that is shared between application instances allows polls to be handled by any instance.
+	 * A {@link MappedSegmentCompletedResponseStore} can be used to hold completed responses outside of the Java heap.
+	 * When no store is set completed responses are only held locally.
+	 * @param store the completed response store
+	 */
+	public void setStore(CompletedResponseStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Set how often a waiting poll checks the {@link #setStore(CompletedResponseStore) store} for a response. Defaults
+	 * to 500 milliseconds.
+	 * @param storePollInterval the store poll interval in milliseconds
+	 */
+	public void setStorePollInterval(long storePollInterval) {
+		Assert.isTrue(storePollInterval > 0, "StorePollInterval must be positive");
+		this.storePollInterval = storePollInterval;
+	}
+
+	/**
+	 * Set the {@link Executor} used to check the {@link #setStore(CompletedResponseStore) store} on behalf of async
+	 * polls and to remove expired responses from it. Store operations may block so they are never run on the reaper
+	 * thread. Defaults to a cached pool of daemon threads that is shut down when the strategy is destroyed.
+	 * @param storeExecutor the store executor
+	 */
+	public synchronized void setStoreExecutor(Executor storeExecutor) {
+		Assert.notNull(storeExecutor, "StoreExecutor must not be null");
+		this.storeExecutor = storeExecutor;
+	}
+
+	/**
+	 * Set the {@link ChunkPool} used to obtain in-memory response body chunks. Using a pool allows buffers to be reused
+	 * once a recorded response has been replayed.
+	 * @param chunkPool the chunk pool
+	 */
+	public void setChunkPool(ChunkPool chunkPool) {
+		this.chunkPool = chunkPool;
+	}
+
+	/**
+	 * Set the {@link MemoryBudget} shared by all recorded responses. The {@link #setMaxInMemorySize(int) maximum
+	 * in-memory size} remains the limit for each single response. When the budget uses the
+	 * {@link MemoryBudget.Policy#REJECT REJECT} policy and is exhausted, new requests are not protected.
+	 * @param memoryBudget the memory budget
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Set an {@link AdaptiveThreshold} used to adjust the {@link #setThreshold(long) threshold} for each route based
+	 * on observed latencies. Reliably slow routes are protected from time zero and reliably fast routes are not
+	 * monitored.
+	 * @param adaptiveThreshold the adaptive threshold or <tt>null</tt> to always use the configured threshold
+	 */
+	public void setAdaptiveThreshold(AdaptiveThreshold adaptiveThreshold) {
+		this.adaptiveThreshold = adaptiveThreshold;
+	}
+
+	/**
+	 * Set the {@link TimeoutProtectionMetrics} that the strategy reports to. The
+	 * {@link Gauge#BUFFERED_BYTES buffered bytes} gauge only includes responses held locally rather than those put in
+	 * the {@link #setStore(CompletedResponseStore) store}.
+	 * @param metrics the metrics
+	 */
+	public void setMetrics(TimeoutProtectionMetrics metrics) {
+		Assert.notNull(metrics, "Metrics must not be null");
+		this.metrics = metrics;
+	}
+
 	/**
 	 * The {@link HttpServletResponseMonitorFactory} used internally.
 	 */
 	private class MonitorFactory implements HttpServletResponseMonitorFactory {
 
+		private TimeoutProtectionHttpRequest request;
+
+		private String uid;
+
 		private long startTime;
 
+		private long threshold;
+
 		private ReplayableHttpServletResponseMonitor monitor;
 
-		public MonitorFactory() {
+		private boolean published;
+
+		private volatile long availableTime;
+
+		public MonitorFactory(TimeoutProtectionHttpRequest request, long threshold) {
+			this.request = request;
+			this.uid = request.getUid();
+			this.threshold = threshold;
 			this.startTime = System.currentTimeMillis();
 		}
 
+		public long getStartTime() {
+			return this.startTime;
+		}
+
 		public boolean wasMonitored() {
 			return this.monitor != null;
 		}
 
+		/**
+		 * Returns <tt>true</tt> if the monitor factory was published to a poll before the request completed.
+		 * @return if the monitor factory has been published
+		 */
+		public boolean isPublished() {
+			return this.published;
+		}
+
+		/**
+		 * Mark the time that the response became available to polls.
+		 */
+		public void markAvailable() {
+			this.availableTime = System.nanoTime();
+		}
+
+		public long getAvailableTime() {
+			return this.availableTime;
+		}
+
+		public ReplayableHttpServletResponse getReplayableResponse() {
+			return this.monitor.getReplayableResponse();
+		}
+
 		public void replay(HttpServletResponse response) throws IOException {
 			Assert.state(wasMonitored(), "Request was not monitored, no poll expected");
-			this.monitor.getReplayableResponse().replay(response);
+			ReplayingTimeoutProtectionStrategy.this.replay(this.monitor.getReplayableResponse(), response);
+		}
+
+		public void attach(HttpServletResponse response) throws IOException {
+			this.monitor.getReplayableResponse().attach(response);
+		}
+
+		public void release() {
+			this.monitor.getReplayableResponse().release();
 		}
 
 		public HttpServletResponseMonitor getMonitor() {
-			long pollThreshold = ReplayingTimeoutProtectionStrategy.this.threshold;
-			if ((pollThreshold == 0) || (System.currentTimeMillis() - this.startTime >= pollThreshold)) {
-				this.monitor = new ReplayableHttpServletResponseMonitorFactory().getMonitor();
+			// Detached requests must always be recorded since the client is already polling
+			boolean detached = this.request.isDetached();
+			long pollThreshold = (detached ? 0 : this.threshold);
+			MemoryBudget memoryBudget = ReplayingTimeoutProtectionStrategy.this.memoryBudget;
+			long elapsed = System.currentTimeMillis() - this.startTime;
+			if (((pollThreshold == 0) || (elapsed >= pollThreshold))
+					&& (detached || memoryBudget == null || memoryBudget.tryProtect())) {
+				TimeoutProtectionMetrics metrics = ReplayingTimeoutProtectionStrategy.this.metrics;
+				metrics.increment(Counter.THRESHOLD_EXCEEDED);
+				metrics.record(Timer.TIME_TO_THRESHOLD, TimeUnit.MILLISECONDS.toNanos(elapsed));
+				ReplayableHttpServletResponseMonitorFactory factory = new ReplayableHttpServletResponseMonitorFactory();
+				factory.setMaxInMemorySize(ReplayingTimeoutProtectionStrategy.this.maxInMemorySize);
+				factory.setChunkPool(ReplayingTimeoutProtectionStrategy.this.chunkPool);
+				factory.setMemoryBudget(memoryBudget);
+				this.monitor = factory.getMonitor();
+				if (ReplayingTimeoutProtectionStrategy.this.streaming) {
+					this.published = true;
+					markAvailable();
+					publish(this.uid, this, false).unparkReady();
+				}
 			}
 			return this.monitor;
 		}
+	}
+
+	/**
+	 * Response used to answer a batch poll. The {@link TimeoutProtectionHttpHeader#POLL poll header} identifies which
+	 * request the answer is for and is set again whenever a replayed response is reset, otherwise the client would be
+	 * unable to match the answer.
+	 */
+	private static class BatchPollHttpServletResponse extends HttpServletResponseWrapper {
+
+		private final String uid;
+
+		public BatchPollHttpServletResponse(HttpServletResponse response, String uid) {
+			super(response);
+			this.uid = uid;
+			response.setHeader(TimeoutProtectionHttpHeader.POLL, uid);
+		}
+
+		@Override
+		public void reset() {
+			super.reset();
+			setHeader(TimeoutProtectionHttpHeader.POLL, this.uid);
+		}
+	}
+
+	/**
+	 * A single entry in the completed requests map. Entries may be created either by a request or by a poll that
+	 * arrives first. When streaming, requests are published to their entry when monitoring starts as well as when they
+	 * complete. Each entry has its own latches so that publishing one request only wakes a poll waiting on the same
+	 * uid. Async polls are {@link #park(Runnable, boolean) parked} against the entry rather than waiting on a latch.
+	 * Completed requests that are waiting to be claimed are reported to the {@link Gauge pending gauges}.
+	 */
+	private static class CompletedRequest {
+
+		private final TimeoutProtectionMetrics metrics;
+
+		private final CountDownLatch available = new CountDownLatch(1);
+
+		private final CountDownLatch completed = new CountDownLatch(1);
+
+		private MonitorFactory monitorFactory;
+
+		private boolean complete;
+
+		private boolean abandoned;
+
+		private boolean claimed;
+
+		private Runnable parked;
+
+		private boolean parkedUntilComplete;
+
+		private List<Runnable> waiters;
+
+		private long pendingBytes;
+
+		public CompletedRequest(TimeoutProtectionMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Publish the given monitor factory, waking any waiting poll.
+		 * @param monitorFactory the monitor factory
+		 * @param complete if the request has completed
+		 * @return <tt>true</tt> if the monitor factory was published or <tt>false</tt> if the entry has been abandoned
+		 */
+		public synchronized boolean publish(MonitorFactory monitorFactory, boolean complete) {
+			if (this.abandoned) {
+				return false;
+			}
+			this.monitorFactory = monitorFactory;
+			this.available.countDown();
+			if (complete) {
+				this.complete = true;
+				this.completed.countDown();
+				if (!this.claimed) {
+					this.pendingBytes = monitorFactory.getReplayableResponse().size();
+					this.metrics.adjust(Gauge.PENDING_RESPONSES, 1);
+					this.metrics.adjust(Gauge.BUFFERED_BYTES, this.pendingBytes);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Wait for a monitor factory to be {@link #publish(MonitorFactory, boolean) published}.
+		 * @param timeout the timeout in milliseconds
+		 * @return <tt>true</tt> if a monitor factory was published
+		 * @throws InterruptedException
+		 */
+		public boolean awaitAvailable(long timeout) throws InterruptedException {
+			return this.available.await(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Wait for the request to complete.
+		 * @param timeout the timeout in milliseconds
+		 * @throws InterruptedException
+		 */
+		public void awaitComplete(long timeout) throws InterruptedException {
+			this.completed.await(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Claim the published monitor factory. If no monitor factory has been published the entry is abandoned, unless
+		 * a batch poll is still waiting on it.
+		 * @return the monitor factory or <tt>null</tt> if the entry has been abandoned or already claimed
+		 */
+		public synchronized MonitorFactory claim() {
+			if (this.monitorFactory == null) {
+				abandon();
+				return null;
+			}
+			if (this.claimed) {
+				return null;
+			}
+			this.claimed = true;
+			if (this.complete) {
+				this.metrics.adjust(Gauge.PENDING_RESPONSES, -1);
+				this.metrics.adjust(Gauge.BUFFERED_BYTES, -this.pendingBytes);
+			}
+			return this.monitorFactory;
+		}
+
+		/**
+		 * Park a resume action until a monitor factory is published or, if <tt>untilComplete</tt>, until the request
+		 * completes. Only a single action can be parked at any time.
+		 * @param resume the resume action
+		 * @param untilComplete if the action should be parked until the request completes
+		 * @return <tt>true</tt> if the action was parked or <tt>false</tt> if the entry is already in the required
+		 * state or another action is parked
+		 */
+		public synchronized boolean park(Runnable resume, boolean untilComplete) {
+			if (this.parked != null || (untilComplete ? this.complete : this.monitorFactory != null)) {
+				return false;
+			}
+			this.parked = resume;
+			this.parkedUntilComplete = untilComplete;
+			return true;
+		}
+
+		/**
+		 * Unpark the given resume action.
+		 * @param resume the resume action
+		 * @return <tt>true</tt> if the action was still parked and should be run by the caller
+		 */
+		public synchronized boolean unpark(Runnable resume) {
+			if (this.parked != resume) {
+				return false;
+			}
+			this.parked = null;
+			return true;
+		}
+
+		/**
+		 * Add a waiter that is run once a monitor factory is published. Unlike {@link #park(Runnable, boolean)} any
+		 * number of waiters can be added.
+		 * @param waiter the waiter
+		 * @return <tt>true</tt> if the waiter was added or <tt>false</tt> if the entry is already
+		 * {@link #isAvailable() available}
+		 */
+		public synchronized boolean addWaiter(Runnable waiter) {
+			if (isAvailable()) {
+				return false;
+			}
+			if (this.waiters == null) {
+				this.waiters = new ArrayList<Runnable>(2);
+			}
+			this.waiters.add(waiter);
+			return true;
+		}
+
+		/**
+		 * Remove a previously added waiter.
+		 * @param waiter the waiter
+		 */
+		public synchronized void removeWaiter(Runnable waiter) {
+			if (this.waiters != null) {
+				this.waiters.remove(waiter);
+			}
+		}
+
+		/**
+		 * Unpark and run any parked action that is now ready to resume, together with any waiters.
+		 */
+		public void unparkReady() {
+			Runnable resume;
+			List<Runnable> waiters;
+			synchronized (this) {
+				if (this.monitorFactory == null) {
+					return;
+				}
+				resume = this.parked;
+				if (resume != null && this.parkedUntilComplete && !this.complete) {
+					resume = null;
+				}
+				if (resume != null) {
+					this.parked = null;
+				}
+				waiters = this.waiters;
+				this.waiters = null;
+			}
+			if (waiters != null) {
+				for (Runnable waiter : waiters) {
+					waiter.run();
+				}
+			}
+			if (resume != null) {
+				resume.run();
+			}
+		}
+
+		/**
+		 * Abandon the entry if no monitor factory has been published and no batch poll is waiting on it.
+		 * @return <tt>true</tt> if the entry has been abandoned
+		 */
+		public synchronized boolean abandon() {
+			if (this.monitorFactory == null && (this.waiters == null || this.waiters.isEmpty())) {
+				this.abandoned = true;
+			}
+			return this.abandoned;
+		}
+
+		/**
+		 * Returns <tt>true</tt> if a monitor factory has been published and not yet claimed.
+		 * @return if the entry is available
+		 */
+		public synchronized boolean isAvailable() {
+			return (this.monitorFactory != null && !this.claimed);
+		}
+
+		public synchronized boolean isComplete() {
+			return this.complete;
+		}
 
-		public boolean isPurgable(long timeout) {
-			return (System.currentTimeMillis() - this.startTime > timeout);
+		public synchronized boolean isAbandoned() {
+			return this.abandoned;
 		}
 	}
 }
@@ -0,0 +1,102 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * {@link AsyncPoll} backed by a Servlet 3.0 <tt>AsyncContext</tt>. Reflection is used so that the filter can continue
+ * to be compiled and deployed against the Servlet 2.5 API, {@link #isSupported(ServletRequest)} should be checked
+ * before {@link #start(ServletRequest, ServletResponse) starting} a poll. The async context is started without a
+ * container timeout, strategies are responsible for completing the poll.
+ * 
+ * @author Phillip Webb
+ */
+public class ServletAsyncPoll implements AsyncPoll {
+
+	private static final String ASYNC_CONTEXT_CLASS = "javax.servlet.AsyncContext";
+
+	private static final Method IS_ASYNC_SUPPORTED = ReflectionUtils.findMethod(ServletRequest.class,
+			"isAsyncSupported");
+
+	private static final Method START_ASYNC = ReflectionUtils.findMethod(ServletRequest.class, "startAsync",
+			ServletRequest.class, ServletResponse.class);
+
+	private static final Method SET_TIMEOUT = findAsyncContextMethod("setTimeout", long.class);
+
+	private static final Method START = findAsyncContextMethod("start", Runnable.class);
+
+	private static final Method COMPLETE = findAsyncContextMethod("complete");
+
+	private final Object asyncContext;
+
+	private final HttpServletResponse response;
+
+	private final AtomicBoolean completed = new AtomicBoolean();
+
+	private ServletAsyncPoll(Object asyncContext, HttpServletResponse response) {
+		this.asyncContext = asyncContext;
+		this.response = response;
+	}
+
+	public HttpServletResponse getResponse() {
+		return this.response;
+	}
+
+	public void dispatch(Runnable action) {
+		ReflectionUtils.invokeMethod(START, this.asyncContext, action);
+	}
+
+	public void complete() {
+		if (this.completed.compareAndSet(false, true)) {
+			ReflectionUtils.invokeMethod(COMPLETE, this.asyncContext);
+		}
+	}
+
+	/**
+	 * Determine if the specified request can be handled asynchronously.
+	 * @param request the request
+	 * @return <tt>true</tt> if Servlet 3.0 async is available and supported by the request
+	 */
+	public static boolean isSupported(ServletRequest request) {
+		if (IS_ASYNC_SUPPORTED == null || START_ASYNC == null || SET_TIMEOUT == null || START == null
+				|| COMPLETE == null) {
+			return false;
+		}
+		return Boolean.TRUE.equals(ReflectionUtils.invokeMethod(IS_ASYNC_SUPPORTED, request));
+	}
+
+	/**
+	 * Start async processing for the specified request.
+	 * @param request the request
+	 * @param response the response
+	 * @return an {@link AsyncPoll} for the request
+	 */
+	public static AsyncPoll start(ServletRequest request, HttpServletResponse response) {
+		Assert.state(isSupported(request), "Async processing is not supported");
+		Object asyncContext = ReflectionUtils.invokeMethod(START_ASYNC, request, request, response);
+		ReflectionUtils.invokeMethod(SET_TIMEOUT, asyncContext, 0L);
+		return new ServletAsyncPoll(asyncContext, response);
+	}
+
+	private static Method findAsyncContextMethod(String name, Class<?>... paramTypes) {
+		ClassLoader classLoader = ServletAsyncPoll.class.getClassLoader();
+		if (!ClassUtils.isPresent(ASYNC_CONTEXT_CLASS, classLoader)) {
+			return null;
+		}
+		try {
+			return ReflectionUtils.findMethod(ClassUtils.forName(ASYNC_CONTEXT_CLASS, classLoader), name, paramTypes);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+}
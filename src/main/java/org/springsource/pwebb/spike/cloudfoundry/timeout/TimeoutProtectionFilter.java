@@ -1,6 +1,7 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -10,8 +11,13 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.util.Assert;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionHttpRequest.Type;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Counter;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitorFactory;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.MonitoredHttpServletResponseWrapper;
 
@@ -22,13 +28,42 @@ import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.MonitoredHttpSe
  * <p>
  * This filter can support a number of different {@link TimeoutProtectionStrategy strategies} including
  * {@link HotSwappingTimeoutProtectionStrategy hot swapping} and {@link ReplayingTimeoutProtectionStrategy replay}.
+ * <p>
+ * When running in a Servlet 3.0 container that supports async processing for the request, poll requests will be
+ * handled {@link AsyncTimeoutProtectionStrategy asynchronously} (assuming that the strategy supports it) so that
+ * waiting polls do not hold a container thread. Async polls can be disabled using {@link #setAsyncPolls(boolean)}.
+ * <p>
+ * An {@link #setExecutor(Executor) executor} can also be set in order to move polls that are not handled
+ * asynchronously off the container thread. This is primarily intended for use with a
+ * {@link VirtualThreadExecutorFactoryBean virtual thread executor} so that the blocking waits performed by strategies
+ * remain cheap. The executor is only used when the container supports async processing for the request. Protected
+ * requests always run the filter chain on the container thread, since the chain cannot safely be used once the
+ * container thread has left the filter. Containers that support virtual threads for request processing should be
+ * configured to do so directly.
+ * <p>
+ * Application code can {@link TimeoutProtectionHttpRequest#detach(javax.servlet.ServletRequest) detach} a protected
+ * request that it knows will be slow. The client is answered immediately with <tt>202 Accepted</tt> and the poll
+ * header, and the remainder of the response is delivered to the poll by the strategy.
+ * <p>
+ * A client with many outstanding requests can use a single {@link TimeoutProtectionHttpHeader#BATCH_POLL batch poll}
+ * rather than one poll per request. Batch polls are only supported by {@link BatchPollTimeoutProtectionStrategy
+ * strategies} that implement them and are never handled asynchronously, although they can still be moved off the
+ * container thread using the executor.
  * 
  * @author Phillip Webb
  */
 public class TimeoutProtectionFilter implements Filter {
 
+	private static final Log logger = LogFactory.getLog(TimeoutProtectionFilter.class);
+
 	private TimeoutProtectionStrategy strategy;
 
+	private boolean asyncPolls = true;
+
+	private Executor executor;
+
+	private TimeoutProtectionMetrics metrics = TimeoutProtectionMetrics.NONE;
+
 	public void init(FilterConfig filterConfig) throws ServletException {
 	}
 
@@ -46,27 +81,177 @@ public class TimeoutProtectionFilter implements Filter {
 			return;
 		}
 
-		if (timeoutProtectionRequest.getType() == Type.POLL) {
-			this.strategy.handlePoll(timeoutProtectionRequest, (HttpServletResponse) response);
+		if (timeoutProtectionRequest.getType() != Type.INITIAL_REQUEST) {
+			this.metrics.increment(Counter.POLLS);
+			handlePoll(timeoutProtectionRequest, request, (HttpServletResponse) response);
 			return;
 		}
 
+		this.metrics.increment(Counter.PROTECTED_REQUESTS);
 		doFilter(timeoutProtectionRequest, (HttpServletResponse) response, chain);
 	}
 
+	private void handlePoll(TimeoutProtectionHttpRequest timeoutProtectionRequest, ServletRequest request,
+			HttpServletResponse response) throws IOException {
+		if (this.asyncPolls && (timeoutProtectionRequest.getType() == Type.POLL)
+				&& (this.strategy instanceof AsyncTimeoutProtectionStrategy) && ServletAsyncPoll.isSupported(request)) {
+			AsyncPoll poll = ServletAsyncPoll.start(request, response);
+			((AsyncTimeoutProtectionStrategy) this.strategy).handleAsyncPoll(timeoutProtectionRequest, poll);
+			return;
+		}
+		if (this.executor != null && ServletAsyncPoll.isSupported(request)) {
+			execute(timeoutProtectionRequest, request, response);
+			return;
+		}
+		handlePoll(timeoutProtectionRequest, response);
+	}
+
+	private void handlePoll(TimeoutProtectionHttpRequest request, HttpServletResponse response) throws IOException {
+		if (request.getType() != Type.BATCH_POLL) {
+			this.strategy.handlePoll(request, response);
+			return;
+		}
+		if (!(this.strategy instanceof BatchPollTimeoutProtectionStrategy)) {
+			response.setStatus(HttpStatus.NOT_IMPLEMENTED.value());
+			return;
+		}
+		if (request.getUids().isEmpty()) {
+			response.setStatus(HttpStatus.BAD_REQUEST.value());
+			return;
+		}
+		((BatchPollTimeoutProtectionStrategy) this.strategy).handleBatchPoll(request, response);
+	}
+
+	/**
+	 * Execute a poll using the {@link #setExecutor(Executor) executor}. The request is put into async mode and
+	 * completed once the executor has finished with it. Polls only use the strategy and the response passed to the
+	 * async context, never the filter chain.
+	 * @param timeoutProtectionRequest the timeout protection request
+	 * @param request the servlet request
+	 * @param response the servlet response
+	 */
+	private void execute(final TimeoutProtectionHttpRequest timeoutProtectionRequest, ServletRequest request,
+			final HttpServletResponse response) {
+		final AsyncPoll async = ServletAsyncPoll.start(request, response);
+		this.executor.execute(new Runnable() {
+			public void run() {
+				try {
+					handlePoll(timeoutProtectionRequest, response);
+				} catch (Exception e) {
+					logger.error("Unable to handle timeout protection poll " + timeoutProtectionRequest.getUid(), e);
+					if (!response.isCommitted()) {
+						response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+					}
+				} finally {
+					async.complete();
+				}
+			}
+		});
+	}
+
 	private void doFilter(TimeoutProtectionHttpRequest request, HttpServletResponse response, FilterChain chain)
 			throws IOException, ServletException {
 		HttpServletResponseMonitorFactory monitor = this.strategy.handleRequest(request);
 		try {
 			MonitoredHttpServletResponseWrapper monitoredHttpResponse = new MonitoredHttpServletResponseWrapper(
 					response, monitor);
-			chain.doFilter(request.getServletRequest(), monitoredHttpResponse);
+			request.setDetachHandler(new ResponseDetachHandler(monitoredHttpResponse));
+			request.getServletRequest().setAttribute(TimeoutProtectionHttpRequest.ATTRIBUTE, request);
+			boolean completed = false;
+			try {
+				chain.doFilter(request.getServletRequest(), monitoredHttpResponse);
+				completed = true;
+			} finally {
+				try {
+					flush(request, monitoredHttpResponse, completed);
+				} finally {
+					request.getServletRequest().removeAttribute(TimeoutProtectionHttpRequest.ATTRIBUTE);
+					request.setDetachHandler(null);
+				}
+			}
 		} finally {
 			this.strategy.afterRequest(request, monitor);
 		}
 	}
 
+	/**
+	 * Flush the monitored response so that pending writes reach the monitor, even when the filter chain has failed.
+	 * Flush failures after a chain failure are logged rather than thrown so that the original exception is not hidden.
+	 * @param request the timeout protection request
+	 * @param monitoredHttpResponse the monitored response
+	 * @param completed if the filter chain completed normally
+	 * @throws IOException
+	 */
+	private void flush(TimeoutProtectionHttpRequest request, MonitoredHttpServletResponseWrapper monitoredHttpResponse,
+			boolean completed) throws IOException {
+		try {
+			monitoredHttpResponse.flush();
+		} catch (IOException e) {
+			if (completed) {
+				throw e;
+			}
+			logger.error("Unable to flush timeout protection response " + request.getUid(), e);
+		} catch (RuntimeException e) {
+			if (completed) {
+				throw e;
+			}
+			logger.error("Unable to flush timeout protection response " + request.getUid(), e);
+		}
+	}
+
+	/**
+	 * {@link TimeoutProtectionHttpRequest.DetachHandler} that answers the client with <tt>202 Accepted</tt> and the
+	 * poll header, leaving the rest of the response to be recorded for the poll.
+	 */
+	private class ResponseDetachHandler implements TimeoutProtectionHttpRequest.DetachHandler {
+
+		private final MonitoredHttpServletResponseWrapper monitoredHttpResponse;
+
+		public ResponseDetachHandler(MonitoredHttpServletResponseWrapper monitoredHttpResponse) {
+			this.monitoredHttpResponse = monitoredHttpResponse;
+		}
+
+		public void detach(TimeoutProtectionHttpRequest request) throws IOException {
+			HttpServletResponse response = this.monitoredHttpResponse.detach();
+			TimeoutProtectionFilter.this.metrics.increment(Counter.DETACHED_REQUESTS);
+			response.setHeader(TimeoutProtectionHttpHeader.POLL, request.getUid());
+			response.setStatus(HttpStatus.ACCEPTED.value());
+			response.setContentLength(0);
+			response.flushBuffer();
+		}
+	}
+
 	public void setProtector(TimeoutProtectionStrategy protector) {
 		this.strategy = protector;
 	}
+
+	/**
+	 * Set if poll requests should be handled asynchronously when supported by both the container and the strategy.
+	 * Defaults to <tt>true</tt>.
+	 * @param asyncPolls if async polls should be used
+	 */
+	public void setAsyncPolls(boolean asyncPolls) {
+		this.asyncPolls = asyncPolls;
+	}
+
+	/**
+	 * Set an {@link Executor} that should be used to run polls that are not handled asynchronously. When the container
+	 * supports async processing polls are dispatched to the executor rather than being run on the container thread.
+	 * Protected requests are always run on the container thread.
+	 * @param executor the executor or <tt>null</tt> to run polls on the container thread
+	 * @see VirtualThreadExecutorFactoryBean
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Set the {@link TimeoutProtectionMetrics} that protected requests and polls are reported to. The same metrics
+	 * should usually also be set on the {@link #setProtector(TimeoutProtectionStrategy) strategy}.
+	 * @param metrics the metrics
+	 */
+	public void setMetrics(TimeoutProtectionMetrics metrics) {
+		Assert.notNull(metrics, "Metrics must not be null");
+		this.metrics = metrics;
+	}
 }
@@ -18,4 +18,10 @@ public class TimeoutProtectionHttpHeader {
 	 */
 	public static final String POLL = "x-cloudfoundry-timeout-protection-poll";
 
+	/**
+	 * Header for a batch poll request, the value is a comma separated list of request uids. Responses to a batch poll
+	 * include the {@link #POLL} header to identify the request that they belong to.
+	 */
+	public static final String BATCH_POLL = "x-cloudfoundry-timeout-protection-batch-poll";
+
 }
@@ -1,18 +1,36 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 
 import org.springframework.http.HttpRequest;
+import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 /**
  * Encapsulates details of a {@link HttpRequest} that includes a Cloud Foundry timeout protection header.
+ * <p>
+ * Whilst a protected request is being handled by the {@link TimeoutProtectionFilter} the instance is available as the
+ * {@link #ATTRIBUTE} request attribute. Application code that knows a request will be slow can
+ * {@link #detach(ServletRequest) detach} it, in which case the client immediately receives a <tt>202 Accepted</tt>
+ * response carrying the poll header and starts polling while the rest of the response is recorded.
  * 
  * @author Phillip Webb
  */
 public class TimeoutProtectionHttpRequest {
 
+	/**
+	 * Name of the request attribute that holds the {@link TimeoutProtectionHttpRequest} of a protected request.
+	 */
+	public static final String ATTRIBUTE = TimeoutProtectionHttpRequest.class.getName() + ".CURRENT";
+
 	/**
 	 * The type of request.
 	 */
@@ -25,7 +43,12 @@ public class TimeoutProtectionHttpRequest {
 		/**
 		 * A poll request initiated following a timeout.
 		 */
-		POLL(TimeoutProtectionHttpHeader.POLL);
+		POLL(TimeoutProtectionHttpHeader.POLL),
+
+		/**
+		 * A single poll for any of a number of requests.
+		 */
+		BATCH_POLL(TimeoutProtectionHttpHeader.BATCH_POLL);
 
 		private String value;
 
@@ -42,12 +65,18 @@ public class TimeoutProtectionHttpRequest {
 		}
 	}
 
+	private static final Type[] TYPES = Type.values();
+
 	private HttpServletRequest request;
 
 	private Type type;
 
 	private String uid;
 
+	private DetachHandler detachHandler;
+
+	private volatile boolean detached;
+
 	/**
 	 * Private constructor. Use {@link #get(ServletRequest)}.
 	 * @param request the request
@@ -77,13 +106,69 @@ public class TimeoutProtectionHttpRequest {
 	}
 
 	/**
-	 * Return the unique ID of the request.
+	 * Return the unique ID of the request. For a {@link Type#BATCH_POLL batch poll} this is the raw header value, use
+	 * {@link #getUids()} to obtain the individual IDs.
 	 * @return the uid.
 	 */
 	public String getUid() {
 		return this.uid;
 	}
 
+	/**
+	 * Return the unique IDs of the requests. Only a {@link Type#BATCH_POLL batch poll} can have more than one ID.
+	 * @return the uids (may be empty if the batch poll header is malformed)
+	 */
+	public List<String> getUids() {
+		if (this.type != Type.BATCH_POLL) {
+			return Collections.singletonList(this.uid);
+		}
+		Set<String> uids = new LinkedHashSet<String>();
+		for (String uid : StringUtils.commaDelimitedListToStringArray(this.uid)) {
+			uid = uid.trim();
+			if (uid.length() > 0) {
+				uids.add(uid);
+			}
+		}
+		return new ArrayList<String>(uids);
+	}
+
+	/**
+	 * Returns <tt>true</tt> if the request has been {@link #detach() detached}.
+	 * @return if the request is detached
+	 */
+	public boolean isDetached() {
+		return this.detached;
+	}
+
+	/**
+	 * Detach the request from the client. The client immediately receives a <tt>202 Accepted</tt> response and starts
+	 * polling, any response written after this call is delivered to the poll. Detaching must happen before anything is
+	 * written to the response. Detaching a request more than once has no effect.
+	 * @return <tt>true</tt> if the request was detached or <tt>false</tt> if the request is not being handled by the
+	 * {@link TimeoutProtectionFilter}
+	 * @throws IOException
+	 */
+	public synchronized boolean detach() throws IOException {
+		Assert.state(this.type == Type.INITIAL_REQUEST, "Only initial requests can be detached");
+		if (this.detached) {
+			return true;
+		}
+		if (this.detachHandler == null) {
+			return false;
+		}
+		this.detachHandler.detach(this);
+		this.detached = true;
+		return true;
+	}
+
+	/**
+	 * Set the handler used to {@link #detach() detach} the request.
+	 * @param detachHandler the detach handler
+	 */
+	void setDetachHandler(DetachHandler detachHandler) {
+		this.detachHandler = detachHandler;
+	}
+
 	/**
 	 * Create a {@link TimeoutProtectionHttpRequest} from the specified {@link ServletRequest} or return <tt>null</tt>
 	 * if not possible.
@@ -93,7 +178,7 @@ public class TimeoutProtectionHttpRequest {
 	public static TimeoutProtectionHttpRequest get(ServletRequest request) {
 		if (request instanceof HttpServletRequest) {
 			HttpServletRequest httpServletRequest = (HttpServletRequest) request;
-			for (Type type : Type.values()) {
+			for (Type type : TYPES) {
 				String uid = type.getUid(httpServletRequest);
 				if (StringUtils.hasLength(uid))
 					return new TimeoutProtectionHttpRequest(httpServletRequest, type, uid);
@@ -101,4 +186,29 @@ public class TimeoutProtectionHttpRequest {
 		}
 		return null;
 	}
+
+	/**
+	 * Detach the protected request currently being handled. This is a convenience for application code that only has
+	 * access to the servlet request.
+	 * @param request the servlet request
+	 * @return <tt>true</tt> if the request was detached or <tt>false</tt> if the request is not protected
+	 * @throws IOException
+	 * @see #detach()
+	 */
+	public static boolean detach(ServletRequest request) throws IOException {
+		Object attribute = request.getAttribute(ATTRIBUTE);
+		if (attribute instanceof TimeoutProtectionHttpRequest) {
+			return ((TimeoutProtectionHttpRequest) attribute).detach();
+		}
+		return false;
+	}
+
+	/**
+	 * Handler used to {@link TimeoutProtectionHttpRequest#detach() detach} a request.
+	 */
+	static interface DetachHandler {
+
+		void detach(TimeoutProtectionHttpRequest request) throws IOException;
+
+	}
 }
@@ -0,0 +1,57 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.util.Assert;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * {@link FactoryBean} that creates an {@link ExecutorService} that starts a new virtual thread for each task. Intended
+ * for use with {@link TimeoutProtectionFilter#setExecutor(java.util.concurrent.Executor)} so that blocking waits
+ * performed by a {@link TimeoutProtectionStrategy} do not consume platform threads. Virtual threads require JDK 21,
+ * reflection is used so that the project can continue to be compiled for earlier JDKs.
+ * 
+ * @author Phillip Webb
+ */
+public class VirtualThreadExecutorFactoryBean implements FactoryBean<ExecutorService>, DisposableBean {
+
+	private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = ReflectionUtils.findMethod(Executors.class,
+			"newVirtualThreadPerTaskExecutor");
+
+	private ExecutorService executor;
+
+	public synchronized ExecutorService getObject() {
+		if (this.executor == null) {
+			Assert.state(isSupported(), "Virtual threads are not supported by this JVM");
+			this.executor = (ExecutorService) ReflectionUtils.invokeMethod(NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR, null);
+		}
+		return this.executor;
+	}
+
+	public Class<?> getObjectType() {
+		return ExecutorService.class;
+	}
+
+	public boolean isSingleton() {
+		return true;
+	}
+
+	public synchronized void destroy() {
+		if (this.executor != null) {
+			this.executor.shutdown();
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * Determine if virtual threads are supported by the running JVM.
+	 * @return <tt>true</tt> if virtual threads are supported
+	 */
+	public static boolean isSupported() {
+		return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+	}
+}
@@ -0,0 +1,230 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Counter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Gauge;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Timer;
+
+/**
+ * Exports {@link StripedTimeoutProtectionMetrics} as a read-only JMX MBean. Each counter and gauge is exposed as an
+ * attribute named after it (for example <tt>ThresholdExceeded</tt>). Each timer is exposed as <tt>Count</tt>,
+ * <tt>Mean</tt>, <tt>P50</tt>, <tt>P99</tt>, <tt>P999</tt> and <tt>Max</tt> attributes (for example
+ * <tt>TimeToPollP99</tt>), latencies are reported in microseconds.
+ * 
+ * @author Phillip Webb
+ */
+public class JmxTimeoutProtectionMetricsExporter implements InitializingBean, DisposableBean {
+
+	/**
+	 * The default object name.
+	 */
+	public static final String DEFAULT_OBJECT_NAME = "org.springsource.pwebb.spike.cloudfoundry.timeout"
+			+ ":type=TimeoutProtectionMetrics";
+
+	private final StripedTimeoutProtectionMetrics metrics;
+
+	private MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+	private String objectName = DEFAULT_OBJECT_NAME;
+
+	private ObjectName registeredName;
+
+	/**
+	 * Create a new {@link JmxTimeoutProtectionMetricsExporter} instance.
+	 * @param metrics the metrics to export
+	 */
+	public JmxTimeoutProtectionMetricsExporter(StripedTimeoutProtectionMetrics metrics) {
+		Assert.notNull(metrics, "Metrics must not be null");
+		this.metrics = metrics;
+	}
+
+	public void afterPropertiesSet() throws Exception {
+		this.registeredName = this.server.registerMBean(new MetricsMBean(this.metrics), new ObjectName(
+				this.objectName)).getObjectName();
+	}
+
+	public void destroy() throws Exception {
+		if (this.registeredName != null) {
+			this.server.unregisterMBean(this.registeredName);
+			this.registeredName = null;
+		}
+	}
+
+	/**
+	 * Set the {@link MBeanServer} used to register the MBean. Defaults to the platform MBean server.
+	 * @param server the MBean server
+	 */
+	public void setServer(MBeanServer server) {
+		Assert.notNull(server, "Server must not be null");
+		this.server = server;
+	}
+
+	/**
+	 * Set the object name used to register the MBean. Defaults to {@link #DEFAULT_OBJECT_NAME}.
+	 * @param objectName the object name
+	 */
+	public void setObjectName(String objectName) {
+		Assert.hasLength(objectName, "ObjectName must not be empty");
+		this.objectName = objectName;
+	}
+
+	/**
+	 * Converts an enum constant such as <tt>TIME_TO_POLL</tt> to an attribute name such as <tt>TimeToPoll</tt>.
+	 */
+	static String getAttributeName(Enum<?> value) {
+		StringBuilder name = new StringBuilder();
+		for (String word : value.name().split("_")) {
+			name.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+		}
+		return name.toString();
+	}
+
+	/**
+	 * A single readable attribute.
+	 */
+	private static abstract class MetricAttribute {
+
+		private final String description;
+
+		public MetricAttribute(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return this.description;
+		}
+
+		public abstract long getValue();
+	}
+
+	/**
+	 * {@link DynamicMBean} exposing the metrics.
+	 */
+	private static class MetricsMBean implements DynamicMBean {
+
+		private final Map<String, MetricAttribute> attributes = new LinkedHashMap<String, MetricAttribute>();
+
+		public MetricsMBean(final StripedTimeoutProtectionMetrics metrics) {
+			for (final Counter counter : Counter.values()) {
+				this.attributes.put(getAttributeName(counter), new MetricAttribute("Counter") {
+
+					@Override
+					public long getValue() {
+						return metrics.getCount(counter);
+					}
+				});
+			}
+			for (final Gauge gauge : Gauge.values()) {
+				this.attributes.put(getAttributeName(gauge), new MetricAttribute("Gauge") {
+
+					@Override
+					public long getValue() {
+						return metrics.getValue(gauge);
+					}
+				});
+			}
+			for (Timer timer : Timer.values()) {
+				final LatencyHistogram histogram = metrics.getHistogram(timer);
+				String name = getAttributeName(timer);
+				this.attributes.put(name + "Count", new MetricAttribute("Number of recorded latencies") {
+
+					@Override
+					public long getValue() {
+						return histogram.getCount();
+					}
+				});
+				this.attributes.put(name + "Mean", new MetricAttribute("Mean latency in microseconds") {
+
+					@Override
+					public long getValue() {
+						return toMicros(histogram.getMean());
+					}
+				});
+				addPercentile(name + "P50", histogram, 50.0);
+				addPercentile(name + "P99", histogram, 99.0);
+				addPercentile(name + "P999", histogram, 99.9);
+				this.attributes.put(name + "Max", new MetricAttribute("Max latency in microseconds") {
+
+					@Override
+					public long getValue() {
+						return toMicros(histogram.getMax());
+					}
+				});
+			}
+		}
+
+		private void addPercentile(String name, final LatencyHistogram histogram, final double percentile) {
+			this.attributes.put(name, new MetricAttribute(percentile + "th percentile latency in microseconds") {
+
+				@Override
+				public long getValue() {
+					return toMicros(histogram.getValueAtPercentile(percentile));
+				}
+			});
+		}
+
+		private long toMicros(long nanos) {
+			return nanos / 1000;
+		}
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			MetricAttribute metricAttribute = this.attributes.get(attribute);
+			if (metricAttribute == null) {
+				throw new AttributeNotFoundException("No attribute named " + attribute);
+			}
+			return metricAttribute.getValue();
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList attributeList = new AttributeList();
+			for (String attribute : attributes) {
+				MetricAttribute metricAttribute = this.attributes.get(attribute);
+				if (metricAttribute != null) {
+					attributeList.add(new Attribute(attribute, metricAttribute.getValue()));
+				}
+			}
+			return attributeList;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read-only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException("No operations are supported");
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributeInfos = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, MetricAttribute> entry : this.attributes.entrySet()) {
+				attributeInfos.add(new MBeanAttributeInfo(entry.getKey(), long.class.getName(), entry.getValue()
+						.getDescription(), true, false, false));
+			}
+			return new MBeanInfo(getClass().getName(), "Timeout protection metrics",
+					attributeInfos.toArray(new MBeanAttributeInfo[attributeInfos.size()]), null,
+					new MBeanOperationInfo[0], null);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.util.Assert;
+
+/**
+ * HDR-style histogram of latencies in nanoseconds. Values are counted in log-linear buckets, each power of two being
+ * divided into {@link #SUB_BUCKETS} linear sub-buckets, so any recorded value is reported to within 12.5% using a
+ * fixed amount of memory. Recording is lock-free and does not allocate.
+ * 
+ * @author Phillip Webb
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/**
+	 * The number of linear sub-buckets per power of two.
+	 */
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final StripedCounter count = new StripedCounter();
+
+	private final StripedCounter total = new StripedCounter();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value.
+	 * @param value the value in nanoseconds, negative values are recorded as zero
+	 */
+	public void record(long value) {
+		value = Math.max(value, 0);
+		this.counts.incrementAndGet(bucketIndex(value));
+		this.count.add(1);
+		this.total.add(value);
+		long max = this.max.get();
+		while (value > max && !this.max.compareAndSet(max, value)) {
+			max = this.max.get();
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 * @return the count
+	 */
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	/**
+	 * Returns the mean of the recorded values or <tt>0</tt> if no values have been recorded.
+	 * @return the mean in nanoseconds
+	 */
+	public long getMean() {
+		long count = getCount();
+		return (count == 0 ? 0 : this.total.sum() / count);
+	}
+
+	/**
+	 * Returns the largest recorded value.
+	 * @return the maximum in nanoseconds
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * Returns the value below which the given percentage of recorded values fall. The highest value of the bucket is
+	 * returned, so the result is never lower than the exact percentile.
+	 * @param percentile the percentile (for example <tt>99.0</tt>)
+	 * @return the value in nanoseconds or <tt>0</tt> if no values have been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		Assert.isTrue(percentile >= 0 && percentile <= 100, "Percentile must be between 0 and 100");
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = this.counts.get(i);
+			count += counts[i];
+		}
+		long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return 0;
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long highestValue(int bucketIndex) {
+		if (bucketIndex < SUB_BUCKETS) {
+			return bucketIndex;
+		}
+		int shift = bucketIndex / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucketIndex % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,44 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads updates over a number of cells in order to reduce contention between threads. Each thread
+ * updates the cell selected by its id, cells are padded so that they do not share a cache line. Reading the counter
+ * sums all cells and is therefore more expensive than an update.
+ * 
+ * @author Phillip Webb
+ */
+class StripedCounter {
+
+	/**
+	 * Number of array slots between cells (a 64 byte cache line of longs).
+	 */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells;
+
+	private final int mask;
+
+	public StripedCounter() {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors()) {
+			stripes <<= 1;
+		}
+		this.mask = stripes - 1;
+		this.cells = new AtomicLongArray(stripes * PADDING);
+	}
+
+	public void add(long delta) {
+		int stripe = (int) Thread.currentThread().getId() & this.mask;
+		this.cells.addAndGet(stripe * PADDING, delta);
+	}
+
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < this.cells.length(); i += PADDING) {
+			sum += this.cells.get(i);
+		}
+		return sum;
+	}
+}
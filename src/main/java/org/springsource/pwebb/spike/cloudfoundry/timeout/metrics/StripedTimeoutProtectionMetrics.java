@@ -0,0 +1,68 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.metrics;
+
+/**
+ * Low-overhead in-memory {@link TimeoutProtectionMetrics}. Counters and gauges are striped across cells to avoid
+ * contention between request threads and latencies are held in {@link LatencyHistogram}s. Values can be read directly
+ * or exported using a {@link JmxTimeoutProtectionMetricsExporter}.
+ * 
+ * @author Phillip Webb
+ */
+public class StripedTimeoutProtectionMetrics implements TimeoutProtectionMetrics {
+
+	private final StripedCounter[] counters = new StripedCounter[Counter.values().length];
+
+	private final StripedCounter[] gauges = new StripedCounter[Gauge.values().length];
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[Timer.values().length];
+
+	public StripedTimeoutProtectionMetrics() {
+		for (int i = 0; i < this.counters.length; i++) {
+			this.counters[i] = new StripedCounter();
+		}
+		for (int i = 0; i < this.gauges.length; i++) {
+			this.gauges[i] = new StripedCounter();
+		}
+		for (int i = 0; i < this.histograms.length; i++) {
+			this.histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	public void increment(Counter counter) {
+		this.counters[counter.ordinal()].add(1);
+	}
+
+	public void adjust(Gauge gauge, long delta) {
+		this.gauges[gauge.ordinal()].add(delta);
+	}
+
+	public void record(Timer timer, long nanos) {
+		this.histograms[timer.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Returns the current value of a counter.
+	 * @param counter the counter
+	 * @return the count
+	 */
+	public long getCount(Counter counter) {
+		return this.counters[counter.ordinal()].sum();
+	}
+
+	/**
+	 * Returns the current value of a gauge.
+	 * @param gauge the gauge
+	 * @return the value
+	 */
+	public long getValue(Gauge gauge) {
+		return this.gauges[gauge.ordinal()].sum();
+	}
+
+	/**
+	 * Returns the histogram for a timer.
+	 * @param timer the timer
+	 * @return the histogram
+	 */
+	public LatencyHistogram getHistogram(Timer timer) {
+		return this.histograms[timer.ordinal()];
+	}
+}
@@ -0,0 +1,131 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.metrics;
+
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionFilter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionStrategy;
+
+/**
+ * SPI used by the {@link TimeoutProtectionFilter} and {@link TimeoutProtectionStrategy strategies} to report the
+ * timeout protection lifecycle. Implementations are called on request threads and must be thread-safe and cheap.
+ * 
+ * @author Phillip Webb
+ * @see StripedTimeoutProtectionMetrics
+ */
+public interface TimeoutProtectionMetrics {
+
+	/**
+	 * {@link TimeoutProtectionMetrics} that discards everything.
+	 */
+	public static final TimeoutProtectionMetrics NONE = new TimeoutProtectionMetrics() {
+
+		public void increment(Counter counter) {
+		}
+
+		public void adjust(Gauge gauge, long delta) {
+		}
+
+		public void record(Timer timer, long nanos) {
+		}
+	};
+
+	/**
+	 * Increment a counter.
+	 * @param counter the counter
+	 */
+	void increment(Counter counter);
+
+	/**
+	 * Adjust a gauge.
+	 * @param gauge the gauge
+	 * @param delta the amount to add (may be negative)
+	 */
+	void adjust(Gauge gauge, long delta);
+
+	/**
+	 * Record a latency.
+	 * @param timer the timer
+	 * @param nanos the latency in nanoseconds
+	 */
+	void record(Timer timer, long nanos);
+
+	/**
+	 * Lifecycle counters.
+	 */
+	public static enum Counter {
+
+		/**
+		 * Requests sent with the initial request header.
+		 */
+		PROTECTED_REQUESTS,
+
+		/**
+		 * Protected requests that were detached by the application, answering the client immediately.
+		 */
+		DETACHED_REQUESTS,
+
+		/**
+		 * Protected requests that passed the threshold.
+		 */
+		THRESHOLD_EXCEEDED,
+
+		/**
+		 * Poll requests.
+		 */
+		POLLS,
+
+		/**
+		 * Polls answered with <tt>204 No Content</tt>, causing the client to poll again.
+		 */
+		EMPTY_POLLS,
+
+		/**
+		 * Responses discarded because no poll arrived before the fail timeout.
+		 */
+		EXPIRED_RESPONSES
+	}
+
+	/**
+	 * Point-in-time gauges.
+	 */
+	public static enum Gauge {
+
+		/**
+		 * Responses held locally awaiting a poll.
+		 */
+		PENDING_RESPONSES,
+
+		/**
+		 * Bytes of completed responses held locally awaiting a poll.
+		 */
+		BUFFERED_BYTES
+	}
+
+	/**
+	 * Latency timers.
+	 */
+	public static enum Timer {
+
+		/**
+		 * Time from the start of a protected request until it is first monitored after passing the threshold.
+		 */
+		TIME_TO_THRESHOLD,
+
+		/**
+		 * Time from a response becoming available until a poll collects it.
+		 */
+		TIME_TO_POLL,
+
+		/**
+		 * Time a thread spends blocked waiting for the other side of a handoff. For
+		 * {@link org.springsource.pwebb.spike.cloudfoundry.timeout.HotSwappingTimeoutProtectionStrategy hot swapping}
+		 * this is the request waiting for a poll, for
+		 * {@link org.springsource.pwebb.spike.cloudfoundry.timeout.ReplayingTimeoutProtectionStrategy replaying} the
+		 * poll waiting for the request.
+		 */
+		HANDOFF_WAIT,
+
+		/**
+		 * Time taken to replay a recorded response to a poll.
+		 */
+		REPLAY
+	}
+}
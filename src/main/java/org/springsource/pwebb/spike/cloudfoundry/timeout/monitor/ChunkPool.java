@@ -0,0 +1,91 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.util.Assert;
+
+/**
+ * A pool of fixed size byte array chunks used by {@link ReplayBuffer}. Chunks that are {@link #release(byte[])
+ * released} are retained for reuse up to a maximum count, allowing buffers to be recycled without additional
+ * allocation.
+ * 
+ * @author Phillip Webb
+ */
+public class ChunkPool {
+
+	/**
+	 * The default chunk size (4 KB).
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+	/**
+	 * A {@link ChunkPool} that does not retain any chunks.
+	 */
+	public static final ChunkPool NONE = new ChunkPool(DEFAULT_CHUNK_SIZE, 0);
+
+	private final int chunkSize;
+
+	private final int maxPooledChunks;
+
+	private final Queue<byte[]> chunks = new ConcurrentLinkedQueue<byte[]>();
+
+	private final AtomicInteger pooledChunks = new AtomicInteger();
+
+	/**
+	 * Create a new {@link ChunkPool} instance.
+	 * @param chunkSize the size of each chunk
+	 * @param maxPooledChunks the maximum number of released chunks that will be retained
+	 */
+	public ChunkPool(int chunkSize, int maxPooledChunks) {
+		Assert.isTrue(chunkSize > 0, "ChunkSize must be positive");
+		Assert.isTrue(maxPooledChunks >= 0, "MaxPooledChunks must not be negative");
+		this.chunkSize = chunkSize;
+		this.maxPooledChunks = maxPooledChunks;
+	}
+
+	/**
+	 * Acquire a chunk from the pool, allocating a new chunk if the pool is empty.
+	 * @return the chunk
+	 */
+	public byte[] acquire() {
+		byte[] chunk = this.chunks.poll();
+		if (chunk == null) {
+			return new byte[this.chunkSize];
+		}
+		this.pooledChunks.decrementAndGet();
+		return chunk;
+	}
+
+	/**
+	 * Release a chunk back to the pool. The chunk must not be used once released.
+	 * @param chunk the chunk to release
+	 */
+	public void release(byte[] chunk) {
+		if (chunk.length != this.chunkSize) {
+			return;
+		}
+		if (this.pooledChunks.incrementAndGet() <= this.maxPooledChunks) {
+			this.chunks.offer(chunk);
+		} else {
+			this.pooledChunks.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the size of the chunks provided by this pool.
+	 * @return the chunk size
+	 */
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+
+	/**
+	 * Returns the number of chunks currently held by the pool.
+	 * @return the pooled chunk count
+	 */
+	public int getPooledChunks() {
+		return this.pooledChunks.get();
+	}
+}
@@ -1,12 +1,9 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.Locale;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.util.Assert;
@@ -17,20 +14,8 @@ import org.springframework.util.Assert;
  * 
  * @author Phillip Webb
  */
-public class DuplicatingHttpServletResponseMonitorFactory extends
-		BridgedHttpServletResponseMonitorFactory<HttpServletResponseMonitor> {
-
-	private static final List<MethodHandler> METHOD_HANDLERS;
-	static {
-		METHOD_HANDLERS = new ArrayList<MethodHandler>();
-		METHOD_HANDLERS.add(new WriteByteMethodHandler());
-		METHOD_HANDLERS.add(new WriteBytesMethodHandler());
-		METHOD_HANDLERS.add(new WriteBytesWithOffsetMethodHandler());
-		METHOD_HANDLERS.add(new EqualsMethodHandler());
-		METHOD_HANDLERS.add(new HashCodeMethodHandler());
-		METHOD_HANDLERS.add(new ToStringMethodHandler());
-		METHOD_HANDLERS.add(new DirectlyMappedMethodHandler());
-	}
+public class DuplicatingHttpServletResponseMonitorFactory implements
+		HttpServletResponseMonitorFactory<HttpServletResponseMonitor> {
 
 	private HttpServletResponse response;
 
@@ -39,25 +24,108 @@ public class DuplicatingHttpServletResponseMonitorFactory extends
 		this.response = response;
 	}
 
-	@Override
-	protected Collection<MethodHandler> getMethodHandlers() {
-		return METHOD_HANDLERS;
+	public HttpServletResponseMonitor getMonitor() {
+		return new DuplicatingHttpServletResponseMonitor(this.response);
 	}
 
-	@Override
-	protected HttpServletResponseBridge newResponseBridge() {
-		return new DuplicatingHttpServletResponseBridge();
-	}
+	/**
+	 * {@link HttpServletResponseMonitor} that directly calls the duplicate {@link HttpServletResponse}.
+	 */
+	private static class DuplicatingHttpServletResponseMonitor implements HttpServletResponseMonitor {
 
-	private class DuplicatingHttpServletResponseBridge implements HttpServletResponseBridge {
+		private final HttpServletResponse response;
 
-		public void invoke(Method method, Object[] args) throws Throwable {
-			method.invoke(DuplicatingHttpServletResponseMonitorFactory.this.response, args);
+		public DuplicatingHttpServletResponseMonitor(HttpServletResponse response) {
+			this.response = response;
 		}
 
-		public OutputStream getOutputStream() throws IOException {
-			return DuplicatingHttpServletResponseMonitorFactory.this.response.getOutputStream();
+		public void addCookie(Cookie cookie) {
+			this.response.addCookie(cookie);
+		}
+
+		public void sendError(int sc, String msg) throws IOException {
+			this.response.sendError(sc, msg);
+		}
+
+		public void sendError(int sc) throws IOException {
+			this.response.sendError(sc);
+		}
+
+		public void sendRedirect(String location) throws IOException {
+			this.response.sendRedirect(location);
+		}
+
+		public void setDateHeader(String name, long date) {
+			this.response.setDateHeader(name, date);
+		}
+
+		public void addDateHeader(String name, long date) {
+			this.response.addDateHeader(name, date);
+		}
+
+		public void setHeader(String name, String value) {
+			this.response.setHeader(name, value);
+		}
+
+		public void addHeader(String name, String value) {
+			this.response.addHeader(name, value);
+		}
+
+		public void setIntHeader(String name, int value) {
+			this.response.setIntHeader(name, value);
+		}
+
+		public void addIntHeader(String name, int value) {
+			this.response.addIntHeader(name, value);
+		}
+
+		public void setStatus(int sc) {
+			this.response.setStatus(sc);
 		}
-	}
 
+		@SuppressWarnings("deprecation")
+		public void setStatus(int sc, String sm) {
+			this.response.setStatus(sc, sm);
+		}
+
+		public void setContentLength(int len) {
+			this.response.setContentLength(len);
+		}
+
+		public void setContentType(String type) {
+			this.response.setContentType(type);
+		}
+
+		public void setBufferSize(int size) {
+			this.response.setBufferSize(size);
+		}
+
+		public void flushBuffer() throws IOException {
+			this.response.flushBuffer();
+		}
+
+		public void reset() {
+			this.response.reset();
+		}
+
+		public void resetBuffer() {
+			this.response.resetBuffer();
+		}
+
+		public void setLocale(Locale loc) {
+			this.response.setLocale(loc);
+		}
+
+		public void write(int b) throws IOException {
+			this.response.getOutputStream().write(b);
+		}
+
+		public void write(byte[] b) throws IOException {
+			this.response.getOutputStream().write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.response.getOutputStream().write(b, off, len);
+		}
+	}
 }
@@ -216,15 +216,17 @@ public interface HttpServletResponseMonitor {
 	 * Monitor a call to the {@link HttpServletResponse#getOutputStream()} {@link ServletOutputStream#write(int)
 	 * write(int)} method.
 	 * @param b the byte to write
+	 * @throws IOException
 	 */
-	void write(int b);
+	void write(int b) throws IOException;
 
 	/**
 	 * Monitor a call to the {@link HttpServletResponse#getOutputStream()} {@link ServletOutputStream#write(byte[])
 	 * write(byte[])} method.
 	 * @param b the byte array to write
+	 * @throws IOException
 	 */
-	void write(byte[] b);
+	void write(byte[] b) throws IOException;
 
 	/**
 	 * Monitor a call to the {@link HttpServletResponse#getOutputStream()}
@@ -233,6 +235,7 @@ public interface HttpServletResponseMonitor {
 	 * @param b the bytes
 	 * @param off the offset
 	 * @param len the length
+	 * @throws IOException
 	 */
-	void write(byte[] b, int off, int len);
+	void write(byte[] b, int off, int len) throws IOException;
 }
@@ -0,0 +1,212 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * A global limit on the number of bytes held in memory by all {@link ReplayBuffer}s that share the budget. Each buffer
+ * is additionally limited by its own maximum in-memory size. When a buffer cannot acquire memory within the budget the
+ * configured {@link Policy} is applied. Counters are provided so that current usage can be monitored.
+ * 
+ * @author Phillip Webb
+ */
+public class MemoryBudget {
+
+	/**
+	 * Policies that can be applied when the budget is exceeded.
+	 */
+	public static enum Policy {
+
+		/**
+		 * Buffers that cannot acquire memory spill to a temporary file.
+		 */
+		SPILL,
+
+		/**
+		 * New requests are not protected while the budget is exceeded, buffers that are already recording spill to a
+		 * temporary file.
+		 */
+		REJECT,
+
+		/**
+		 * The oldest responses are evicted to make room, an evicted response replays as <tt>503 Service
+		 * Unavailable</tt>. Buffers spill to a temporary file if nothing can be evicted.
+		 */
+		EVICT_OLDEST
+
+	}
+
+	private final long limit;
+
+	private Policy policy = Policy.SPILL;
+
+	private final AtomicLong used = new AtomicLong();
+
+	private final AtomicLong peakUsed = new AtomicLong();
+
+	private final AtomicLong spillCount = new AtomicLong();
+
+	private final AtomicLong rejectionCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private final Queue<Evictable> evictables = new ConcurrentLinkedQueue<Evictable>();
+
+	/**
+	 * Create a new {@link MemoryBudget} instance.
+	 * @param limit the maximum number of bytes that can be held in memory
+	 */
+	public MemoryBudget(long limit) {
+		Assert.isTrue(limit >= 0, "Limit must not be negative");
+		this.limit = limit;
+	}
+
+	/**
+	 * Acquire memory from the budget, applying the {@link Policy#EVICT_OLDEST} policy if necessary.
+	 * @param bytes the number of bytes required
+	 * @return <tt>true</tt> if the memory was acquired or <tt>false</tt> if the caller should spill
+	 */
+	boolean acquire(long bytes) {
+		while (true) {
+			long used = this.used.get();
+			if (used + bytes <= this.limit) {
+				if (this.used.compareAndSet(used, used + bytes)) {
+					updatePeak(used + bytes);
+					return true;
+				}
+			} else if (this.policy != Policy.EVICT_OLDEST || !evictOldest()) {
+				this.spillCount.incrementAndGet();
+				return false;
+			}
+		}
+	}
+
+	private void updatePeak(long used) {
+		long peak = this.peakUsed.get();
+		while (used > peak && !this.peakUsed.compareAndSet(peak, used)) {
+			peak = this.peakUsed.get();
+		}
+	}
+
+	private boolean evictOldest() {
+		for (Iterator<Evictable> iterator = this.evictables.iterator(); iterator.hasNext();) {
+			Evictable evictable = iterator.next();
+			if (evictable.evict()) {
+				this.evictables.remove(evictable);
+				this.evictionCount.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Release memory previously {@link #acquire(long) acquired}.
+	 * @param bytes the number of bytes to release
+	 */
+	void release(long bytes) {
+		this.used.addAndGet(-bytes);
+	}
+
+	/**
+	 * Register an item that can be evicted, items are evicted in the order that they are registered.
+	 * @param evictable the evictable item
+	 */
+	void register(Evictable evictable) {
+		this.evictables.add(evictable);
+	}
+
+	/**
+	 * Unregister an item previously {@link #register(Evictable) registered}.
+	 * @param evictable the evictable item
+	 */
+	void unregister(Evictable evictable) {
+		this.evictables.remove(evictable);
+	}
+
+	/**
+	 * Determine if a new request should be protected. Returns <tt>false</tt> only when the {@link Policy#REJECT}
+	 * policy is used and the budget is exhausted.
+	 * @return if a new request can be protected
+	 */
+	public boolean tryProtect() {
+		if (this.policy == Policy.REJECT && this.used.get() >= this.limit) {
+			this.rejectionCount.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Set the policy applied when the budget is exceeded. Defaults to {@link Policy#SPILL}.
+	 * @param policy the policy
+	 */
+	public void setPolicy(Policy policy) {
+		Assert.notNull(policy, "Policy must not be null");
+		this.policy = policy;
+	}
+
+	/**
+	 * Returns the maximum number of bytes that can be held in memory.
+	 * @return the limit
+	 */
+	public long getLimit() {
+		return this.limit;
+	}
+
+	/**
+	 * Returns the number of bytes currently held in memory.
+	 * @return the used bytes
+	 */
+	public long getUsed() {
+		return this.used.get();
+	}
+
+	/**
+	 * Returns the highest number of bytes that have been held in memory.
+	 * @return the peak used bytes
+	 */
+	public long getPeakUsed() {
+		return this.peakUsed.get();
+	}
+
+	/**
+	 * Returns the number of times a buffer could not acquire memory and spilled to a temporary file.
+	 * @return the spill count
+	 */
+	public long getSpillCount() {
+		return this.spillCount.get();
+	}
+
+	/**
+	 * Returns the number of requests that were not protected because the budget was exhausted.
+	 * @return the rejection count
+	 */
+	public long getRejectionCount() {
+		return this.rejectionCount.get();
+	}
+
+	/**
+	 * Returns the number of responses that have been evicted.
+	 * @return the eviction count
+	 */
+	public long getEvictionCount() {
+		return this.evictionCount.get();
+	}
+
+	/**
+	 * An item that holds budgeted memory and can be evicted.
+	 */
+	static interface Evictable {
+
+		/**
+		 * Evict the item, releasing any budgeted memory.
+		 * @return <tt>true</tt> if the item was evicted or <tt>false</tt> if it cannot currently be evicted
+		 */
+		boolean evict();
+	}
+}
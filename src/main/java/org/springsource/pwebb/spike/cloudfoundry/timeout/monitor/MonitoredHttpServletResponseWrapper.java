@@ -18,7 +18,17 @@ import org.springframework.web.util.WebUtils;
  * A {@link HttpServletResponseWrapper wrapper} that can be used to {@link HttpServletResponseMonitor monitor} a
  * {@link HttpServletResponse}. All outgoing data is passed to the monitor as well as to the wrapped response. The
  * monitor is lazily created on the first suitable response invocation using the specified
- * {@link HttpServletResponseMonitorFactory}.
+ * {@link HttpServletResponseMonitorFactory}. If the factory declines to monitor the response (typically because the
+ * request completed under the protection threshold) subsequent output streams and writers are obtained directly from
+ * the wrapped response so that writes do not pay any monitoring cost.
+ * <p>
+ * A single output stream and writer are held for the life of the response. The writer buffers encoded characters
+ * rather than flushing on each line, {@link #flush()} must therefore be called once the response is complete. Small
+ * writes to the output stream are coalesced before being passed to the monitor, pending writes are always passed to
+ * the monitor before any other event so that the monitor observes events in the order that they occurred.
+ * <p>
+ * A wrapper that has not yet been written to can be {@link #detach() detached} from the wrapped response, after which
+ * events are only passed to the monitor.
  * 
  * @see HttpServletResponseMonitor
  * 
@@ -26,6 +36,11 @@ import org.springframework.web.util.WebUtils;
  */
 public class MonitoredHttpServletResponseWrapper extends HttpServletResponseWrapper {
 
+	/**
+	 * The number of bytes that are coalesced before being passed to the monitor.
+	 */
+	private static final int COALESCE_SIZE = 1024;
+
 	private HttpServletResponseMonitorFactory monitorFactory;
 
 	/**
@@ -33,6 +48,10 @@ public class MonitoredHttpServletResponseWrapper extends HttpServletResponseWrap
 	 */
 	private HttpServletResponseMonitor monitor;
 
+	private RecordingServletOutputStream outputStream;
+
+	private PrintWriter writer;
+
 	/**
 	 * Create a new {@link MonitoredHttpServletResponseWrapper} instance.
 	 * @param response the response to wrap.
@@ -49,146 +68,218 @@ public class MonitoredHttpServletResponseWrapper extends HttpServletResponseWrap
 	protected HttpServletResponseMonitor getMonitor() {
 		if (this.monitor == null) {
 			this.monitor = this.monitorFactory.getMonitor();
-		}
-		if (this.monitor == null) {
-			this.monitor = HttpServletResponseMonitor.NONE;
+			if (this.monitor == null) {
+				this.monitor = HttpServletResponseMonitor.NONE;
+			}
+			this.monitorFactory = null;
 		}
 		return this.monitor;
 	}
 
+	/**
+	 * Returns the monitor after first passing it any writes that are pending in the output stream.
+	 * @return the monitor
+	 */
+	private HttpServletResponseMonitor getMonitorInOrder() {
+		if (this.outputStream != null) {
+			try {
+				this.outputStream.writePending();
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to pass pending writes to monitor", e);
+			}
+		}
+		return getMonitor();
+	}
+
+	/**
+	 * Returns <tt>true</tt> if the monitor has been created and the response is not being monitored. This method
+	 * will not trigger the creation of the monitor.
+	 * @return if the response is known to be unmonitored
+	 */
+	private boolean isUnmonitored() {
+		return this.monitor == HttpServletResponseMonitor.NONE;
+	}
+
 	@Override
 	public void addCookie(Cookie cookie) {
 		super.addCookie(cookie);
-		getMonitor().addCookie(cookie);
+		getMonitorInOrder().addCookie(cookie);
 	}
 
 	@Override
 	public void sendError(int sc, String msg) throws IOException {
 		super.sendError(sc, msg);
-		getMonitor().sendError(sc, msg);
+		getMonitorInOrder().sendError(sc, msg);
 	}
 
 	@Override
 	public void sendError(int sc) throws IOException {
 		super.sendError(sc);
-		getMonitor().sendError(sc);
+		getMonitorInOrder().sendError(sc);
 	}
 
 	@Override
 	public void sendRedirect(String location) throws IOException {
 		super.sendRedirect(location);
-		getMonitor().sendRedirect(location);
+		getMonitorInOrder().sendRedirect(location);
 	}
 
 	@Override
 	public void setDateHeader(String name, long date) {
 		super.setDateHeader(name, date);
-		getMonitor().setDateHeader(name, date);
+		getMonitorInOrder().setDateHeader(name, date);
 	}
 
 	@Override
 	public void addDateHeader(String name, long date) {
 		super.addDateHeader(name, date);
-		getMonitor().addDateHeader(name, date);
+		getMonitorInOrder().addDateHeader(name, date);
 	}
 
 	@Override
 	public void setHeader(String name, String value) {
 		super.setHeader(name, value);
-		getMonitor().setHeader(name, value);
+		getMonitorInOrder().setHeader(name, value);
 	}
 
 	@Override
 	public void addHeader(String name, String value) {
 		super.addHeader(name, value);
-		getMonitor().addHeader(name, value);
+		getMonitorInOrder().addHeader(name, value);
 	}
 
 	@Override
 	public void setIntHeader(String name, int value) {
 		super.setIntHeader(name, value);
-		getMonitor().setIntHeader(name, value);
+		getMonitorInOrder().setIntHeader(name, value);
 	}
 
 	@Override
 	public void addIntHeader(String name, int value) {
 		super.addIntHeader(name, value);
-		getMonitor().addIntHeader(name, value);
+		getMonitorInOrder().addIntHeader(name, value);
 	}
 
 	@Override
 	public void setStatus(int sc) {
 		super.setStatus(sc);
-		getMonitor().setStatus(sc);
+		getMonitorInOrder().setStatus(sc);
 	}
 
 	@Override
 	public void setStatus(int sc, String sm) {
 		super.setStatus(sc, sm);
-		getMonitor().setStatus(sc, sm);
+		getMonitorInOrder().setStatus(sc, sm);
 	}
 
 	@Override
 	public void setContentLength(int len) {
 		super.setContentLength(len);
-		getMonitor().setContentLength(len);
+		getMonitorInOrder().setContentLength(len);
 	}
 
 	@Override
 	public void setContentType(String type) {
 		super.setContentType(type);
-		getMonitor().setContentType(type);
+		getMonitorInOrder().setContentType(type);
 	}
 
 	@Override
 	public void setBufferSize(int size) {
 		super.setBufferSize(size);
-		getMonitor().setBufferSize(size);
+		getMonitorInOrder().setBufferSize(size);
 	}
 
 	@Override
 	public void flushBuffer() throws IOException {
+		flush();
 		super.flushBuffer();
-		getMonitor().flushBuffer();
+		getMonitorInOrder().flushBuffer();
 	}
 
 	@Override
 	public void reset() {
+		this.writer = null;
 		super.reset();
-		getMonitor().reset();
+		getMonitorInOrder().reset();
 	}
 
 	@Override
 	public void resetBuffer() {
+		this.writer = null;
 		super.resetBuffer();
-		getMonitor().resetBuffer();
+		getMonitorInOrder().resetBuffer();
 	}
 
 	@Override
 	public void setLocale(Locale loc) {
 		super.setLocale(loc);
-		getMonitor().setLocale(loc);
+		getMonitorInOrder().setLocale(loc);
 	}
 
 	@Override
 	public PrintWriter getWriter() throws IOException {
-		String characterEncoding = getCharacterEncoding();
-		if (characterEncoding == null) {
-			characterEncoding = WebUtils.DEFAULT_CHARACTER_ENCODING;
+		if (this.writer == null) {
+			if (this.outputStream == null && isUnmonitored()) {
+				return super.getWriter();
+			}
+			String characterEncoding = getCharacterEncoding();
+			if (characterEncoding == null) {
+				characterEncoding = WebUtils.DEFAULT_CHARACTER_ENCODING;
+			}
+			Writer out = new OutputStreamWriter(getOutputStream(), characterEncoding);
+			this.writer = new PrintWriter(out, false);
 		}
-		Writer out = new OutputStreamWriter(getOutputStream(), characterEncoding);
-		return new PrintWriter(out, true);
+		return this.writer;
 	}
 
 	@Override
 	public ServletOutputStream getOutputStream() throws IOException {
-		return new RecordingServletOutputStream(super.getOutputStream());
+		if (this.outputStream == null) {
+			if (isUnmonitored()) {
+				return super.getOutputStream();
+			}
+			this.outputStream = new RecordingServletOutputStream(super.getOutputStream());
+		}
+		return this.outputStream;
+	}
+
+	/**
+	 * Flush any characters buffered by the {@link #getWriter() writer} to the output stream and pass any pending
+	 * writes to the monitor. This method should be called once the response is complete.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (this.writer != null) {
+			this.writer.flush();
+		}
+		if (this.outputStream != null) {
+			this.outputStream.writePending();
+		}
+	}
+
+	/**
+	 * Detach the wrapper from the wrapped response. Subsequent events are only passed to the monitor and the wrapped
+	 * response is returned so that the caller can complete it independently. A response can only be detached before
+	 * anything has been written to it.
+	 * @return the wrapped response
+	 */
+	public HttpServletResponse detach() {
+		Assert.state(this.monitor == null && this.outputStream == null && this.writer == null,
+				"Unable to detach a response that has already been written to");
+		HttpServletResponse response = (HttpServletResponse) getResponse();
+		setResponse(new DetachedHttpServletResponse(response));
+		return response;
 	}
 
 	private class RecordingServletOutputStream extends ServletOutputStream {
 
 		private ServletOutputStream outputStream;
 
+		private byte[] pending;
+
+		private int pendingCount;
+
 		public RecordingServletOutputStream(ServletOutputStream outputStream) {
 			this.outputStream = outputStream;
 		}
@@ -196,20 +287,221 @@ public class MonitoredHttpServletResponseWrapper extends HttpServletResponseWrap
 		@Override
 		public void write(int b) throws IOException {
 			this.outputStream.write(b);
-			getMonitor().write(b);
+			if (isMonitored()) {
+				if (this.pendingCount == COALESCE_SIZE) {
+					writePending();
+				}
+				getPending()[this.pendingCount++] = (byte) b;
+			}
 		}
 
 		@Override
 		public void write(byte[] b) throws IOException {
 			this.outputStream.write(b);
-			getMonitor().write(b);
+			if (isMonitored()) {
+				coalesce(b, 0, b.length);
+			}
 		}
 
 		@Override
 		public void write(byte[] b, int off, int len) throws IOException {
 			this.outputStream.write(b, off, len);
-			getMonitor().write(b, off, len);
+			if (isMonitored()) {
+				coalesce(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.outputStream.flush();
+			writePending();
+		}
+
+		private boolean isMonitored() {
+			return getMonitor() != HttpServletResponseMonitor.NONE;
+		}
+
+		private void coalesce(byte[] b, int off, int len) throws IOException {
+			if (this.pendingCount + len > COALESCE_SIZE) {
+				writePending();
+				if (len >= COALESCE_SIZE) {
+					getMonitor().write(b, off, len);
+					return;
+				}
+			}
+			System.arraycopy(b, off, getPending(), this.pendingCount, len);
+			this.pendingCount += len;
+		}
+
+		private byte[] getPending() {
+			if (this.pending == null) {
+				this.pending = new byte[COALESCE_SIZE];
+			}
+			return this.pending;
+		}
+
+		/**
+		 * Pass any pending writes to the monitor.
+		 * @throws IOException
+		 */
+		public void writePending() throws IOException {
+			if (this.pendingCount > 0) {
+				int count = this.pendingCount;
+				this.pendingCount = 0;
+				getMonitor().write(this.pending, 0, count);
+			}
 		}
 	}
 
+	/**
+	 * Stand-in for a response that has been {@link MonitoredHttpServletResponseWrapper#detach() detached}. All events
+	 * are discarded, the content type and character encoding are retained so that writers continue to encode output
+	 * correctly.
+	 */
+	private static class DetachedHttpServletResponse extends HttpServletResponseWrapper {
+
+		private static final String CHARSET = "charset=";
+
+		private final ServletOutputStream outputStream = new ServletOutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+			}
+		};
+
+		private String contentType;
+
+		private String characterEncoding;
+
+		private PrintWriter writer;
+
+		public DetachedHttpServletResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public void addCookie(Cookie cookie) {
+		}
+
+		@Override
+		public boolean containsHeader(String name) {
+			return false;
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException {
+		}
+
+		@Override
+		public void setDateHeader(String name, long date) {
+		}
+
+		@Override
+		public void addDateHeader(String name, long date) {
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+		}
+
+		@Override
+		public void setIntHeader(String name, int value) {
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+		}
+
+		@Override
+		public void setStatus(int sc) {
+		}
+
+		@Override
+		public void setStatus(int sc, String sm) {
+		}
+
+		@Override
+		public void setContentLength(int len) {
+		}
+
+		@Override
+		public void setContentType(String type) {
+			this.contentType = type;
+			int charsetIndex = (type == null ? -1 : type.toLowerCase().indexOf(CHARSET));
+			if (charsetIndex != -1) {
+				String charset = type.substring(charsetIndex + CHARSET.length());
+				int end = charset.indexOf(';');
+				this.characterEncoding = (end == -1 ? charset : charset.substring(0, end)).trim();
+			}
+		}
+
+		@Override
+		public String getContentType() {
+			return this.contentType;
+		}
+
+		@Override
+		public void setCharacterEncoding(String charset) {
+			this.characterEncoding = charset;
+		}
+
+		@Override
+		public String getCharacterEncoding() {
+			return (this.characterEncoding == null ? WebUtils.DEFAULT_CHARACTER_ENCODING : this.characterEncoding);
+		}
+
+		@Override
+		public void setLocale(Locale loc) {
+		}
+
+		@Override
+		public void setBufferSize(int size) {
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+		}
+
+		@Override
+		public void reset() {
+		}
+
+		@Override
+		public void resetBuffer() {
+		}
+
+		@Override
+		public boolean isCommitted() {
+			return false;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			return this.outputStream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (this.writer == null) {
+				this.writer = new PrintWriter(new OutputStreamWriter(this.outputStream, getCharacterEncoding()));
+			}
+			return this.writer;
+		}
+	}
 }
@@ -0,0 +1,278 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.util.Assert;
+
+/**
+ * An {@link OutputStream} used to buffer response bodies so that they can later be replayed. Small bodies are held in
+ * memory as a list of fixed size chunks obtained from a {@link ChunkPool}, once the {@link #ReplayBuffer(int) maximum
+ * in-memory size} is exceeded the buffer spills to a temporary file. Buffered content is
+ * {@link #writeTo(OutputStream) written} directly from the chunks or file without first being copied into a single
+ * byte array. Buffers should be {@link #release() released} once they are no longer required so that chunks can be
+ * returned to the pool. A {@link MemoryBudget} can be used to limit the memory held by all buffers, a buffer that
+ * cannot acquire memory from the budget spills early.
+ * 
+ * @author Phillip Webb
+ */
+public class ReplayBuffer extends OutputStream {
+
+	private static final int FILE_BUFFER_SIZE = 8192;
+
+	private final int maxInMemorySize;
+
+	private final ChunkPool chunkPool;
+
+	private final MemoryBudget memoryBudget;
+
+	/**
+	 * The number of bytes acquired from the memory budget.
+	 */
+	private long budgeted;
+
+	private List<byte[]> chunks = new ArrayList<byte[]>();
+
+	/**
+	 * The number of bytes used in the last chunk.
+	 */
+	private int lastChunkSize;
+
+	private File file;
+
+	private FileChannel fileChannel;
+
+	private OutputStream fileOutputStream;
+
+	private long size;
+
+	/**
+	 * Create a new {@link ReplayBuffer} instance.
+	 * @param maxInMemorySize the maximum number of bytes that will be held in memory before spilling to disk
+	 */
+	public ReplayBuffer(int maxInMemorySize) {
+		this(maxInMemorySize, ChunkPool.NONE);
+	}
+
+	/**
+	 * Create a new {@link ReplayBuffer} instance.
+	 * @param maxInMemorySize the maximum number of bytes that will be held in memory before spilling to disk
+	 * @param chunkPool the pool used to obtain in-memory chunks
+	 */
+	public ReplayBuffer(int maxInMemorySize, ChunkPool chunkPool) {
+		this(maxInMemorySize, chunkPool, null);
+	}
+
+	/**
+	 * Create a new {@link ReplayBuffer} instance.
+	 * @param maxInMemorySize the maximum number of bytes that will be held in memory before spilling to disk
+	 * @param chunkPool the pool used to obtain in-memory chunks
+	 * @param memoryBudget the budget that in-memory chunks are acquired from or <tt>null</tt> if the buffer is only
+	 * limited by the max in-memory size
+	 */
+	public ReplayBuffer(int maxInMemorySize, ChunkPool chunkPool, MemoryBudget memoryBudget) {
+		Assert.isTrue(maxInMemorySize >= 0, "MaxInMemorySize must not be negative");
+		Assert.notNull(chunkPool, "ChunkPool must not be null");
+		this.maxInMemorySize = maxInMemorySize;
+		this.chunkPool = chunkPool;
+		this.memoryBudget = memoryBudget;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (isInMemory(1)) {
+			byte[] chunk = getWritableChunk();
+			chunk[this.lastChunkSize++] = (byte) b;
+		} else {
+			this.fileOutputStream.write(b);
+		}
+		this.size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (isInMemory(len)) {
+			int remaining = len;
+			while (remaining > 0) {
+				byte[] chunk = getWritableChunk();
+				int count = Math.min(remaining, chunk.length - this.lastChunkSize);
+				System.arraycopy(b, off + len - remaining, chunk, this.lastChunkSize, count);
+				this.lastChunkSize += count;
+				remaining -= count;
+			}
+		} else {
+			this.fileOutputStream.write(b, off, len);
+		}
+		this.size += len;
+	}
+
+	private boolean isInMemory(int len) throws IOException {
+		Assert.state(this.chunks != null || this.fileChannel != null, "ReplayBuffer has been released");
+		if (this.fileChannel == null && (this.size + len > this.maxInMemorySize || !acquireBudget(len))) {
+			spill();
+		}
+		return this.fileChannel == null;
+	}
+
+	/**
+	 * Acquire budget for any new chunks required to hold <tt>len</tt> more bytes.
+	 * @param len the number of bytes that will be written
+	 * @return <tt>true</tt> if the budget was acquired
+	 */
+	private boolean acquireBudget(int len) {
+		if (this.memoryBudget == null) {
+			return true;
+		}
+		int free = (this.chunks.isEmpty() ? 0 : this.chunks.get(this.chunks.size() - 1).length - this.lastChunkSize);
+		if (len <= free) {
+			return true;
+		}
+		int chunkSize = this.chunkPool.getChunkSize();
+		long bytes = ((long) (len - free) + chunkSize - 1) / chunkSize * chunkSize;
+		if (!this.memoryBudget.acquire(bytes)) {
+			return false;
+		}
+		this.budgeted += bytes;
+		return true;
+	}
+
+	private byte[] getWritableChunk() {
+		if (this.chunks.isEmpty() || this.lastChunkSize == this.chunks.get(this.chunks.size() - 1).length) {
+			this.chunks.add(this.chunkPool.acquire());
+			this.lastChunkSize = 0;
+		}
+		return this.chunks.get(this.chunks.size() - 1);
+	}
+
+	private void spill() throws IOException {
+		this.file = File.createTempFile("replay", ".buffer");
+		this.fileChannel = new RandomAccessFile(this.file, "rw").getChannel();
+		this.fileOutputStream = new BufferedOutputStream(Channels.newOutputStream(this.fileChannel), FILE_BUFFER_SIZE);
+		writeChunksTo(this.fileOutputStream);
+		releaseChunks();
+	}
+
+	private void writeChunksTo(OutputStream outputStream) throws IOException {
+		int lastChunk = this.chunks.size() - 1;
+		for (int i = 0; i <= lastChunk; i++) {
+			byte[] chunk = this.chunks.get(i);
+			outputStream.write(chunk, 0, (i == lastChunk ? this.lastChunkSize : chunk.length));
+		}
+	}
+
+	private void releaseChunks() {
+		if (this.chunks != null) {
+			for (byte[] chunk : this.chunks) {
+				this.chunkPool.release(chunk);
+			}
+			this.chunks = null;
+		}
+		if (this.budgeted > 0) {
+			this.memoryBudget.release(this.budgeted);
+			this.budgeted = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes that have been buffered.
+	 * @return the size of the buffer
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if the buffer has spilled to disk.
+	 * @return if the buffer has spilled
+	 */
+	public boolean isSpilled() {
+		return this.fileChannel != null;
+	}
+
+	/**
+	 * Write the complete contents of the buffer to the specified output stream.
+	 * @param outputStream the destination output stream
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream outputStream) throws IOException {
+		if (this.fileChannel == null) {
+			Assert.state(this.chunks != null, "ReplayBuffer has been released");
+			writeChunksTo(outputStream);
+			return;
+		}
+		this.fileOutputStream.flush();
+		WritableByteChannel target = Channels.newChannel(outputStream);
+		long position = 0;
+		while (position < this.size) {
+			position += this.fileChannel.transferTo(position, this.size - position, target);
+		}
+	}
+
+	/**
+	 * Read exactly <tt>length</tt> bytes from the specified input stream into the buffer.
+	 * @param inputStream the source input stream
+	 * @param length the number of bytes to read
+	 * @throws IOException
+	 */
+	public void readFrom(InputStream inputStream, long length) throws IOException {
+		long remaining = length;
+		if (length <= Integer.MAX_VALUE && isInMemory((int) length)) {
+			// Read directly into the chunks
+			while (remaining > 0) {
+				byte[] chunk = getWritableChunk();
+				int read = read(inputStream, chunk, this.lastChunkSize, remaining);
+				this.lastChunkSize += read;
+				this.size += read;
+				remaining -= read;
+			}
+			return;
+		}
+		byte[] buffer = new byte[(int) Math.min(length, FILE_BUFFER_SIZE)];
+		while (remaining > 0) {
+			int read = read(inputStream, buffer, 0, remaining);
+			write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+
+	private int read(InputStream inputStream, byte[] b, int off, long remaining) throws IOException {
+		int read = inputStream.read(b, off, (int) Math.min(remaining, b.length - off));
+		if (read == -1) {
+			throw new IOException("Unexpected end of stream, " + remaining + " bytes remaining");
+		}
+		return read;
+	}
+
+	/**
+	 * Release the buffer, returning chunks to the pool and deleting any temporary file. Once released the buffer can no
+	 * longer be used.
+	 */
+	public void release() {
+		releaseChunks();
+		if (this.fileChannel != null) {
+			try {
+				this.fileChannel.close();
+			} catch (IOException e) {
+			}
+			this.fileChannel = null;
+			this.file.delete();
+		}
+	}
+
+	/**
+	 * Returns the maximum number of bytes that are held in memory before the buffer spills to disk.
+	 * @return the max in-memory size
+	 */
+	public int getMaxInMemorySize() {
+		return this.maxInMemorySize;
+	}
+}
@@ -1,6 +1,8 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -18,4 +20,31 @@ public interface ReplayableHttpServletResponse {
 	 */
 	void replay(HttpServletResponse response) throws IOException;
 
+	/**
+	 * Replay all events monitored so far to the specified <tt>response</tt> and then pass any subsequent events
+	 * directly to it. Once attached the response can no longer be replayed.
+	 * @param response the response used to replay and receive events
+	 * @throws IOException
+	 */
+	void attach(HttpServletResponse response) throws IOException;
+
+	/**
+	 * Write the events monitored so far to the specified output stream using a compact versioned binary encoding. The
+	 * response can be recreated using {@link ReplayableHttpServletResponseMonitorFactory#readFrom(InputStream)}.
+	 * @param outputStream the destination output stream
+	 * @throws IOException
+	 */
+	void writeTo(OutputStream outputStream) throws IOException;
+
+	/**
+	 * Returns the number of bytes currently held by the recording, including both the recorded events and the body.
+	 * @return the size of the recording in bytes
+	 */
+	long size();
+
+	/**
+	 * Release any resources held by the recording. Once released the response can no longer be replayed.
+	 */
+	void release();
+
 }
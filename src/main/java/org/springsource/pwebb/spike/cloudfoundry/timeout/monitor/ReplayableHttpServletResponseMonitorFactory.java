@@ -1,179 +1,554 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
 
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.util.Assert;
-import org.springframework.util.FileCopyUtils;
 
 /**
  * {@link HttpServletResponseMonitorFactory} that can be used to create a {@link ReplayableHttpServletResponseMonitor}
  * instance. The {@link ReplayableHttpServletResponseMonitor#getReplayableResponse() responses} returned by this
- * Implementation are {@link Serializable}.
+ * Implementation are {@link Serializable} and can also be {@link ReplayableHttpServletResponse#writeTo(OutputStream)
+ * written} to and {@link #readFrom(InputStream) read} from a stream. Response bodies larger than the
+ * {@link #setMaxInMemorySize(int) maximum in-memory size} are buffered to a temporary file, all other events are held
+ * in a compact {@link ResponseEventLog}.
  * 
  * @author Phillip Webb
  */
-public class ReplayableHttpServletResponseMonitorFactory extends
-		BridgedHttpServletResponseMonitorFactory<ReplayableHttpServletResponseMonitor> {
-
-	private static final List<MethodHandler> METHOD_HANDLERS;
-	static {
-		METHOD_HANDLERS = new ArrayList<MethodHandler>();
-		METHOD_HANDLERS.add(new WriteByteMethodHandler());
-		METHOD_HANDLERS.add(new WriteBytesMethodHandler());
-		METHOD_HANDLERS.add(new WriteBytesWithOffsetMethodHandler());
-		METHOD_HANDLERS.add(new ReplayMethodHandler());
-		METHOD_HANDLERS.add(new EqualsMethodHandler());
-		METHOD_HANDLERS.add(new HashCodeMethodHandler());
-		METHOD_HANDLERS.add(new ToStringMethodHandler());
-		METHOD_HANDLERS.add(new DirectlyMappedMethodHandler());
+public class ReplayableHttpServletResponseMonitorFactory implements
+		HttpServletResponseMonitorFactory<ReplayableHttpServletResponseMonitor> {
+
+	/**
+	 * The default maximum number of body bytes held in memory (1 MB).
+	 */
+	public static final int DEFAULT_MAX_IN_MEMORY_SIZE = 1024 * 1024;
+
+	private int maxInMemorySize = DEFAULT_MAX_IN_MEMORY_SIZE;
+
+	private ChunkPool chunkPool = ChunkPool.NONE;
+
+	private MemoryBudget memoryBudget;
+
+	public ReplayableHttpServletResponseMonitor getMonitor() {
+		return new ReplayableHttpServletResponseMonitorImpl(new ReplayableHttpServletResponseImpl(
+				this.maxInMemorySize, this.chunkPool, this.memoryBudget));
+	}
+
+	/**
+	 * Set the maximum number of response body bytes that will be held in memory. Larger bodies will be buffered to a
+	 * temporary file.
+	 * @param maxInMemorySize the maximum in-memory size in bytes
+	 */
+	public void setMaxInMemorySize(int maxInMemorySize) {
+		this.maxInMemorySize = maxInMemorySize;
 	}
 
-	@Override
-	protected Collection<MethodHandler> getMethodHandlers() {
-		return METHOD_HANDLERS;
+	/**
+	 * Set the {@link ChunkPool} used to obtain in-memory body chunks. Defaults to {@link ChunkPool#NONE}.
+	 * @param chunkPool the chunk pool
+	 */
+	public void setChunkPool(ChunkPool chunkPool) {
+		Assert.notNull(chunkPool, "ChunkPool must not be null");
+		this.chunkPool = chunkPool;
 	}
 
-	@Override
-	protected HttpServletResponseBridge newResponseBridge() {
-		return new ReplayableHttpServletResponseImpl();
+	/**
+	 * Set the {@link MemoryBudget} shared by the bodies of all responses created by this factory. The
+	 * {@link #setMaxInMemorySize(int) maximum in-memory size} remains the limit for each single response.
+	 * @param memoryBudget the memory budget or <tt>null</tt> if only each single response is limited
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
 	}
 
 	/**
-	 * Stores invocations that can subsequently be replayed. Method invocations will be stored and replayed in the order
-	 * that they happen with the exception of {@link OutputStream} <tt>write</tt> methods, these will be collated into a
-	 * single write operation.
+	 * Read a {@link ReplayableHttpServletResponse} from a stream previously written using
+	 * {@link ReplayableHttpServletResponse#writeTo(OutputStream)}. The body of the response will be buffered using the
+	 * {@link #setMaxInMemorySize(int) maximum in-memory size} and {@link #setChunkPool(ChunkPool) chunk pool} of this
+	 * factory.
+	 * @param inputStream the source input stream
+	 * @return the replayable response
+	 * @throws IOException
+	 */
+	public ReplayableHttpServletResponse readFrom(InputStream inputStream) throws IOException {
+		Assert.notNull(inputStream, "InputStream must not be null");
+		ReplayableHttpServletResponseImpl response = new ReplayableHttpServletResponseImpl(this.maxInMemorySize,
+				this.chunkPool, this.memoryBudget);
+		response.readFrom(inputStream);
+		return response;
+	}
+
+	/**
+	 * {@link ReplayableHttpServletResponseMonitor} that directly records calls to a
+	 * {@link ReplayableHttpServletResponseImpl}.
+	 */
+	private static class ReplayableHttpServletResponseMonitorImpl implements ReplayableHttpServletResponseMonitor {
+
+		private final ReplayableHttpServletResponseImpl replayableResponse;
+
+		public ReplayableHttpServletResponseMonitorImpl(ReplayableHttpServletResponseImpl replayableResponse) {
+			this.replayableResponse = replayableResponse;
+		}
+
+		public ReplayableHttpServletResponse getReplayableResponse() {
+			return this.replayableResponse;
+		}
+
+		public void addCookie(Cookie cookie) {
+			this.replayableResponse.record(ResponseEventLog.ADD_COOKIE, cookie, null);
+		}
+
+		public void sendError(int sc, String msg) throws IOException {
+			this.replayableResponse.record(ResponseEventLog.SEND_ERROR_WITH_MESSAGE, sc, msg);
+		}
+
+		public void sendError(int sc) throws IOException {
+			this.replayableResponse.record(ResponseEventLog.SEND_ERROR, sc, null);
+		}
+
+		public void sendRedirect(String location) throws IOException {
+			this.replayableResponse.record(ResponseEventLog.SEND_REDIRECT, location, null);
+		}
+
+		public void setDateHeader(String name, long date) {
+			this.replayableResponse.record(ResponseEventLog.SET_DATE_HEADER, name, date);
+		}
+
+		public void addDateHeader(String name, long date) {
+			this.replayableResponse.record(ResponseEventLog.ADD_DATE_HEADER, name, date);
+		}
+
+		public void setHeader(String name, String value) {
+			this.replayableResponse.record(ResponseEventLog.SET_HEADER, name, value);
+		}
+
+		public void addHeader(String name, String value) {
+			this.replayableResponse.record(ResponseEventLog.ADD_HEADER, name, value);
+		}
+
+		public void setIntHeader(String name, int value) {
+			this.replayableResponse.record(ResponseEventLog.SET_INT_HEADER, name, value);
+		}
+
+		public void addIntHeader(String name, int value) {
+			this.replayableResponse.record(ResponseEventLog.ADD_INT_HEADER, name, value);
+		}
+
+		public void setStatus(int sc) {
+			this.replayableResponse.record(ResponseEventLog.SET_STATUS, sc, null);
+		}
+
+		public void setStatus(int sc, String sm) {
+			this.replayableResponse.record(ResponseEventLog.SET_STATUS_WITH_MESSAGE, sc, sm);
+		}
+
+		public void setContentLength(int len) {
+			this.replayableResponse.record(ResponseEventLog.SET_CONTENT_LENGTH, len, null);
+		}
+
+		public void setContentType(String type) {
+			this.replayableResponse.record(ResponseEventLog.SET_CONTENT_TYPE, type, null);
+		}
+
+		public void setBufferSize(int size) {
+			this.replayableResponse.record(ResponseEventLog.SET_BUFFER_SIZE, size, null);
+		}
+
+		public void flushBuffer() throws IOException {
+			this.replayableResponse.record(ResponseEventLog.FLUSH_BUFFER, null, null);
+		}
+
+		public void reset() {
+			this.replayableResponse.record(ResponseEventLog.RESET, null, null);
+		}
+
+		public void resetBuffer() {
+			this.replayableResponse.record(ResponseEventLog.RESET_BUFFER, null, null);
+		}
+
+		public void setLocale(Locale loc) {
+			this.replayableResponse.record(ResponseEventLog.SET_LOCALE, loc, null);
+		}
+
+		public void write(int b) throws IOException {
+			this.replayableResponse.write(b);
+		}
+
+		public void write(byte[] b) throws IOException {
+			this.replayableResponse.write(b, 0, b.length);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.replayableResponse.write(b, off, len);
+		}
+	}
+
+	/**
+	 * Stores events that can subsequently be replayed. Events will be stored in a {@link ResponseEventLog} and replayed
+	 * in the order that they happen with the exception of {@link OutputStream} <tt>write</tt> methods, these will be
+	 * collated into a single write operation at the point of the first write. Once {@link #attach(HttpServletResponse)
+	 * attached} events are no longer stored but are instead passed directly to the attached response. A {@link Lock}
+	 * rather than <tt>synchronized</tt> is used to guard state since writes to an attached response may block, and a
+	 * blocked virtual thread must not hold a monitor. Java serialization is supported by delegating to
+	 * {@link #writeTo(OutputStream)}. When a {@link MemoryBudget} is used the response can be
+	 * {@link #evict() evicted}, after which it replays as <tt>503 Service Unavailable</tt>.
 	 */
 	private static class ReplayableHttpServletResponseImpl implements ReplayableHttpServletResponse,
-			HttpServletResponseBridge, Serializable {
+			MemoryBudget.Evictable, Serializable {
+
+		private static final long serialVersionUID = 1L;
 
-		private List<ReplayableInvocation> replayableInvocations = new ArrayList<ReplayableInvocation>();
+		/**
+		 * Leading bytes of the binary encoding ("RHSR").
+		 */
+		private static final int MAGIC = 0x52485352;
+
+		private static final byte VERSION = 1;
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private final ResponseEventLog log = new ResponseEventLog();
+
+		private final int maxInMemorySize;
+
+		private final ChunkPool chunkPool;
+
+		private final MemoryBudget memoryBudget;
+
+		private boolean evicted;
+
+		/**
+		 * The response body, lazily created on the first write at which point a {@link ResponseEventLog#BODY} marker
+		 * is also recorded.
+		 */
+		private ReplayableBody body;
 
 		/**
-		 * Provides access to the single output stream invocation. This will be lazily created when need and will also
-		 * appear as an entry in {@link #replayableInvocations}.
+		 * The response that events are passed to once {@link #attach(HttpServletResponse) attached}.
 		 */
-		private ReplayableOutputStreamInvocation outputStreamInvocation;
+		private HttpServletResponse attachedResponse;
 
-		public void invoke(Method method, Object[] args) throws Throwable {
-			Assert.isTrue(method.getDeclaringClass().isAssignableFrom(HttpServletResponse.class),
-					"Method must be from HttpServletResponse");
-			this.replayableInvocations.add(new ReplayableMethodInvocation(method, args));
+		public ReplayableHttpServletResponseImpl(int maxInMemorySize, ChunkPool chunkPool, MemoryBudget memoryBudget) {
+			this.maxInMemorySize = maxInMemorySize;
+			this.chunkPool = chunkPool;
+			this.memoryBudget = memoryBudget;
 		}
 
 		/**
-		 * Returns a previously create {@link OutputStream} or records an invocation and returns a new
-		 * {@link OutputStream}.
+		 * Record an event unless evicted, passing it directly to any attached response.
+		 * @param opcode the event opcode
+		 * @param operand the first operand or <tt>null</tt>
+		 * @param value the second operand or <tt>null</tt>
+		 * @see ResponseEventLog#write(byte, Object, Object)
+		 */
+		private void record(byte opcode, Object operand, Object value) {
+			this.lock.lock();
+			try {
+				if (!this.evicted) {
+					this.log.write(opcode, operand, value);
+					recorded();
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Called with the lock held after an event has been recorded to pass it directly to any attached response.
+		 */
+		private void recorded() {
+			if (this.attachedResponse != null) {
+				try {
+					this.log.replay(this.attachedResponse, null);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				} finally {
+					this.log.clear();
+				}
+			}
+		}
+
+		/**
+		 * Record a write to the response output stream.
+		 * @param b the byte to write
+		 * @throws IOException
+		 */
+		public void write(int b) throws IOException {
+			this.lock.lock();
+			try {
+				if (this.attachedResponse != null) {
+					this.attachedResponse.getOutputStream().write(b);
+				} else {
+					getOutputStream().write(b);
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Record a write to the response output stream.
+		 * @param b the bytes
+		 * @param off the offset
+		 * @param len the length
+		 * @throws IOException
+		 */
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.lock.lock();
+			try {
+				if (this.attachedResponse != null) {
+					this.attachedResponse.getOutputStream().write(b, off, len);
+				} else {
+					getOutputStream().write(b, off, len);
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Returns a previously create {@link OutputStream} or records a {@link ResponseEventLog#BODY} marker and
+		 * returns a new {@link OutputStream}.
 		 * @return the output stream
 		 */
-		public OutputStream getOutputStream() throws IOException {
-			if (this.outputStreamInvocation == null) {
-				this.outputStreamInvocation = new ReplayableOutputStreamInvocation();
-				this.replayableInvocations.add(this.outputStreamInvocation);
+		private OutputStream getOutputStream() {
+			if (this.evicted) {
+				return DiscardingOutputStream.INSTANCE;
+			}
+			if (this.body == null) {
+				this.body = new ReplayableBody(this.maxInMemorySize, this.chunkPool, this.memoryBudget);
+				this.log.write(ResponseEventLog.BODY);
+				if (this.memoryBudget != null) {
+					this.memoryBudget.register(this);
+				}
 			}
-			return this.outputStreamInvocation.getOutputStream();
+			return this.body.getOutputStream();
 		}
 
 		/**
-		 * Replay all invocations to the specified response.
-		 * @param response the response used to replay invocation
+		 * Replay all events to the specified response.
+		 * @param response the response used to replay events
 		 * @throws IOException
 		 */
 		public void replay(HttpServletResponse response) throws IOException {
-			for (ReplayableInvocation replayableInvocation : this.replayableInvocations) {
-				replayableInvocation.replay(response);
+			this.lock.lock();
+			try {
+				Assert.state(this.attachedResponse == null, "Unable to replay an attached response");
+				this.log.replay(response, this.body);
+			} finally {
+				this.lock.unlock();
 			}
 		}
-	}
 
-	/**
-	 * A single {@link ReplayableInvocation}.
-	 */
-	private static interface ReplayableInvocation extends Serializable {
+		public void attach(HttpServletResponse response) throws IOException {
+			this.lock.lock();
+			try {
+				replay(response);
+				this.attachedResponse = response;
+				this.log.clear();
+				release();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		public long size() {
+			this.lock.lock();
+			try {
+				return this.log.size() + (this.body == null ? 0 : this.body.getBuffer().size());
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		public void release() {
+			this.lock.lock();
+			try {
+				if (this.body != null) {
+					this.body.release();
+					if (this.memoryBudget != null) {
+						this.memoryBudget.unregister(this);
+					}
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Evict the response, releasing the body and replacing all recorded events with a <tt>503 Service
+		 * Unavailable</tt> error. Further events are discarded. A response that is locked by the current thread,
+		 * cannot be locked immediately or is attached is not evicted.
+		 */
+		public boolean evict() {
+			if (this.lock.isHeldByCurrentThread() || !this.lock.tryLock()) {
+				return false;
+			}
+			try {
+				if (this.evicted || this.attachedResponse != null) {
+					return false;
+				}
+				this.evicted = true;
+				if (this.body != null) {
+					this.body.release();
+					this.body = null;
+				}
+				this.log.clear();
+				this.log.write(ResponseEventLog.SEND_ERROR, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				return true;
+			} finally {
+				this.lock.unlock();
+			}
+		}
 
 		/**
-		 * Replay the invocation
-		 * @param response the response used to replay invocation
+		 * Write the response using the binary encoding: the {@link #MAGIC} int and {@link #VERSION} byte, the
+		 * {@link ResponseEventLog}, then a boolean body flag followed by the body length and bytes.
+		 */
+		public void writeTo(OutputStream outputStream) throws IOException {
+			Assert.notNull(outputStream, "OutputStream must not be null");
+			this.lock.lock();
+			try {
+				Assert.state(this.attachedResponse == null, "Unable to write an attached response");
+				DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+				dataOutputStream.writeInt(MAGIC);
+				dataOutputStream.writeByte(VERSION);
+				this.log.writeTo(dataOutputStream);
+				dataOutputStream.writeBoolean(this.body != null);
+				if (this.body != null) {
+					dataOutputStream.writeLong(this.body.getBuffer().size());
+					this.body.getBuffer().writeTo(dataOutputStream);
+				}
+				dataOutputStream.flush();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Read a response previously written using {@link #writeTo(OutputStream)}.
+		 * @param inputStream the source input stream
 		 * @throws IOException
 		 */
-		void replay(HttpServletResponse response) throws IOException;
+		public void readFrom(InputStream inputStream) throws IOException {
+			this.lock.lock();
+			try {
+				DataInputStream dataInputStream = new DataInputStream(inputStream);
+				if (dataInputStream.readInt() != MAGIC) {
+					throw new IOException("Stream does not contain a replayable response");
+				}
+				byte version = dataInputStream.readByte();
+				if (version != VERSION) {
+					throw new IOException("Unsupported replayable response version " + version);
+				}
+				this.log.readFrom(dataInputStream);
+				if (dataInputStream.readBoolean()) {
+					this.body = new ReplayableBody(this.maxInMemorySize, this.chunkPool, this.memoryBudget);
+					this.body.getBuffer().readFrom(dataInputStream, dataInputStream.readLong());
+					if (this.memoryBudget != null) {
+						this.memoryBudget.register(this);
+					}
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		private Object writeReplace() {
+			return new SerializedReplayableResponse(this);
+		}
 	}
 
 	/**
-	 * A {@link ReplayableInvocation} for a method call.
+	 * Java serialization proxy for {@link ReplayableHttpServletResponseImpl}.
 	 */
-	private static class ReplayableMethodInvocation implements ReplayableInvocation {
+	private static class SerializedReplayableResponse implements Serializable {
 
-		private Method method;
-		private Object[] args;
+		/**
+		 * Fixed so that the stream class descriptor stays stable, changes to the encoding are tracked by
+		 * {@link ReplayableHttpServletResponseImpl#VERSION}.
+		 */
+		private static final long serialVersionUID = 1L;
 
-		public ReplayableMethodInvocation(Method method, Object[] args) {
-			this.method = method;
-			this.args = args;
+		private transient ReplayableHttpServletResponseImpl response;
+
+		public SerializedReplayableResponse(ReplayableHttpServletResponseImpl response) {
+			this.response = response;
 		}
 
-		public void replay(HttpServletResponse response) {
-			try {
-				this.method.invoke(response, this.args);
-			} catch (Exception e) {
-				throw new IllegalStateException(e);
-			}
+		private void writeObject(ObjectOutputStream objectOutputStream) throws IOException {
+			objectOutputStream.defaultWriteObject();
+			objectOutputStream.writeInt(this.response.maxInMemorySize);
+			this.response.writeTo(objectOutputStream);
+		}
+
+		private void readObject(ObjectInputStream objectInputStream) throws ClassNotFoundException, IOException {
+			objectInputStream.defaultReadObject();
+			this.response = new ReplayableHttpServletResponseImpl(objectInputStream.readInt(), ChunkPool.NONE, null);
+			this.response.readFrom(objectInputStream);
+		}
+
+		private Object readResolve() {
+			return this.response;
 		}
 	}
 
 	/**
-	 * A {@link ReplayableInvocation} for {@link OutputStream} <tt>write</tt> operations.
+	 * The {@link ResponseEventLog.Body} of a replayable response.
 	 */
-	private static class ReplayableOutputStreamInvocation implements ReplayableInvocation {
+	private static class ReplayableBody implements ResponseEventLog.Body {
 
-		private transient ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		private final ReplayBuffer buffer;
+
+		public ReplayableBody(int maxInMemorySize, ChunkPool chunkPool, MemoryBudget memoryBudget) {
+			this.buffer = new ReplayBuffer(maxInMemorySize, chunkPool, memoryBudget);
+		}
+
+		public ReplayBuffer getBuffer() {
+			return this.buffer;
+		}
 
 		public OutputStream getOutputStream() {
-			return this.outputStream;
+			return this.buffer;
 		}
 
 		public void replay(HttpServletResponse response) throws IOException {
 			ServletOutputStream servletOutputStream = response.getOutputStream();
-			FileCopyUtils.copy(this.outputStream.toByteArray(), servletOutputStream);
+			this.buffer.writeTo(servletOutputStream);
 			servletOutputStream.flush();
 		}
 
-		private void writeObject(ObjectOutputStream objectOutputStream) throws IOException {
-			objectOutputStream.defaultWriteObject();
-			byte[] bytes = this.outputStream.toByteArray();
-			objectOutputStream.writeObject(bytes);
-		}
-
-		private void readObject(ObjectInputStream objectInputStream) throws ClassNotFoundException, IOException {
-			objectInputStream.defaultReadObject();
-			byte[] bytes = (byte[]) objectInputStream.readObject();
-			this.outputStream = new ByteArrayOutputStream(bytes.length);
-			this.outputStream.write(bytes);
+		public void release() {
+			this.buffer.release();
 		}
 	}
 
 	/**
-	 * {@link MethodHandler} to deal with {@link ReplayableHttpServletResponseMonitor#replay(HttpServletResponse)}.
+	 * {@link OutputStream} used to discard writes to an evicted response.
 	 */
-	private static class ReplayMethodHandler extends AbstractMethodHandler {
-		public ReplayMethodHandler() {
-			super("getReplayableResponse");
+	private static class DiscardingOutputStream extends OutputStream {
+
+		public static final DiscardingOutputStream INSTANCE = new DiscardingOutputStream();
+
+		@Override
+		public void write(int b) {
 		}
 
-		public Object invoke(HttpServletResponseBridge bridge, Object proxy, Method method, Object[] args)
-				throws Throwable {
-			return bridge;
+		@Override
+		public void write(byte[] b, int off, int len) {
 		}
 	}
 }
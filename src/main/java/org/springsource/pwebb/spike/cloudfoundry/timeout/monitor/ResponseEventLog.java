@@ -0,0 +1,477 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.util.Assert;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * A compact log of {@link HttpServletResponse} events. Each event is held as a single opcode byte followed by its
+ * operands in a growable byte array, common header names are interned as a single byte. Events are
+ * {@link #replay(HttpServletResponse, Body) replayed} using direct calls in the order that they were recorded. The
+ * response body is not held by the log, instead a {@link #BODY} marker records the point at which the body was first
+ * written. Events can be {@link #writeTo(DataOutputStream) written} to and {@link #readFrom(DataInputStream) read}
+ * from a stream. Instances are not thread-safe.
+ * 
+ * @author Phillip Webb
+ */
+class ResponseEventLog {
+
+	static final byte ADD_COOKIE = 1;
+	static final byte SEND_ERROR = 2;
+	static final byte SEND_ERROR_WITH_MESSAGE = 3;
+	static final byte SEND_REDIRECT = 4;
+	static final byte SET_DATE_HEADER = 5;
+	static final byte ADD_DATE_HEADER = 6;
+	static final byte SET_HEADER = 7;
+	static final byte ADD_HEADER = 8;
+	static final byte SET_INT_HEADER = 9;
+	static final byte ADD_INT_HEADER = 10;
+	static final byte SET_STATUS = 11;
+	static final byte SET_STATUS_WITH_MESSAGE = 12;
+	static final byte SET_CONTENT_LENGTH = 13;
+	static final byte SET_CONTENT_TYPE = 14;
+	static final byte SET_BUFFER_SIZE = 15;
+	static final byte FLUSH_BUFFER = 16;
+	static final byte RESET = 17;
+	static final byte RESET_BUFFER = 18;
+	static final byte SET_LOCALE = 19;
+	static final byte BODY = 20;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String[] COMMON_NAMES = { "Cache-Control", "Content-Disposition", "Content-Encoding",
+			"Content-Language", "Content-Length", "Content-Type", "Date", "ETag", "Expires", "Last-Modified",
+			"Location", "Pragma", "Set-Cookie", "Vary", "X-Frame-Options", "X-Content-Type-Options" };
+
+	private static final Map<String, Integer> COMMON_NAME_INDEXES;
+	static {
+		COMMON_NAME_INDEXES = new HashMap<String, Integer>();
+		for (int i = 0; i < COMMON_NAMES.length; i++) {
+			COMMON_NAME_INDEXES.put(COMMON_NAMES[i], i + 1);
+		}
+	}
+
+	/**
+	 * Servlet 3.0 HTTP only cookie methods, <tt>null</tt> when running with an earlier API.
+	 */
+	private static final Method IS_HTTP_ONLY = ReflectionUtils.findMethod(Cookie.class, "isHttpOnly");
+	private static final Method SET_HTTP_ONLY = ReflectionUtils.findMethod(Cookie.class, "setHttpOnly",
+			boolean.class);
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private byte[] data = new byte[INITIAL_CAPACITY];
+
+	private int size;
+
+	private int position;
+
+	/**
+	 * Record an event without operands.
+	 * @param opcode the event opcode
+	 */
+	public void write(byte opcode) {
+		writeByte(opcode);
+	}
+
+	/**
+	 * Record an event with an int operand.
+	 * @param opcode the event opcode
+	 * @param value the operand
+	 */
+	public void write(byte opcode, int value) {
+		writeByte(opcode);
+		writeInt(value);
+	}
+
+	/**
+	 * Record an event with an int and a string operand.
+	 * @param opcode the event opcode
+	 * @param value the int operand
+	 * @param string the string operand
+	 */
+	public void write(byte opcode, int value, String string) {
+		writeByte(opcode);
+		writeInt(value);
+		writeString(string);
+	}
+
+	/**
+	 * Record an event with a string operand.
+	 * @param opcode the event opcode
+	 * @param string the operand
+	 */
+	public void write(byte opcode, String string) {
+		writeByte(opcode);
+		writeString(string);
+	}
+
+	/**
+	 * Record a header event with a string value.
+	 * @param opcode the event opcode
+	 * @param name the header name
+	 * @param value the header value
+	 */
+	public void write(byte opcode, String name, String value) {
+		writeByte(opcode);
+		writeName(name);
+		writeString(value);
+	}
+
+	/**
+	 * Record a header event with a long value.
+	 * @param opcode the event opcode
+	 * @param name the header name
+	 * @param value the header value
+	 */
+	public void write(byte opcode, String name, long value) {
+		writeByte(opcode);
+		writeName(name);
+		writeLong(value);
+	}
+
+	/**
+	 * Record a header event with an int value.
+	 * @param opcode the event opcode
+	 * @param name the header name
+	 * @param value the header value
+	 */
+	public void write(byte opcode, String name, int value) {
+		writeByte(opcode);
+		writeName(name);
+		writeInt(value);
+	}
+
+	/**
+	 * Record an {@link #ADD_COOKIE} event.
+	 * @param cookie the cookie
+	 */
+	public void write(Cookie cookie) {
+		writeByte(ADD_COOKIE);
+		writeString(cookie.getName());
+		writeString(cookie.getValue());
+		writeString(cookie.getComment());
+		writeString(cookie.getDomain());
+		writeInt(cookie.getMaxAge());
+		writeString(cookie.getPath());
+		writeByte((byte) ((cookie.getSecure() ? 1 : 0) | (isHttpOnly(cookie) ? 2 : 0)));
+		writeInt(cookie.getVersion());
+	}
+
+	/**
+	 * Record a {@link #SET_LOCALE} event.
+	 * @param locale the locale
+	 */
+	public void write(Locale locale) {
+		writeByte(SET_LOCALE);
+		writeString(locale.getLanguage());
+		writeString(locale.getCountry());
+		writeString(locale.getVariant());
+	}
+
+	/**
+	 * Record any event, dispatching on the opcode to the typed <tt>write</tt> method. Int and long operands are passed
+	 * boxed.
+	 * @param opcode the event opcode
+	 * @param operand the first operand (for example the status code, header name, cookie or locale) or <tt>null</tt>
+	 * @param value the second operand (for example the message or header value) or <tt>null</tt>
+	 */
+	public void write(byte opcode, Object operand, Object value) {
+		switch (opcode) {
+		case ADD_COOKIE:
+			write((Cookie) operand);
+			break;
+		case SEND_ERROR:
+		case SET_STATUS:
+		case SET_CONTENT_LENGTH:
+		case SET_BUFFER_SIZE:
+			write(opcode, ((Integer) operand).intValue());
+			break;
+		case SEND_ERROR_WITH_MESSAGE:
+		case SET_STATUS_WITH_MESSAGE:
+			write(opcode, ((Integer) operand).intValue(), (String) value);
+			break;
+		case SEND_REDIRECT:
+		case SET_CONTENT_TYPE:
+			write(opcode, (String) operand);
+			break;
+		case SET_DATE_HEADER:
+		case ADD_DATE_HEADER:
+			write(opcode, (String) operand, ((Long) value).longValue());
+			break;
+		case SET_HEADER:
+		case ADD_HEADER:
+			write(opcode, (String) operand, (String) value);
+			break;
+		case SET_INT_HEADER:
+		case ADD_INT_HEADER:
+			write(opcode, (String) operand, ((Integer) value).intValue());
+			break;
+		case SET_LOCALE:
+			write((Locale) operand);
+			break;
+		case FLUSH_BUFFER:
+		case RESET:
+		case RESET_BUFFER:
+		case BODY:
+			write(opcode);
+			break;
+		default:
+			throw new IllegalStateException("Unknown response event opcode " + opcode);
+		}
+	}
+
+	/**
+	 * Replay all recorded events to the specified response.
+	 * @param response the response
+	 * @param body the body that is replayed in place of the {@link #BODY} marker
+	 * @throws IOException
+	 */
+	public void replay(HttpServletResponse response, Body body) throws IOException {
+		this.position = 0;
+		while (this.position < this.size) {
+			byte opcode = readByte();
+			switch (opcode) {
+			case ADD_COOKIE:
+				response.addCookie(readCookie());
+				break;
+			case SEND_ERROR:
+				response.sendError(readInt());
+				break;
+			case SEND_ERROR_WITH_MESSAGE:
+				response.sendError(readInt(), readString());
+				break;
+			case SEND_REDIRECT:
+				response.sendRedirect(readString());
+				break;
+			case SET_DATE_HEADER:
+				response.setDateHeader(readName(), readLong());
+				break;
+			case ADD_DATE_HEADER:
+				response.addDateHeader(readName(), readLong());
+				break;
+			case SET_HEADER:
+				response.setHeader(readName(), readString());
+				break;
+			case ADD_HEADER:
+				response.addHeader(readName(), readString());
+				break;
+			case SET_INT_HEADER:
+				response.setIntHeader(readName(), readInt());
+				break;
+			case ADD_INT_HEADER:
+				response.addIntHeader(readName(), readInt());
+				break;
+			case SET_STATUS:
+				response.setStatus(readInt());
+				break;
+			case SET_STATUS_WITH_MESSAGE:
+				setStatus(response, readInt(), readString());
+				break;
+			case SET_CONTENT_LENGTH:
+				response.setContentLength(readInt());
+				break;
+			case SET_CONTENT_TYPE:
+				response.setContentType(readString());
+				break;
+			case SET_BUFFER_SIZE:
+				response.setBufferSize(readInt());
+				break;
+			case FLUSH_BUFFER:
+				response.flushBuffer();
+				break;
+			case RESET:
+				response.reset();
+				break;
+			case RESET_BUFFER:
+				response.resetBuffer();
+				break;
+			case SET_LOCALE:
+				response.setLocale(new Locale(readString(), readString(), readString()));
+				break;
+			case BODY:
+				body.replay(response);
+				break;
+			default:
+				throw new IllegalStateException("Unknown response event opcode " + opcode);
+			}
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private void setStatus(HttpServletResponse response, int sc, String sm) {
+		response.setStatus(sc, sm);
+	}
+
+	/**
+	 * Remove all recorded events.
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+
+	/**
+	 * Returns the number of bytes used to hold the recorded events.
+	 * @return the size of the log
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Write the recorded events to the specified output stream.
+	 * @param outputStream the destination output stream
+	 * @throws IOException
+	 * @see #readFrom(DataInputStream)
+	 */
+	public void writeTo(DataOutputStream outputStream) throws IOException {
+		outputStream.writeInt(this.size);
+		outputStream.write(this.data, 0, this.size);
+	}
+
+	/**
+	 * Replace any recorded events with events read from the specified input stream.
+	 * @param inputStream the source input stream
+	 * @throws IOException
+	 * @see #writeTo(DataOutputStream)
+	 */
+	public void readFrom(DataInputStream inputStream) throws IOException {
+		int size = inputStream.readInt();
+		if (size < 0) {
+			throw new IOException("Corrupt response event log size " + size);
+		}
+		this.size = 0;
+		ensureCapacity(size);
+		inputStream.readFully(this.data, 0, size);
+		this.size = size;
+	}
+
+	private void writeName(String name) {
+		Integer index = (name == null ? null : COMMON_NAME_INDEXES.get(name));
+		if (index != null) {
+			writeByte(index.byteValue());
+		} else {
+			writeByte((byte) 0);
+			writeString(name);
+		}
+	}
+
+	private void writeString(String string) {
+		if (string == null) {
+			writeInt(-1);
+			return;
+		}
+		byte[] bytes = string.getBytes(UTF_8);
+		writeInt(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, this.data, this.size, bytes.length);
+		this.size += bytes.length;
+	}
+
+	private void writeLong(long value) {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+
+	private void writeInt(int value) {
+		ensureCapacity(4);
+		this.data[this.size++] = (byte) (value >>> 24);
+		this.data[this.size++] = (byte) (value >>> 16);
+		this.data[this.size++] = (byte) (value >>> 8);
+		this.data[this.size++] = (byte) value;
+	}
+
+	private void writeByte(byte value) {
+		ensureCapacity(1);
+		this.data[this.size++] = value;
+	}
+
+	private void ensureCapacity(int length) {
+		if (this.size + length > this.data.length) {
+			byte[] data = new byte[Math.max(this.data.length * 2, this.size + length)];
+			System.arraycopy(this.data, 0, data, 0, this.size);
+			this.data = data;
+		}
+	}
+
+	private Cookie readCookie() {
+		Cookie cookie = new Cookie(readString(), readString());
+		cookie.setComment(readString());
+		String domain = readString();
+		if (domain != null) {
+			cookie.setDomain(domain);
+		}
+		cookie.setMaxAge(readInt());
+		cookie.setPath(readString());
+		byte flags = readByte();
+		cookie.setSecure((flags & 1) != 0);
+		if ((flags & 2) != 0 && SET_HTTP_ONLY != null) {
+			ReflectionUtils.invokeMethod(SET_HTTP_ONLY, cookie, true);
+		}
+		cookie.setVersion(readInt());
+		return cookie;
+	}
+
+	private boolean isHttpOnly(Cookie cookie) {
+		return (IS_HTTP_ONLY != null && Boolean.TRUE.equals(ReflectionUtils.invokeMethod(IS_HTTP_ONLY, cookie)));
+	}
+
+	private String readName() {
+		int index = readByte();
+		if (index > 0) {
+			return COMMON_NAMES[index - 1];
+		}
+		return readString();
+	}
+
+	private String readString() {
+		int length = readInt();
+		if (length == -1) {
+			return null;
+		}
+		String string = new String(this.data, this.position, length, UTF_8);
+		this.position += length;
+		return string;
+	}
+
+	private long readLong() {
+		return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+	}
+
+	private int readInt() {
+		Assert.state(this.position + 4 <= this.size, "Corrupt response event log");
+		int value = ((this.data[this.position] & 0xFF) << 24) | ((this.data[this.position + 1] & 0xFF) << 16)
+				| ((this.data[this.position + 2] & 0xFF) << 8) | (this.data[this.position + 3] & 0xFF);
+		this.position += 4;
+		return value;
+	}
+
+	private byte readByte() {
+		Assert.state(this.position < this.size, "Corrupt response event log");
+		return this.data[this.position++];
+	}
+
+	/**
+	 * Callback used to replay the response body.
+	 */
+	static interface Body {
+
+		/**
+		 * Replay the body to the specified response.
+		 * @param response the response
+		 * @throws IOException
+		 */
+		void replay(HttpServletResponse response) throws IOException;
+	}
+}
@@ -1,8 +1,13 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout.sample;
 
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionHttpRequest;
 
 /**
  * Example MVC controller used to simulate long running AJAX requests.
@@ -20,6 +25,21 @@ public class TimeoutExampleController {
 	@ResponseBody
 	public String ajaxRequest() {
 		System.out.println("Ajax");
+		think();
+		return "ajax response";
+	}
+
+	@RequestMapping("/ajaxdetachedrequest")
+	@ResponseBody
+	public String ajaxDetachedRequest(HttpServletRequest request) throws IOException {
+		System.out.println("Ajax (detached)");
+		// We know this will be slow, let the client start polling immediately
+		TimeoutProtectionHttpRequest.detach(request);
+		think();
+		return "ajax detached response";
+	}
+
+	private void think() {
 		try {
 			for (int i = 1; i <= 40; i++) {
 				Thread.sleep(1000);
@@ -27,7 +47,6 @@ public class TimeoutExampleController {
 			}
 		} catch (InterruptedException e) {
 		}
-		return "ajax response";
 	}
 
 }
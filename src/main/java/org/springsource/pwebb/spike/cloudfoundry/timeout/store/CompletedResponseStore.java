@@ -0,0 +1,43 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.store;
+
+import java.io.IOException;
+
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+
+/**
+ * Strategy interface used to hold completed {@link ReplayableHttpServletResponse responses} until they are polled.
+ * Implementations that are shared between application instances allow a poll to be handled by a different instance to
+ * the one that ran the original request, removing the need for sticky sessions.
+ * 
+ * @author Phillip Webb
+ */
+public interface CompletedResponseStore {
+
+	/**
+	 * Store a completed response. Once stored the store takes ownership of the response and is responsible for
+	 * {@link ReplayableHttpServletResponse#release() releasing} it. A put that fails must not release the response,
+	 * ownership remains with the caller so that it can fall back to holding the response itself.
+	 * @param uid the request uid
+	 * @param response the completed response
+	 * @param expiryTime the time (in milliseconds since the epoch) after which the response is no longer required
+	 * @throws IOException if the response could not be stored
+	 */
+	void put(String uid, ReplayableHttpServletResponse response, long expiryTime) throws IOException;
+
+	/**
+	 * Atomically remove and return a stored response. Only a single caller will receive any given response, even when
+	 * the store is shared. The caller takes ownership of the returned response and must
+	 * {@link ReplayableHttpServletResponse#release() release} it.
+	 * @param uid the request uid
+	 * @return the response or <tt>null</tt> if no unexpired response is stored
+	 * @throws IOException
+	 */
+	ReplayableHttpServletResponse take(String uid) throws IOException;
+
+	/**
+	 * Remove and release any stored response.
+	 * @param uid the request uid
+	 */
+	void remove(String uid);
+
+}
@@ -0,0 +1,123 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import org.springframework.util.Assert;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitorFactory;
+
+/**
+ * {@link CompletedResponseStore} that holds responses as files in a directory. When the directory is on a volume that
+ * is shared between application instances a response stored by one instance can be taken by any other. Responses are
+ * written to a temporary file that is renamed once complete and are taken by renaming the file to a name unique to the
+ * caller, so only a single instance will ever receive a response. The file name is derived from a hex encoding of the
+ * uid so that any uid sent by a client is safe to use.
+ * 
+ * @author Phillip Webb
+ */
+public class FileSystemCompletedResponseStore implements CompletedResponseStore {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+	private static final String SUFFIX = ".response";
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final File directory;
+
+	private ReplayableHttpServletResponseMonitorFactory responseFactory = new ReplayableHttpServletResponseMonitorFactory();
+
+	/**
+	 * Create a new {@link FileSystemCompletedResponseStore} instance.
+	 * @param directory the directory used to hold responses, created if it does not exist
+	 */
+	public FileSystemCompletedResponseStore(File directory) {
+		Assert.notNull(directory, "Directory must not be null");
+		directory.mkdirs();
+		Assert.isTrue(directory.isDirectory(), "Unable to create directory " + directory);
+		this.directory = directory;
+	}
+
+	public void put(String uid, ReplayableHttpServletResponse response, long expiryTime) throws IOException {
+		Assert.notNull(response, "Response must not be null");
+		File file = getFile(uid);
+		File temp = File.createTempFile("put", ".tmp", this.directory);
+		try {
+			DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),
+					BUFFER_SIZE));
+			try {
+				outputStream.writeLong(expiryTime);
+				response.writeTo(outputStream);
+			} finally {
+				outputStream.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file)) {
+					throw new IOException("Unable to rename " + temp + " to " + file);
+				}
+			}
+		} finally {
+			temp.delete();
+		}
+		response.release();
+	}
+
+	public ReplayableHttpServletResponse take(String uid) throws IOException {
+		File file = getFile(uid);
+		File taken = new File(this.directory, file.getName() + "." + UUID.randomUUID() + ".taken");
+		if (!file.renameTo(taken)) {
+			return null;
+		}
+		try {
+			DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(taken),
+					BUFFER_SIZE));
+			try {
+				if (inputStream.readLong() < System.currentTimeMillis()) {
+					return null;
+				}
+				return this.responseFactory.readFrom(inputStream);
+			} finally {
+				inputStream.close();
+			}
+		} finally {
+			taken.delete();
+		}
+	}
+
+	public void remove(String uid) {
+		getFile(uid).delete();
+	}
+
+	private File getFile(String uid) {
+		Assert.notNull(uid, "Uid must not be null");
+		byte[] bytes = uid.getBytes(UTF_8);
+		char[] name = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			name[i * 2] = HEX_CHARS[(bytes[i] >> 4) & 0xF];
+			name[i * 2 + 1] = HEX_CHARS[bytes[i] & 0xF];
+		}
+		return new File(this.directory, new String(name) + SUFFIX);
+	}
+
+	/**
+	 * Set the factory used to read taken responses. The factory determines how much of each response body is held in
+	 * memory.
+	 * @param responseFactory the response factory
+	 */
+	public void setResponseFactory(ReplayableHttpServletResponseMonitorFactory responseFactory) {
+		Assert.notNull(responseFactory, "ResponseFactory must not be null");
+		this.responseFactory = responseFactory;
+	}
+}
@@ -0,0 +1,77 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.store;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.util.Assert;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+
+/**
+ * {@link CompletedResponseStore} that holds responses in memory. Responses are held directly without being encoded
+ * and are only available to the local application instance.
+ * 
+ * @author Phillip Webb
+ */
+public class InMemoryCompletedResponseStore implements CompletedResponseStore {
+
+	private final ConcurrentMap<String, StoredResponse> responses = new ConcurrentHashMap<String, StoredResponse>();
+
+	public void put(String uid, ReplayableHttpServletResponse response, long expiryTime) {
+		Assert.notNull(uid, "Uid must not be null");
+		Assert.notNull(response, "Response must not be null");
+		StoredResponse previous = this.responses.put(uid, new StoredResponse(response, expiryTime));
+		if (previous != null) {
+			previous.getResponse().release();
+		}
+	}
+
+	public ReplayableHttpServletResponse take(String uid) {
+		StoredResponse stored = this.responses.remove(uid);
+		if (stored == null) {
+			return null;
+		}
+		if (stored.getExpiryTime() < System.currentTimeMillis()) {
+			stored.getResponse().release();
+			return null;
+		}
+		return stored.getResponse();
+	}
+
+	public void remove(String uid) {
+		StoredResponse stored = this.responses.remove(uid);
+		if (stored != null) {
+			stored.getResponse().release();
+		}
+	}
+
+	/**
+	 * Returns the number of responses currently held.
+	 * @return the number of responses
+	 */
+	public int size() {
+		return this.responses.size();
+	}
+
+	/**
+	 * A single stored response.
+	 */
+	private static class StoredResponse {
+
+		private final ReplayableHttpServletResponse response;
+
+		private final long expiryTime;
+
+		public StoredResponse(ReplayableHttpServletResponse response, long expiryTime) {
+			this.response = response;
+			this.expiryTime = expiryTime;
+		}
+
+		public ReplayableHttpServletResponse getResponse() {
+			return this.response;
+		}
+
+		public long getExpiryTime() {
+			return this.expiryTime;
+		}
+	}
+}
@@ -0,0 +1,491 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitorFactory;
+
+/**
+ * {@link CompletedResponseStore} that holds responses outside of the Java heap in memory-mapped segment files.
+ * Responses are encoded using {@link ReplayableHttpServletResponse#writeTo(OutputStream)} and appended directly to the
+ * active segment, with only a small index entry per uid held on the heap. The encoded length is measured first so
+ * that space can be reserved under the store lock, the response is then written into the reserved space without
+ * holding the lock. Once every response in a segment has been taken, removed or has expired the segment is recycled.
+ * When all {@link #setMaxSegments(int) segments} are in use a {@link #put(String, ReplayableHttpServletResponse, long)
+ * put} fails with an {@link IOException}, allowing the caller to fall back to holding the response itself. Responses
+ * are only available to the local application instance.
+ * <p>
+ * Segments are never explicitly unmapped, unmapping a buffer that another thread is still reading would crash the
+ * JVM and there is no portable API to do so. Once a segment is closed its file is deleted but the mapping, and the
+ * address space and page cache it holds, remains until the buffer is garbage collected. The defaults are therefore
+ * kept small, limiting the mapped address space to 128 MB.
+ * 
+ * @author Phillip Webb
+ */
+public class MappedSegmentCompletedResponseStore implements CompletedResponseStore, DisposableBean {
+
+	/**
+	 * The default segment size (16 MB).
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The default maximum number of segments.
+	 */
+	public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+	private final File directory;
+
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	private int maxSegments = DEFAULT_MAX_SEGMENTS;
+
+	private ReplayableHttpServletResponseMonitorFactory responseFactory = new ReplayableHttpServletResponseMonitorFactory();
+
+	private final ConcurrentMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	private final LinkedList<Segment> freeSegments = new LinkedList<Segment>();
+
+	private Segment activeSegment;
+
+	/**
+	 * Create a new {@link MappedSegmentCompletedResponseStore} instance.
+	 * @param directory the directory used to hold segment files, created if it does not exist
+	 */
+	public MappedSegmentCompletedResponseStore(File directory) {
+		Assert.notNull(directory, "Directory must not be null");
+		directory.mkdirs();
+		Assert.isTrue(directory.isDirectory(), "Unable to create directory " + directory);
+		this.directory = directory;
+	}
+
+	public void put(String uid, ReplayableHttpServletResponse response, long expiryTime) throws IOException {
+		Assert.notNull(uid, "Uid must not be null");
+		Assert.notNull(response, "Response must not be null");
+		Entry entry = reserve(getEncodedLength(response), expiryTime);
+		boolean written = false;
+		try {
+			write(response, entry);
+			written = true;
+		} finally {
+			if (!written) {
+				release(entry.getSegment());
+			}
+		}
+		Entry previous = this.index.put(uid, entry);
+		if (previous != null) {
+			release(previous.getSegment());
+		}
+		response.release();
+	}
+
+	private int getEncodedLength(ReplayableHttpServletResponse response) throws IOException {
+		CountingOutputStream outputStream = new CountingOutputStream();
+		response.writeTo(outputStream);
+		if (outputStream.getCount() > this.segmentSize) {
+			throw new IOException("Response is larger than the segment size of " + this.segmentSize + " bytes");
+		}
+		return (int) outputStream.getCount();
+	}
+
+	/**
+	 * Reserve space for a response in the active segment, rolling to a new segment if the response does not fit. The
+	 * reservation counts as a live response so that the segment cannot be recycled while the response is written.
+	 * @param length the encoded length of the response
+	 * @param expiryTime the expiry time
+	 * @return the index entry for the response
+	 * @throws IOException
+	 */
+	private synchronized Entry reserve(int length, long expiryTime) throws IOException {
+		if (this.activeSegment != null && this.activeSegment.getRemaining() < length) {
+			retire(this.activeSegment);
+			this.activeSegment = null;
+		}
+		if (this.activeSegment == null) {
+			this.activeSegment = nextSegment();
+		}
+		Entry entry = new Entry(this.activeSegment, this.activeSegment.getPosition(), length, expiryTime);
+		this.activeSegment.append(length);
+		return entry;
+	}
+
+	/**
+	 * Write a response into previously reserved space. Called without holding the store lock, reserved regions never
+	 * overlap.
+	 * @param response the response
+	 * @param entry the reserved entry
+	 * @throws IOException
+	 */
+	private void write(ReplayableHttpServletResponse response, Entry entry) throws IOException {
+		SegmentOutputStream outputStream = new SegmentOutputStream(entry.getSegment().write(entry.getOffset(),
+				entry.getLength()));
+		response.writeTo(outputStream);
+		if (outputStream.getLength() != entry.getLength()) {
+			throw new IOException("Response changed while being written to the store");
+		}
+	}
+
+	private Segment nextSegment() throws IOException {
+		if (this.freeSegments.isEmpty() && this.segments.size() >= this.maxSegments) {
+			purgeExpired();
+		}
+		if (!this.freeSegments.isEmpty()) {
+			return this.freeSegments.removeFirst();
+		}
+		if (this.segments.size() >= this.maxSegments) {
+			throw new IOException("All " + this.maxSegments + " response store segments are in use");
+		}
+		Segment segment = new Segment(this.directory, this.segmentSize);
+		this.segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Retire a segment that is no longer active, recycling it immediately if it holds no live responses.
+	 * @param segment the segment
+	 */
+	private synchronized void retire(Segment segment) {
+		if (segment.getLive() == 0) {
+			recycle(segment);
+		}
+	}
+
+	private synchronized void release(Segment segment) {
+		if (segment.release() == 0 && segment != this.activeSegment) {
+			recycle(segment);
+		}
+	}
+
+	private void recycle(Segment segment) {
+		segment.reset();
+		this.freeSegments.add(segment);
+	}
+
+	private synchronized void purgeExpired() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, Entry>> iterator = this.index.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<String, Entry> mapEntry = iterator.next();
+			Entry entry = mapEntry.getValue();
+			if (entry.getExpiryTime() < now && this.index.remove(mapEntry.getKey(), entry)) {
+				release(entry.getSegment());
+			}
+		}
+	}
+
+	public ReplayableHttpServletResponse take(String uid) throws IOException {
+		Entry entry = this.index.remove(uid);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			if (entry.getExpiryTime() < System.currentTimeMillis()) {
+				return null;
+			}
+			return this.responseFactory.readFrom(new ByteBufferInputStream(entry.getSegment().read(
+					entry.getOffset(), entry.getLength())));
+		} finally {
+			release(entry.getSegment());
+		}
+	}
+
+	public void remove(String uid) {
+		Entry entry = this.index.remove(uid);
+		if (entry != null) {
+			release(entry.getSegment());
+		}
+	}
+
+	/**
+	 * Destroy the store, closing and deleting all segment files. Mapped buffers are released when they are garbage
+	 * collected.
+	 */
+	public synchronized void destroy() {
+		this.index.clear();
+		this.freeSegments.clear();
+		this.activeSegment = null;
+		for (Segment segment : this.segments) {
+			segment.close();
+		}
+		this.segments.clear();
+	}
+
+	/**
+	 * Returns the number of segment files that have been created.
+	 * @return the segment count
+	 */
+	public synchronized int getSegmentCount() {
+		return this.segments.size();
+	}
+
+	/**
+	 * Set the size of each segment file. Responses larger than the segment size cannot be stored. Defaults to
+	 * {@link #DEFAULT_SEGMENT_SIZE}.
+	 * @param segmentSize the segment size in bytes
+	 */
+	public void setSegmentSize(int segmentSize) {
+		Assert.isTrue(segmentSize > 0, "SegmentSize must be positive");
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Set the maximum number of segment files. Defaults to {@link #DEFAULT_MAX_SEGMENTS}.
+	 * @param maxSegments the maximum number of segments
+	 */
+	public void setMaxSegments(int maxSegments) {
+		Assert.isTrue(maxSegments > 0, "MaxSegments must be positive");
+		this.maxSegments = maxSegments;
+	}
+
+	/**
+	 * Set the factory used to read taken responses. The factory determines how much of each response body is held in
+	 * memory.
+	 * @param responseFactory the response factory
+	 */
+	public void setResponseFactory(ReplayableHttpServletResponseMonitorFactory responseFactory) {
+		Assert.notNull(responseFactory, "ResponseFactory must not be null");
+		this.responseFactory = responseFactory;
+	}
+
+	/**
+	 * An index entry locating a single response within a segment.
+	 */
+	private static class Entry {
+
+		private final Segment segment;
+
+		private final int offset;
+
+		private final int length;
+
+		private final long expiryTime;
+
+		public Entry(Segment segment, int offset, int length, long expiryTime) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.expiryTime = expiryTime;
+		}
+
+		public Segment getSegment() {
+			return this.segment;
+		}
+
+		public int getOffset() {
+			return this.offset;
+		}
+
+		public int getLength() {
+			return this.length;
+		}
+
+		public long getExpiryTime() {
+			return this.expiryTime;
+		}
+	}
+
+	/**
+	 * A single memory-mapped segment file. Responses are appended until the segment is full, the segment tracks the
+	 * number of live responses so that it can be recycled once they have all gone. Access to the position and live
+	 * count is guarded by the store.
+	 */
+	private static class Segment {
+
+		private final File file;
+
+		private final FileChannel channel;
+
+		private final MappedByteBuffer buffer;
+
+		private int position;
+
+		private int live;
+
+		public Segment(File directory, int size) throws IOException {
+			this.file = File.createTempFile("segment", ".dat", directory);
+			this.file.deleteOnExit();
+			RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw");
+			try {
+				randomAccessFile.setLength(size);
+				this.channel = randomAccessFile.getChannel();
+				this.buffer = this.channel.map(MapMode.READ_WRITE, 0, size);
+			} catch (IOException e) {
+				randomAccessFile.close();
+				this.file.delete();
+				throw e;
+			}
+		}
+
+		/**
+		 * Returns a buffer that can be used to write a previously reserved response.
+		 * @param offset the offset of the response
+		 * @param length the length of the response
+		 * @return a writable buffer
+		 */
+		public ByteBuffer write(int offset, int length) {
+			ByteBuffer buffer = this.buffer.duplicate();
+			buffer.position(offset);
+			buffer.limit(offset + length);
+			return buffer;
+		}
+
+		/**
+		 * Returns a buffer that can be used to read a previously appended response.
+		 * @param offset the offset of the response
+		 * @param length the length of the response
+		 * @return a read-only buffer
+		 */
+		public ByteBuffer read(int offset, int length) {
+			ByteBuffer buffer = this.buffer.asReadOnlyBuffer();
+			buffer.position(offset);
+			buffer.limit(offset + length);
+			return buffer;
+		}
+
+		public void append(int length) {
+			this.position += length;
+			this.live++;
+		}
+
+		public int release() {
+			return --this.live;
+		}
+
+		public int getPosition() {
+			return this.position;
+		}
+
+		public int getRemaining() {
+			return this.buffer.capacity() - this.position;
+		}
+
+		public int getLive() {
+			return this.live;
+		}
+
+		public void reset() {
+			this.position = 0;
+			this.live = 0;
+		}
+
+		public void close() {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+			}
+			this.file.delete();
+		}
+	}
+
+	/**
+	 * {@link OutputStream} that counts the bytes written to it.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+
+		private long count;
+
+		@Override
+		public void write(int b) throws IOException {
+			this.count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.count += len;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+	}
+
+	/**
+	 * {@link OutputStream} that writes directly into reserved segment space, failing with a
+	 * {@link SegmentFullException} if the reserved space is exceeded.
+	 */
+	private static class SegmentOutputStream extends OutputStream {
+
+		private final ByteBuffer buffer;
+
+		private final int start;
+
+		public SegmentOutputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.start = buffer.position();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!this.buffer.hasRemaining()) {
+				throw new SegmentFullException();
+			}
+			this.buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (this.buffer.remaining() < len) {
+				throw new SegmentFullException();
+			}
+			this.buffer.put(b, off, len);
+		}
+
+		public int getLength() {
+			return this.buffer.position() - this.start;
+		}
+	}
+
+	/**
+	 * Exception thrown when reserved segment space is full.
+	 */
+	private static class SegmentFullException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+	}
+
+	/**
+	 * {@link InputStream} that reads from a {@link ByteBuffer}.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return (this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!this.buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(len, this.buffer.remaining());
+			this.buffer.get(b, off, count);
+			return count;
+		}
+	}
+}
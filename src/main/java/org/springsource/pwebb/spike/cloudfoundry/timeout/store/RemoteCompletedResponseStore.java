@@ -0,0 +1,114 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.springframework.util.Assert;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitorFactory;
+
+/**
+ * {@link CompletedResponseStore} that holds responses in a remote key/value service shared between application
+ * instances. Responses are encoded using {@link ReplayableHttpServletResponse#writeTo(java.io.OutputStream)} and
+ * passed to a pluggable {@link Client}, allowing any service that supports an atomic get-and-delete (for example
+ * Redis <tt>GETDEL</tt>) to be used.
+ * 
+ * @author Phillip Webb
+ */
+public class RemoteCompletedResponseStore implements CompletedResponseStore {
+
+	private final Client client;
+
+	private String keyPrefix = "timeout-protection:";
+
+	private ReplayableHttpServletResponseMonitorFactory responseFactory = new ReplayableHttpServletResponseMonitorFactory();
+
+	/**
+	 * Create a new {@link RemoteCompletedResponseStore} instance.
+	 * @param client the client used to access the remote service
+	 */
+	public RemoteCompletedResponseStore(Client client) {
+		Assert.notNull(client, "Client must not be null");
+		this.client = client;
+	}
+
+	public void put(String uid, ReplayableHttpServletResponse response, long expiryTime) throws IOException {
+		Assert.notNull(response, "Response must not be null");
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		response.writeTo(outputStream);
+		this.client.put(getKey(uid), outputStream.toByteArray(), expiryTime);
+		response.release();
+	}
+
+	public ReplayableHttpServletResponse take(String uid) throws IOException {
+		byte[] bytes = this.client.take(getKey(uid));
+		if (bytes == null) {
+			return null;
+		}
+		return this.responseFactory.readFrom(new ByteArrayInputStream(bytes));
+	}
+
+	public void remove(String uid) {
+		try {
+			this.client.remove(getKey(uid));
+		} catch (IOException e) {
+			// The remote service will expire the response
+		}
+	}
+
+	private String getKey(String uid) {
+		Assert.notNull(uid, "Uid must not be null");
+		return this.keyPrefix + uid;
+	}
+
+	/**
+	 * Set the prefix added to each uid to create the remote key. Defaults to <tt>timeout-protection:</tt>.
+	 * @param keyPrefix the key prefix
+	 */
+	public void setKeyPrefix(String keyPrefix) {
+		Assert.notNull(keyPrefix, "KeyPrefix must not be null");
+		this.keyPrefix = keyPrefix;
+	}
+
+	/**
+	 * Set the factory used to read taken responses. The factory determines how much of each response body is held in
+	 * memory.
+	 * @param responseFactory the response factory
+	 */
+	public void setResponseFactory(ReplayableHttpServletResponseMonitorFactory responseFactory) {
+		Assert.notNull(responseFactory, "ResponseFactory must not be null");
+		this.responseFactory = responseFactory;
+	}
+
+	/**
+	 * Client used to access a remote key/value service.
+	 */
+	public static interface Client {
+
+		/**
+		 * Put a value into the remote service.
+		 * @param key the key
+		 * @param value the value
+		 * @param expiryTime the time (in milliseconds since the epoch) after which the value may be discarded
+		 * @throws IOException
+		 */
+		void put(String key, byte[] value, long expiryTime) throws IOException;
+
+		/**
+		 * Atomically get and delete a value from the remote service.
+		 * @param key the key
+		 * @return the value or <tt>null</tt> if no unexpired value exists
+		 * @throws IOException
+		 */
+		byte[] take(String key) throws IOException;
+
+		/**
+		 * Delete a value from the remote service.
+		 * @param key the key
+		 * @throws IOException
+		 */
+		void remove(String key) throws IOException;
+
+	}
+}
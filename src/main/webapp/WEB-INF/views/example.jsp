@@ -36,9 +36,17 @@
 	    );
 		
 	}
+
+	function ajaxBatchButtonClick(requestUrl, count) {
+		for (var i = 0; i < count; i++) {
+			ajaxButtonClick(requestUrl);
+		}
+	}
 	</script>
 	<div>
 		<input type="button" value="Ajax" onclick="ajaxButtonClick('ajaxrequest')" />
+		<input type="button" value="Ajax (Detached)" onclick="ajaxButtonClick('ajaxdetachedrequest')" />
+		<input type="button" value="Ajax (Detached x5)" onclick="ajaxBatchButtonClick('ajaxdetachedrequest', 5)" />
 	</div>
 	<div>
 		<textarea id="text" rows="40" cols="80">Spring MVC</textarea>
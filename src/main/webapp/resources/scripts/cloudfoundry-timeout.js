@@ -4,6 +4,16 @@
     "use strict";
     var TIMEOUT = 1000 * 60;
 
+    // Delay before a batch poll is retried after a transient failure
+    var RETRY_DELAY = 1000;
+
+    // Shared batch polls keyed by URL, a single long poll connection is used
+    // for all outstanding requests to the same URL
+    var batchPolls = {};
+
+    // Batch polls always use GET, capture it before it is replaced
+    var originalXhrGet = dojo.xhrGet;
+
     // Replace XHR methods with long poll aware versions
     dojo.xhrGet = xhrLongPollOnTimeout(dojo.xhrGet);
     dojo.xhrPost = xhrLongPollOnTimeout(dojo.xhrPost);
@@ -47,21 +57,40 @@
 
             function handleXhr(result, ioargs) {
                 var timeout = null;
-                if (ioargs.xhr.status === 504) {
-                    // Handle 504 gateway timeout by switching to long polling
+                if (ioargs.xhr.status === 504 || isDetached(ioargs)) {
+                    // Handle 504 gateway timeout (or a request detached by the
+                    // server) by switching to long polling
                     // Setup an ultimate timeout, this will be cleared on success
                     timeout = setTimeout(function() {
+                        cancelBatchPoll(args.url, requestId);
                         sendXhrResponse(result, ioargs);
                         timeout = null;
                     }, TIMEOUT);
                     // Start long polling for response
-                    longPollForResult(timeout);
+                    batchPollForResult(timeout);
                 } else {
                     // If we have no timeout, return the result
                     sendXhrResponse(result, ioargs);
                 }
             }
 
+            function isDetached(ioargs) {
+                // The server answers a detached request with 202 and the poll
+                // header so that polling can start immediately
+                return ioargs.xhr.status === 202 && ioargs.xhr.getResponseHeader("x-cloudfoundry-timeout-protection-poll") === requestId;
+            }
+
+            function batchPollForResult(timeout) {
+                batchPoll(args.url, requestId, function(result, ioargs) {
+                    // Poll response received, cancel timeout and finish
+                    clearTimeout(timeout);
+                    sendXhrResponse(result, ioargs);
+                }, function() {
+                    // Batch polls are not supported by the server
+                    longPollForResult(timeout);
+                });
+            }
+
             function longPollForResult(timeout) {
                 originalXhr({
                     headers : {
@@ -102,4 +131,109 @@
             }
         };
     }
+
+    /**
+     * Add a request to the shared batch poll for the given URL. Outstanding
+     * requests are polled using a single connection and the server answers
+     * with whichever response becomes available first. Requests added whilst a
+     * batch poll is in progress are included in the next poll.
+     * 
+     * @param url
+     *            the URL to poll
+     * @param requestId
+     *            the id of the request
+     * @param load
+     *            called with the poll response for the request
+     * @param fallback
+     *            called if the server does not support batch polls
+     */
+    function batchPoll(url, requestId, load, fallback) {
+        var poll = batchPolls[url];
+        if (!poll) {
+            poll = batchPolls[url] = {
+                requests : {},
+                active : false,
+                unsupported : false
+            };
+        }
+        if (poll.unsupported) {
+            fallback();
+            return;
+        }
+        poll.requests[requestId] = {
+            load : load,
+            fallback : fallback
+        };
+        if (!poll.active) {
+            sendBatchPoll(url, poll);
+        }
+    }
+
+    /**
+     * Remove a request from the shared batch poll for the given URL.
+     * 
+     * @param url
+     *            the URL being polled
+     * @param requestId
+     *            the id of the request
+     */
+    function cancelBatchPoll(url, requestId) {
+        var poll = batchPolls[url];
+        if (poll) {
+            delete poll.requests[requestId];
+        }
+    }
+
+    function sendBatchPoll(url, poll) {
+        var requestIds = [];
+        for ( var requestId in poll.requests) {
+            if (poll.requests.hasOwnProperty(requestId)) {
+                requestIds.push(requestId);
+            }
+        }
+        poll.active = (requestIds.length > 0);
+        if (!poll.active) {
+            return;
+        }
+        originalXhrGet({
+            headers : {
+                "x-cloudfoundry-timeout-protection-batch-poll" : requestIds.join(",")
+            },
+            url : url,
+            failOk : true,
+            handle : function(result, ioargs) {
+                var status = ioargs.xhr.status;
+                var requestId = ioargs.xhr.getResponseHeader("x-cloudfoundry-timeout-protection-poll");
+                var request = requestId && poll.requests[requestId];
+                if (request) {
+                    // Poll response received for one request, continue to
+                    // poll for the others
+                    delete poll.requests[requestId];
+                    request.load(result, ioargs);
+                    sendBatchPoll(url, poll);
+                } else if (requestId || status === 504 || (status === 204 && ioargs.xhr.getResponseHeader("x-cloudfoundry-timeout-protection-batch-poll"))) {
+                    // No content returned as yet, the gateway timed out the
+                    // poll or the response is for a request that has since
+                    // been cancelled, continue to poll
+                    sendBatchPoll(url, poll);
+                } else if (status !== 501) {
+                    // Transient or network failure, retry after a delay
+                    setTimeout(function() {
+                        sendBatchPoll(url, poll);
+                    }, RETRY_DELAY);
+                } else {
+                    // Batch polls are not supported, poll for each request
+                    var requests = poll.requests;
+                    poll.requests = {};
+                    poll.active = false;
+                    poll.unsupported = true;
+                    for (requestId in requests) {
+                        if (requests.hasOwnProperty(requestId)) {
+                            requests[requestId].fallback();
+                        }
+                    }
+                }
+            }
+        });
+    }
 })();
@@ -0,0 +1,147 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.AdaptiveThreshold.Protection;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.AdaptiveThreshold.RouteStatistics;
+
+/**
+ * Tests for {@link AdaptiveThreshold}.
+ * 
+ * @author Phillip Webb
+ */
+public class AdaptiveThresholdTest {
+
+	private static final long THRESHOLD = 1000;
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private AdaptiveThreshold adaptiveThreshold = new AdaptiveThreshold();
+
+	@Mock
+	private TimeoutProtectionHttpRequest request;
+
+	@Mock
+	private HttpServletRequest servletRequest;
+
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		this.adaptiveThreshold.setMinSamples(10);
+		given(this.request.getServletRequest()).willReturn(this.servletRequest);
+		given(this.servletRequest.getContextPath()).willReturn("/app");
+		given(this.servletRequest.getRequestURI()).willReturn("/app/report");
+	}
+
+	@Test
+	public void shouldUseThresholdForUnknownRoute() throws Exception {
+		assertThat(this.adaptiveThreshold.getThreshold(this.request, THRESHOLD), is(THRESHOLD));
+	}
+
+	@Test
+	public void shouldUseThresholdUntilMinSamples() throws Exception {
+		record(9, 5000);
+		assertThat(this.adaptiveThreshold.getThreshold(this.request, THRESHOLD), is(THRESHOLD));
+		assertThat(getStatistics().getProtection(), is(Protection.DEFAULT));
+	}
+
+	@Test
+	public void shouldProtectSlowRouteImmediately() throws Exception {
+		record(10, 5000);
+		assertThat(this.adaptiveThreshold.getThreshold(this.request, THRESHOLD), is(0L));
+		assertThat(getStatistics().getProtection(), is(Protection.IMMEDIATE));
+	}
+
+	@Test
+	public void shouldNotMonitorFastRoute() throws Exception {
+		record(10, 50);
+		assertThat(this.adaptiveThreshold.getThreshold(this.request, THRESHOLD), is(Long.MAX_VALUE));
+		assertThat(getStatistics().getProtection(), is(Protection.NONE));
+	}
+
+	@Test
+	public void shouldUseThresholdForMixedRoute() throws Exception {
+		record(5, 50);
+		record(5, 5000);
+		assertThat(this.adaptiveThreshold.getThreshold(this.request, THRESHOLD), is(THRESHOLD));
+	}
+
+	@Test
+	public void shouldReclassifyFastRouteAsSoonAsSlowRequestSeen() throws Exception {
+		record(10, 50);
+		record(1, 500);
+		assertThat(this.adaptiveThreshold.getThreshold(this.request, THRESHOLD), is(THRESHOLD));
+	}
+
+	@Test
+	public void shouldRollWindow() throws Exception {
+		this.adaptiveThreshold.setWindowSize(10);
+		record(10, 5000);
+		record(10, 50);
+		assertThat(this.adaptiveThreshold.getThreshold(this.request, THRESHOLD), is(Long.MAX_VALUE));
+		assertThat(getStatistics().getSampleCount(), is(10));
+		assertThat(getStatistics().getMax(), is(50L));
+	}
+
+	@Test
+	public void shouldInspectRoutes() throws Exception {
+		record(1, 100);
+		record(1, 300);
+		record(1, 200);
+		RouteStatistics statistics = getStatistics();
+		assertThat(statistics.getSampleCount(), is(3));
+		assertThat(statistics.getMedian(), is(200L));
+		assertThat(statistics.getMax(), is(300L));
+	}
+
+	@Test
+	public void shouldLimitRoutes() throws Exception {
+		this.adaptiveThreshold.setMaxRoutes(0);
+		record(10, 5000);
+		assertThat(this.adaptiveThreshold.getRoutes().isEmpty(), is(true));
+		assertThat(this.adaptiveThreshold.getThreshold(this.request, THRESHOLD), is(THRESHOLD));
+	}
+
+	@Test
+	public void shouldIgnoreRequestWithoutServletRequest() throws Exception {
+		given(this.request.getServletRequest()).willReturn(null);
+		record(10, 5000);
+		assertThat(this.adaptiveThreshold.getRoutes().isEmpty(), is(true));
+	}
+
+	@Test
+	public void shouldReset() throws Exception {
+		record(10, 5000);
+		this.adaptiveThreshold.reset();
+		assertThat(this.adaptiveThreshold.getRoutes().get("/report"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldNeedPositiveWindowSize() throws Exception {
+		this.thrown.expect(IllegalArgumentException.class);
+		this.thrown.expectMessage("WindowSize must be positive");
+		this.adaptiveThreshold.setWindowSize(0);
+	}
+
+	private void record(int count, long latency) {
+		for (int i = 0; i < count; i++) {
+			this.adaptiveThreshold.record(this.request, latency, THRESHOLD);
+		}
+	}
+
+	private RouteStatistics getStatistics() {
+		return this.adaptiveThreshold.getRoutes().get("/report");
+	}
+}
@@ -0,0 +1,103 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ExpiryReaper}.
+ * 
+ * @author Phillip Webb
+ */
+public class ExpiryReaperTest {
+
+	private ExpiryReaper reaper = new ExpiryReaper("test-reaper");
+
+	private List<String> expired = new ArrayList<String>();
+
+	@After
+	public void cleanup() {
+		this.reaper.destroy();
+	}
+
+	@Test
+	public void shouldNotExpireBeforeDeadline() throws Exception {
+		this.reaper.schedule(System.currentTimeMillis() + 10000, new Expiry("a"));
+		this.reaper.expire();
+		assertThat(this.expired.size(), is(0));
+		assertThat(this.reaper.size(), is(1));
+	}
+
+	@Test
+	public void shouldExpireInDeadlineOrder() throws Exception {
+		long now = System.currentTimeMillis();
+		this.reaper.schedule(now + 40, new Expiry("b"));
+		this.reaper.schedule(now + 20, new Expiry("a"));
+		this.reaper.schedule(now + 10000, new Expiry("c"));
+		Thread.sleep(100);
+		assertThat(this.expired.toString(), is("[a, b]"));
+		assertThat(this.reaper.size(), is(1));
+	}
+
+	@Test
+	public void shouldExpireOnCallingThread() throws Exception {
+		this.reaper.schedule(System.currentTimeMillis() - 10, new Expiry("a"));
+		this.reaper.expire();
+		Thread.sleep(20);
+		assertThat(this.expired.toString(), is("[a]"));
+		assertThat(this.reaper.size(), is(0));
+	}
+
+	@Test
+	public void shouldContinueAfterFailedExpiry() throws Exception {
+		long now = System.currentTimeMillis();
+		this.reaper.schedule(now + 10, new Runnable() {
+			public void run() {
+				throw new IllegalStateException("Failed");
+			}
+		});
+		this.reaper.schedule(now + 20, new Expiry("a"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (this.reaper.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(20);
+		assertThat(this.expired.toString(), is("[a]"));
+	}
+
+	@Test
+	public void shouldDiscardExpiriesOnDestroy() throws Exception {
+		this.reaper.schedule(System.currentTimeMillis() + 10000, new Expiry("a"));
+		this.reaper.destroy();
+		assertThat(this.reaper.size(), is(0));
+	}
+
+	@Test
+	public void shouldIgnoreScheduleAfterDestroy() throws Exception {
+		this.reaper.destroy();
+		this.reaper.schedule(System.currentTimeMillis() - 10, new Expiry("a"));
+		Thread.sleep(20);
+		assertThat(this.reaper.size(), is(0));
+		assertThat(this.expired.size(), is(0));
+	}
+
+	private class Expiry implements Runnable {
+
+		private String name;
+
+		public Expiry(String name) {
+			this.name = name;
+		}
+
+		public void run() {
+			synchronized (ExpiryReaperTest.this.expired) {
+				ExpiryReaperTest.this.expired.add(this.name);
+			}
+		}
+	}
+}
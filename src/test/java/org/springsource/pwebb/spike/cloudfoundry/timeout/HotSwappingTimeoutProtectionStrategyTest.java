@@ -1,6 +1,7 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout;
 
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.not;
@@ -10,11 +11,16 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -24,8 +30,15 @@ import org.mockito.MockitoAnnotations;
 import org.springframework.util.ReflectionUtils;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.HotSwappingTimeoutProtectionStrategy.RequestCoordinator;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.HotSwappingTimeoutProtectionStrategy.RequestCoordinators;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.StripedTimeoutProtectionMetrics;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Counter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Gauge;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Timer;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitor;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitorFactory;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.MemoryBudget;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitor;
 
 /**
  * Tests for {@link HotSwappingTimeoutProtectionStrategy}.
@@ -59,6 +72,11 @@ public class HotSwappingTimeoutProtectionStrategyTest {
 
 	private RequestCoordinator realRequestCoordinator = new RequestCoordinator();
 
+	@After
+	public void cleanup() throws Exception {
+		this.strategy.destroy();
+	}
+
 	@Before
 	public void setup() {
 		MockitoAnnotations.initMocks(this);
@@ -67,6 +85,7 @@ public class HotSwappingTimeoutProtectionStrategyTest {
 		this.strategy.setFailTimeout(FAIL_TIMEOUT);
 		this.strategy.setLongPollTime(LONG_POLL_TIME);
 		given(this.requestCoordinators.get(this.request)).willReturn(this.requestCoordinator);
+		given(this.requestCoordinators.find(this.request)).willReturn(this.requestCoordinator);
 		given(this.request.getUid()).willReturn(UUID);
 	}
 
@@ -88,6 +107,23 @@ public class HotSwappingTimeoutProtectionStrategyTest {
 		assertThat(monitor, is(not(nullValue())));
 	}
 
+	@Test
+	public void shouldNotMonitorFastRoute() throws Exception {
+		AdaptiveThreshold adaptiveThreshold = new AdaptiveThreshold();
+		this.strategy.setAdaptiveThreshold(adaptiveThreshold);
+		this.strategy.setThreshold(0);
+		HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+		given(servletRequest.getRequestURI()).willReturn("/fast");
+		given(this.request.getServletRequest()).willReturn(servletRequest);
+		for (int i = 0; i < 20; i++) {
+			adaptiveThreshold.record(this.request, 10, 0);
+		}
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		assertThat(monitorFactory.getMonitor(), is(nullValue()));
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(adaptiveThreshold.getRoutes().get("/fast").getSampleCount(), is(21));
+	}
+
 	@Test
 	public void shouldConsumePollResponseIfAlreadyAvailble() throws Exception {
 		this.strategy.setThreshold(0);
@@ -118,6 +154,233 @@ public class HotSwappingTimeoutProtectionStrategyTest {
 		monitorFactory.getMonitor();
 	}
 
+	@Test
+	public void shouldRecordIfNonBlockingAndPollResponseNotAvailable() throws Exception {
+		this.strategy.setThreshold(0);
+		this.strategy.setNonBlocking(true);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		HttpServletResponseMonitor monitor = monitorFactory.getMonitor();
+		assertThat(monitor, is(instanceOf(ReplayableHttpServletResponseMonitor.class)));
+		verify(this.requestCoordinator).setRecording(((ReplayableHttpServletResponseMonitor) monitor)
+				.getReplayableResponse());
+		verify(this.requestCoordinator, never()).awaitPollResponse(anyLong());
+	}
+
+	@Test
+	public void shouldNotRecordWhenMemoryBudgetRejects() throws Exception {
+		MemoryBudget budget = new MemoryBudget(0);
+		budget.setPolicy(MemoryBudget.Policy.REJECT);
+		this.strategy.setMemoryBudget(budget);
+		this.strategy.setThreshold(0);
+		this.strategy.setNonBlocking(true);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		assertThat(monitorFactory.getMonitor(), is(nullValue()));
+		verify(this.requestCoordinator, never()).setRecording(any(ReplayableHttpServletResponse.class));
+	}
+
+	@Test
+	public void shouldNotReportThresholdExceededWhenMemoryBudgetRejects() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.strategy.setMetrics(metrics);
+		MemoryBudget budget = new MemoryBudget(0);
+		budget.setPolicy(MemoryBudget.Policy.REJECT);
+		this.strategy.setMemoryBudget(budget);
+		this.strategy.setThreshold(0);
+		this.strategy.setNonBlocking(true);
+		assertThat(this.strategy.handleRequest(this.request).getMonitor(), is(nullValue()));
+		assertThat(metrics.getCount(Counter.THRESHOLD_EXCEEDED), is(0L));
+		assertThat(metrics.getHistogram(Timer.TIME_TO_THRESHOLD).getCount(), is(0L));
+	}
+
+	@Test
+	public void shouldRecordDetachedRequestImmediately() throws Exception {
+		MemoryBudget budget = new MemoryBudget(0);
+		budget.setPolicy(MemoryBudget.Policy.REJECT);
+		this.strategy.setMemoryBudget(budget);
+		this.strategy.setThreshold(10000);
+		this.strategy.setNonBlocking(true);
+		given(this.request.isDetached()).willReturn(true);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		assertThat(monitorFactory.getMonitor(), is(not(nullValue())));
+		verify(this.requestCoordinator).setRecording(any(ReplayableHttpServletResponse.class));
+		assertThat(budget.getRejectionCount(), is(0L));
+	}
+
+	@Test
+	public void shouldDrainRecordingToPoll() throws Exception {
+		this.strategy.setRequestCoordinators(new RequestCoordinators());
+		this.strategy.setThreshold(0);
+		this.strategy.setNonBlocking(true);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		HttpServletResponseMonitor monitor = monitorFactory.getMonitor();
+		monitor.setStatus(201);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		this.strategy.handlePoll(this.request, this.response);
+		verify(this.response).setStatus(201);
+		verify(this.response, never()).setStatus(204);
+	}
+
+	@Test
+	public void shouldDrainRecordingSetWhilePollResponseIsSet() throws Exception {
+		ReplayableHttpServletResponse recording = mock(ReplayableHttpServletResponse.class);
+		given(this.requestCoordinator.consumeRecording()).willReturn(null, recording);
+		given(this.requestCoordinator.clearPollResponse()).willReturn(true);
+		this.strategy.handlePoll(this.request, this.response);
+		verify(recording).attach(this.response);
+		verify(this.requestCoordinator, never()).awaitPollReponseConsumed(anyLong());
+		verify(this.response, never()).setStatus(204);
+	}
+
+	@Test
+	public void shouldWriteToPollOnceRecordingIsDrained() throws Exception {
+		this.strategy.setRequestCoordinators(new RequestCoordinators());
+		this.strategy.setThreshold(0);
+		this.strategy.setNonBlocking(true);
+		final HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		final HttpServletResponseMonitor monitor = monitorFactory.getMonitor();
+		monitor.setStatus(201);
+		Thread requestThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					monitor.setHeader("a", "b");
+				} catch (InterruptedException e) {
+				}
+				HotSwappingTimeoutProtectionStrategyTest.this.strategy.afterRequest(
+						HotSwappingTimeoutProtectionStrategyTest.this.request, monitorFactory);
+			}
+		};
+		requestThread.start();
+		this.strategy.handlePoll(this.request, this.response);
+		requestThread.join();
+		verify(this.response).setStatus(201);
+		verify(this.response).setHeader("a", "b");
+	}
+
+	@Test
+	public void shouldExpireUnpolledRecording() throws Exception {
+		RequestCoordinators requestCoordinators = new RequestCoordinators();
+		this.strategy.setRequestCoordinators(requestCoordinators);
+		this.strategy.setThreshold(0);
+		this.strategy.setNonBlocking(true);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor();
+		RequestCoordinator requestCoordinator = requestCoordinators.get(this.request);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(requestCoordinators.get(this.request), is(sameInstance(requestCoordinator)));
+		Thread.sleep(FAIL_TIMEOUT * 2);
+		assertThat(requestCoordinators.get(this.request), is(not(sameInstance(requestCoordinator))));
+		assertThat(requestCoordinator.hasRecording(), is(false));
+	}
+
+	@Test
+	public void shouldReportMetricsForDrainedRecording() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.strategy.setMetrics(metrics);
+		this.strategy.setRequestCoordinators(new RequestCoordinators());
+		this.strategy.setThreshold(0);
+		this.strategy.setNonBlocking(true);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().setStatus(201);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(metrics.getCount(Counter.THRESHOLD_EXCEEDED), is(1L));
+		assertThat(metrics.getValue(Gauge.PENDING_RESPONSES), is(1L));
+		this.strategy.handlePoll(this.request, this.response);
+		assertThat(metrics.getValue(Gauge.PENDING_RESPONSES), is(0L));
+		assertThat(metrics.getHistogram(Timer.TIME_TO_POLL).getCount(), is(1L));
+		assertThat(metrics.getHistogram(Timer.REPLAY).getCount(), is(1L));
+	}
+
+	@Test
+	public void shouldReportMetricsForHandoffWait() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.strategy.setMetrics(metrics);
+		this.strategy.setThreshold(0);
+		given(this.requestCoordinator.consumePollResponse()).willReturn(null, this.response);
+		this.strategy.handleRequest(this.request).getMonitor();
+		assertThat(metrics.getHistogram(Timer.TIME_TO_THRESHOLD).getCount(), is(1L));
+		assertThat(metrics.getHistogram(Timer.HANDOFF_WAIT).getCount(), is(1L));
+	}
+
+	@Test
+	public void shouldReportMetricsForEmptyPoll() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.strategy.setMetrics(metrics);
+		given(this.requestCoordinator.clearPollResponse()).willReturn(true);
+		this.strategy.handlePoll(this.request, this.response);
+		assertThat(metrics.getCount(Counter.EMPTY_POLLS), is(1L));
+	}
+
+	@Test
+	public void shouldCompleteAsyncPollWhenRequestFinishes() throws Exception {
+		RequestCoordinators requestCoordinators = new RequestCoordinators();
+		this.strategy.setRequestCoordinators(requestCoordinators);
+		this.strategy.setThreshold(0);
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().setStatus(201);
+		verify(this.response).setStatus(201);
+		assertThat(poll.isComplete(), is(false));
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(poll.isComplete(), is(true));
+	}
+
+	@Test
+	public void shouldHoldConsumedAsyncPollAfterLongPollTime() throws Exception {
+		this.strategy.setRequestCoordinators(new RequestCoordinators());
+		this.strategy.setThreshold(0);
+		this.strategy.setFailTimeout(LONG_POLL_TIME * 5);
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor();
+		assertThat(poll.awaitComplete(LONG_POLL_TIME * 2), is(false));
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(poll.isComplete(), is(true));
+		verify(this.response, never()).setStatus(204);
+	}
+
+	@Test
+	public void shouldRespondNoContentToUnconsumedAsyncPoll() throws Exception {
+		this.strategy.setRequestCoordinators(new RequestCoordinators());
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		assertThat(poll.awaitComplete(LONG_POLL_TIME * 5), is(true));
+		verify(this.response).setHeader(TimeoutProtectionHttpHeader.POLL, UUID);
+		verify(this.response).setStatus(204);
+	}
+
+	@Test
+	public void shouldDrainRecordingToAsyncPoll() throws Exception {
+		this.strategy.setRequestCoordinators(new RequestCoordinators());
+		this.strategy.setThreshold(0);
+		this.strategy.setNonBlocking(true);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().setStatus(201);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		assertThat(poll.isComplete(), is(true));
+		verify(this.response).setStatus(201);
+	}
+
+	@Test
+	public void shouldDrainRecordingSetWhileAsyncPollResponseIsSet() throws Exception {
+		ReplayableHttpServletResponse recording = mock(ReplayableHttpServletResponse.class);
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		given(this.requestCoordinator.consumeRecording()).willReturn(null, recording);
+		given(this.requestCoordinator.hasRecording()).willReturn(true);
+		given(this.requestCoordinator.takeAsyncPoll(poll)).willReturn(true);
+		given(this.requestCoordinator.clearPollResponse()).willReturn(true);
+		given(this.requestCoordinator.isFinished()).willReturn(true);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		verify(recording).attach(this.response);
+		assertThat(poll.isComplete(), is(true));
+		verify(this.response, never()).setStatus(204);
+	}
+
 	@Test
 	public void shouldDeleteUnconsumedPollResponse() throws Exception {
 		HttpServletResponseMonitorFactory monitorFactory = mock(HttpServletResponseMonitorFactory.class);
@@ -127,9 +390,19 @@ public class HotSwappingTimeoutProtectionStrategyTest {
 		verify(this.requestCoordinators).delete(this.request);
 	}
 
+	@Test
+	public void shouldNotCreateRequestCoordinatorUnderThreshold() throws Exception {
+		RequestCoordinators requestCoordinators = new RequestCoordinators();
+		this.strategy.setRequestCoordinators(requestCoordinators);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		assertThat(monitorFactory.getMonitor(), is(nullValue()));
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(requestCoordinators.find(this.request), is(nullValue()));
+	}
+
 	@Test
 	public void shouldHandleUnconsumedPoll() throws Exception {
-		given(this.requestCoordinator.isPollResponseConsumed()).willReturn(false);
+		given(this.requestCoordinator.clearPollResponse()).willReturn(true);
 		this.strategy.handlePoll(this.request, this.response);
 		verify(this.requestCoordinator).clearPollResponse();
 		verify(this.response).setHeader(TimeoutProtectionHttpHeader.POLL, UUID);
@@ -147,7 +420,7 @@ public class HotSwappingTimeoutProtectionStrategyTest {
 	@Test
 	public void shouldHandleInterruptedWaitingForPollResponseConsumed() throws Exception {
 		willThrow(new InterruptedException()).given(this.requestCoordinator).awaitPollReponseConsumed(LONG_POLL_TIME);
-		given(this.requestCoordinator.isPollResponseConsumed()).willReturn(false);
+		given(this.requestCoordinator.clearPollResponse()).willReturn(true);
 		this.strategy.handlePoll(this.request, this.response);
 		verify(this.requestCoordinator).clearPollResponse();
 		verify(this.response).setHeader(TimeoutProtectionHttpHeader.POLL, UUID);
@@ -176,6 +449,14 @@ public class HotSwappingTimeoutProtectionStrategyTest {
 		assertThat(initial, is(sameInstance(subsequent)));
 	}
 
+	@Test
+	public void shouldFindRequestCoordinator() throws Exception {
+		RequestCoordinators requestCoordinators = new RequestCoordinators();
+		assertThat(requestCoordinators.find(this.request), is(nullValue()));
+		RequestCoordinator initial = requestCoordinators.get(this.request);
+		assertThat(requestCoordinators.find(this.request), is(sameInstance(initial)));
+	}
+
 	@Test
 	public void shouldDeleteRequestCoordinator() throws Exception {
 		RequestCoordinators requestCoordinators = new RequestCoordinators();
@@ -273,7 +554,7 @@ public class HotSwappingTimeoutProtectionStrategyTest {
 	@Test
 	public void shouldCoordinateClearPollResponse() throws Exception {
 		this.realRequestCoordinator.setPollResponse(this.response);
-		this.realRequestCoordinator.clearPollResponse();
+		assertThat(this.realRequestCoordinator.clearPollResponse(), is(true));
 		assertThat(this.realRequestCoordinator.consumePollResponse(), is(nullValue()));
 	}
 
@@ -281,9 +562,23 @@ public class HotSwappingTimeoutProtectionStrategyTest {
 	public void shouldNotCoordinateClearPollResponseIfConsumed() throws Exception {
 		this.realRequestCoordinator.setPollResponse(this.response);
 		assertThat(this.realRequestCoordinator.consumePollResponse(), is(this.response));
+		assertThat(this.realRequestCoordinator.clearPollResponse(), is(false));
+	}
+
+	@Test
+	public void shouldNotCoordinateSetPollResponseIfConsumed() throws Exception {
+		this.realRequestCoordinator.setPollResponse(this.response);
+		this.realRequestCoordinator.consumePollResponse();
 		this.thrown.expect(IllegalStateException.class);
-		this.thrown.expectMessage("Unable to clear an already consumed poll response");
-		this.realRequestCoordinator.clearPollResponse();
+		this.thrown.expectMessage("Unable to set an already consumed poll response");
+		this.realRequestCoordinator.setPollResponse(this.response);
+	}
+
+	@Test
+	public void shouldCoordinateSingleConsumer() throws Exception {
+		this.realRequestCoordinator.setPollResponse(this.response);
+		assertThat(this.realRequestCoordinator.consumePollResponse(), is(this.response));
+		assertThat(this.realRequestCoordinator.consumePollResponse(), is(nullValue()));
 	}
 
 	private ThreadAssertion expectResponseWithin(long min, long max, Call call) {
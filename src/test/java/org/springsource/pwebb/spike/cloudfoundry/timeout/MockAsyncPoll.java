@@ -0,0 +1,42 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Mock {@link AsyncPoll} that dispatches actions on the calling thread.
+ * 
+ * @author Phillip Webb
+ */
+public class MockAsyncPoll implements AsyncPoll {
+
+	private final HttpServletResponse response;
+
+	private final CountDownLatch completed = new CountDownLatch(1);
+
+	public MockAsyncPoll(HttpServletResponse response) {
+		this.response = response;
+	}
+
+	public HttpServletResponse getResponse() {
+		return this.response;
+	}
+
+	public void dispatch(Runnable action) {
+		action.run();
+	}
+
+	public void complete() {
+		this.completed.countDown();
+	}
+
+	public boolean isComplete() {
+		return this.completed.getCount() == 0;
+	}
+
+	public boolean awaitComplete(long timeout) throws InterruptedException {
+		return this.completed.await(timeout, TimeUnit.MILLISECONDS);
+	}
+}
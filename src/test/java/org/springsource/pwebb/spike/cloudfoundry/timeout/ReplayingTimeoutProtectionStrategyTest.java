@@ -1,5 +1,6 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout;
 
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.lessThan;
@@ -7,20 +8,48 @@ import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.util.StringUtils;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.StripedTimeoutProtectionMetrics;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Counter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Gauge;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Timer;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitor;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitorFactory;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.MemoryBudget;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.store.InMemoryCompletedResponseStore;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.store.MappedSegmentCompletedResponseStore;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.store.MockRemoteClient;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.store.RemoteCompletedResponseStore;
 
 /**
  * Tests for {@link ReplayingTimeoutProtectionStrategy}.
@@ -36,6 +65,9 @@ public class ReplayingTimeoutProtectionStrategyTest {
 	@Rule
 	public ExpectedException thrown = ExpectedException.none();
 
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	private ReplayingTimeoutProtectionStrategy strategy = new ReplayingTimeoutProtectionStrategy();
 
 	@Mock
@@ -47,6 +79,11 @@ public class ReplayingTimeoutProtectionStrategyTest {
 	@Mock
 	private HttpServletResponse response;
 
+	@After
+	public void cleanup() {
+		this.strategy.destroy();
+	}
+
 	@Before
 	public void setup() {
 		MockitoAnnotations.initMocks(this);
@@ -100,6 +137,18 @@ public class ReplayingTimeoutProtectionStrategyTest {
 		assertThat(this.strategy.getCompletedRequests().size(), is(1));
 	}
 
+	@Test
+	public void shouldExpireUnpolledRequests() throws Exception {
+		this.strategy.setFailTimeout(10);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor();
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(this.strategy.getCompletedRequests().size(), is(1));
+		Thread.sleep(20);
+		this.strategy.getReaper().expire();
+		assertThat(this.strategy.getCompletedRequests().size(), is(0));
+	}
+
 	@Test
 	public void shouldNotifyPollingThreadsAfterRequest() throws Exception {
 		this.strategy.setLongPollTime(TimeUnit.MINUTES.toMillis(1));
@@ -133,6 +182,523 @@ public class ReplayingTimeoutProtectionStrategyTest {
 		timedPollThread.assertTime(100, 200);
 	}
 
+	@Test
+	public void shouldReplayPollArrivingAfterRequest() throws Exception {
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().sendError(100);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		TimedPollThread timedPollThread = new TimedPollThread();
+		timedPollThread.start();
+		timedPollThread.assertTime(0, 40);
+		verify(this.response).sendError(100);
+		assertThat(this.strategy.getCompletedRequests().size(), is(0));
+	}
+
+	@Test
+	public void shouldRemoveCompletedRequestEntryOnPollTimeout() throws Exception {
+		this.strategy.setLongPollTime(10);
+		this.strategy.handlePoll(this.request, this.response);
+		verify(this.response).setStatus(204);
+		assertThat(this.strategy.getCompletedRequests().size(), is(0));
+	}
+
+	@Test
+	public void shouldStreamInProgressResponse() throws Exception {
+		this.strategy.setStreaming(true);
+		this.strategy.setLongPollTime(TimeUnit.MINUTES.toMillis(1));
+		this.strategy.setFailTimeout(TimeUnit.MINUTES.toMillis(1));
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		HttpServletResponseMonitor monitor = monitorFactory.getMonitor();
+		monitor.setHeader("a", "b");
+		TimedPollThread timedPollThread = new TimedPollThread();
+		timedPollThread.start();
+		Thread.sleep(20);
+		verify(this.response).setHeader("a", "b");
+		monitor.setStatus(201);
+		verify(this.response).setStatus(201);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		timedPollThread.assertTime(20, 60);
+		assertThat(this.strategy.getCompletedRequests().size(), is(0));
+	}
+
+	@Test
+	public void shouldNotStreamInProgressResponseUnlessEnabled() throws Exception {
+		this.strategy.setLongPollTime(20);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().setHeader("a", "b");
+		this.strategy.handlePoll(this.request, this.response);
+		verify(this.response).setStatus(204);
+		verify(this.response, never()).setHeader("a", "b");
+	}
+
+	@Test
+	public void shouldResumeAsyncPollWhenRequestCompletes() throws Exception {
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		assertThat(poll.isComplete(), is(false));
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().setStatus(201);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(poll.isComplete(), is(true));
+		verify(this.response).setStatus(201);
+		assertThat(this.strategy.getCompletedRequests().size(), is(0));
+	}
+
+	@Test
+	public void shouldReplayAsyncPollArrivingAfterRequest() throws Exception {
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().setStatus(201);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		assertThat(poll.isComplete(), is(true));
+		verify(this.response).setStatus(201);
+	}
+
+	@Test
+	public void shouldRespondNoContentToExpiredAsyncPoll() throws Exception {
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		assertThat(poll.awaitComplete(LONG_POLL_TIME * 5), is(true));
+		verify(this.response).setHeader(TimeoutProtectionHttpHeader.POLL, "1");
+		verify(this.response).setStatus(204);
+		assertThat(this.strategy.getCompletedRequests().size(), is(0));
+	}
+
+	@Test
+	public void shouldStreamInProgressResponseToAsyncPoll() throws Exception {
+		this.strategy.setStreaming(true);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		HttpServletResponseMonitor monitor = monitorFactory.getMonitor();
+		monitor.setStatus(201);
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		verify(this.response).setStatus(201);
+		assertThat(poll.isComplete(), is(false));
+		monitor.setHeader("a", "b");
+		verify(this.response).setHeader("a", "b");
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(poll.isComplete(), is(true));
+		assertThat(this.strategy.getCompletedRequests().size(), is(0));
+	}
+
+	@Test
+	public void shouldReplayPollOnAnotherInstance() throws Exception {
+		ReplayingTimeoutProtectionStrategy other = new ReplayingTimeoutProtectionStrategy();
+		other.setThreshold(THRESHOLD);
+		try {
+			MockRemoteClient client = new MockRemoteClient();
+			this.strategy.setStore(new RemoteCompletedResponseStore(client));
+			other.setStore(new RemoteCompletedResponseStore(client));
+			HttpServletResponseMonitorFactory monitorFactory = other.handleRequest(this.request);
+			monitorFactory.getMonitor().setStatus(201);
+			other.afterRequest(this.request, monitorFactory);
+			assertThat(other.getCompletedRequests().size(), is(0));
+			assertThat(client.size(), is(1));
+			TimedPollThread timedPollThread = new TimedPollThread();
+			timedPollThread.start();
+			timedPollThread.assertTime(0, 40);
+			verify(this.response).setStatus(201);
+			assertThat(client.size(), is(0));
+		} finally {
+			other.destroy();
+		}
+	}
+
+	@Test
+	public void shouldReplayWaitingPollFromAnotherInstance() throws Exception {
+		ReplayingTimeoutProtectionStrategy other = new ReplayingTimeoutProtectionStrategy();
+		other.setThreshold(THRESHOLD);
+		try {
+			InMemoryCompletedResponseStore store = new InMemoryCompletedResponseStore();
+			this.strategy.setStore(store);
+			this.strategy.setStorePollInterval(10);
+			other.setStore(store);
+			TimedPollThread timedPollThread = new TimedPollThread();
+			timedPollThread.start();
+			Thread.sleep(20);
+			HttpServletResponseMonitorFactory monitorFactory = other.handleRequest(this.request);
+			monitorFactory.getMonitor().setStatus(201);
+			other.afterRequest(this.request, monitorFactory);
+			timedPollThread.assertTime(20, LONG_POLL_TIME);
+			verify(this.response).setStatus(201);
+			assertThat(this.strategy.getCompletedRequests().size(), is(0));
+			assertThat(store.size(), is(0));
+		} finally {
+			other.destroy();
+		}
+	}
+
+	@Test
+	public void shouldPublishLocallyWhenPollIsWaiting() throws Exception {
+		InMemoryCompletedResponseStore store = new InMemoryCompletedResponseStore();
+		this.strategy.setStore(store);
+		this.strategy.setLongPollTime(TimeUnit.MINUTES.toMillis(1));
+		TimedPollThread timedPollThread = new TimedPollThread();
+		timedPollThread.start();
+		Thread.sleep(10);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().setStatus(201);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		timedPollThread.assertTime(10, 40);
+		verify(this.response).setStatus(201);
+		assertThat(store.size(), is(0));
+	}
+
+	@Test
+	public void shouldHoldResponseLocallyWhenStorePutFails() throws Exception {
+		RemoteCompletedResponseStore.Client client = mock(RemoteCompletedResponseStore.Client.class);
+		willThrow(new IOException()).given(client).put(anyString(), any(byte[].class), anyLong());
+		this.strategy.setStore(new RemoteCompletedResponseStore(client));
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		HttpServletResponseMonitor monitor = monitorFactory.getMonitor();
+		monitor.setStatus(201);
+		monitor.write(new byte[] { 1, 2 });
+		this.strategy.afterRequest(this.request, monitorFactory);
+		verify(client).put(anyString(), any(byte[].class), anyLong());
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		given(this.response.getOutputStream()).willReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				body.write(b);
+			}
+		});
+		this.strategy.handlePoll(this.request, this.response);
+		verify(this.response).setStatus(201);
+		assertThat(body.toByteArray(), is(new byte[] { 1, 2 }));
+	}
+
+	@Test
+	public void shouldHoldResponseLocallyWhenMappedSegmentStoreIsFull() throws Exception {
+		MappedSegmentCompletedResponseStore store = new MappedSegmentCompletedResponseStore(
+				this.temporaryFolder.getRoot());
+		try {
+			store.setSegmentSize(1024);
+			store.setMaxSegments(1);
+			this.strategy.setStore(store);
+			HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+			HttpServletResponseMonitor monitor = monitorFactory.getMonitor();
+			monitor.setStatus(201);
+			monitor.write(new byte[4096]);
+			this.strategy.afterRequest(this.request, monitorFactory);
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			given(this.response.getOutputStream()).willReturn(new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					body.write(b);
+				}
+			});
+			this.strategy.handlePoll(this.request, this.response);
+			verify(this.response).setStatus(201);
+			assertThat(body.size(), is(4096));
+		} finally {
+			store.destroy();
+		}
+	}
+
+	@Test
+	public void shouldResumeAsyncPollFromAnotherInstance() throws Exception {
+		ReplayingTimeoutProtectionStrategy other = new ReplayingTimeoutProtectionStrategy();
+		other.setThreshold(THRESHOLD);
+		try {
+			InMemoryCompletedResponseStore store = new InMemoryCompletedResponseStore();
+			this.strategy.setStore(store);
+			this.strategy.setStorePollInterval(10);
+			other.setStore(store);
+			MockAsyncPoll poll = new MockAsyncPoll(this.response);
+			this.strategy.handleAsyncPoll(this.request, poll);
+			assertThat(poll.isComplete(), is(false));
+			HttpServletResponseMonitorFactory monitorFactory = other.handleRequest(this.request);
+			monitorFactory.getMonitor().setStatus(201);
+			other.afterRequest(this.request, monitorFactory);
+			assertThat(poll.awaitComplete(LONG_POLL_TIME), is(true));
+			verify(this.response).setStatus(201);
+			assertThat(this.strategy.getCompletedRequests().size(), is(0));
+		} finally {
+			other.destroy();
+		}
+	}
+
+	@Test
+	public void shouldCheckStoreUsingStoreExecutor() throws Exception {
+		final AtomicInteger executed = new AtomicInteger();
+		InMemoryCompletedResponseStore store = new InMemoryCompletedResponseStore();
+		this.strategy.setStore(store);
+		this.strategy.setStorePollInterval(10);
+		this.strategy.setStoreExecutor(new Executor() {
+			public void execute(Runnable command) {
+				executed.incrementAndGet();
+				new Thread(command).start();
+			}
+		});
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		assertThat(poll.awaitComplete(LONG_POLL_TIME * 5), is(true));
+		verify(this.response).setStatus(204);
+		assertThat(executed.get(), is(greaterThan(0)));
+	}
+
+	@Test
+	public void shouldRespondNoContentToAsyncPollWhenNothingStored() throws Exception {
+		this.strategy.setStore(new InMemoryCompletedResponseStore());
+		this.strategy.setStorePollInterval(10);
+		MockAsyncPoll poll = new MockAsyncPoll(this.response);
+		this.strategy.handleAsyncPoll(this.request, poll);
+		assertThat(poll.awaitComplete(LONG_POLL_TIME * 5), is(true));
+		verify(this.response).setStatus(204);
+		assertThat(this.strategy.getCompletedRequests().size(), is(0));
+	}
+
+	@Test
+	public void shouldNotMonitorWhenMemoryBudgetRejects() throws Exception {
+		MemoryBudget budget = new MemoryBudget(0);
+		budget.setPolicy(MemoryBudget.Policy.REJECT);
+		this.strategy.setMemoryBudget(budget);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		assertThat(monitorFactory.getMonitor(), is(nullValue()));
+		assertThat(budget.getRejectionCount(), is(1L));
+	}
+
+	@Test
+	public void shouldMonitorDetachedRequestImmediately() throws Exception {
+		MemoryBudget budget = new MemoryBudget(0);
+		budget.setPolicy(MemoryBudget.Policy.REJECT);
+		this.strategy.setMemoryBudget(budget);
+		this.strategy.setThreshold(10000);
+		given(this.request.isDetached()).willReturn(true);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		assertThat(monitorFactory.getMonitor(), is(not(nullValue())));
+		assertThat(budget.getRejectionCount(), is(0L));
+	}
+
+	@Test
+	public void shouldSpillWhenMemoryBudgetExceeded() throws Exception {
+		MemoryBudget budget = new MemoryBudget(0);
+		this.strategy.setMemoryBudget(budget);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().write(new byte[] { 1 });
+		assertThat(budget.getSpillCount(), is(1L));
+		assertThat(budget.getUsed(), is(0L));
+	}
+
+	@Test
+	public void shouldReportMetricsForReplayedResponse() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.strategy.setMetrics(metrics);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().sendError(100);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(metrics.getCount(Counter.THRESHOLD_EXCEEDED), is(1L));
+		assertThat(metrics.getHistogram(Timer.TIME_TO_THRESHOLD).getCount(), is(1L));
+		assertThat(metrics.getValue(Gauge.PENDING_RESPONSES), is(1L));
+		assertThat(metrics.getValue(Gauge.BUFFERED_BYTES), is(greaterThan(0L)));
+		this.strategy.handlePoll(this.request, this.response);
+		assertThat(metrics.getValue(Gauge.PENDING_RESPONSES), is(0L));
+		assertThat(metrics.getValue(Gauge.BUFFERED_BYTES), is(0L));
+		assertThat(metrics.getHistogram(Timer.HANDOFF_WAIT).getCount(), is(1L));
+		assertThat(metrics.getHistogram(Timer.TIME_TO_POLL).getCount(), is(1L));
+		assertThat(metrics.getHistogram(Timer.REPLAY).getCount(), is(1L));
+	}
+
+	@Test
+	public void shouldReportMetricsForEmptyPoll() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.strategy.setMetrics(metrics);
+		this.strategy.setLongPollTime(10);
+		this.strategy.handlePoll(this.request, this.response);
+		assertThat(metrics.getCount(Counter.EMPTY_POLLS), is(1L));
+		assertThat(metrics.getHistogram(Timer.TIME_TO_POLL).getCount(), is(0L));
+	}
+
+	@Test
+	public void shouldReportMetricsForExpiredResponse() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.strategy.setMetrics(metrics);
+		this.strategy.setFailTimeout(10);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor();
+		this.strategy.afterRequest(this.request, monitorFactory);
+		Thread.sleep(20);
+		this.strategy.getReaper().expire();
+		assertThat(metrics.getCount(Counter.EXPIRED_RESPONSES), is(1L));
+		assertThat(metrics.getValue(Gauge.PENDING_RESPONSES), is(0L));
+	}
+
+	@Test
+	public void shouldProtectSlowRouteImmediately() throws Exception {
+		AdaptiveThreshold adaptiveThreshold = new AdaptiveThreshold();
+		this.strategy.setAdaptiveThreshold(adaptiveThreshold);
+		this.strategy.setThreshold(TimeUnit.MINUTES.toMillis(1));
+		HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+		given(servletRequest.getRequestURI()).willReturn("/slow");
+		given(this.request.getServletRequest()).willReturn(servletRequest);
+		for (int i = 0; i < 20; i++) {
+			adaptiveThreshold.record(this.request, TimeUnit.MINUTES.toMillis(2), TimeUnit.MINUTES.toMillis(1));
+		}
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		assertThat(monitorFactory.getMonitor(), is(not(nullValue())));
+	}
+
+	@Test
+	public void shouldRecordRouteLatencyAfterRequest() throws Exception {
+		AdaptiveThreshold adaptiveThreshold = new AdaptiveThreshold();
+		this.strategy.setAdaptiveThreshold(adaptiveThreshold);
+		HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+		given(servletRequest.getRequestURI()).willReturn("/route");
+		given(this.request.getServletRequest()).willReturn(servletRequest);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		assertThat(adaptiveThreshold.getRoutes().get("/route").getSampleCount(), is(1));
+	}
+
+	@Test
+	public void shouldReplayFirstAvailableForBatchPoll() throws Exception {
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.secondRequest);
+		monitorFactory.getMonitor().setStatus(201);
+		this.strategy.afterRequest(this.secondRequest, monitorFactory);
+		this.strategy.handleBatchPoll(getBatchPollRequest(), this.response);
+		verify(this.response).setHeader(TimeoutProtectionHttpHeader.POLL, "2");
+		verify(this.response).setStatus(201);
+		assertThat(this.strategy.getCompletedRequests().size(), is(0));
+	}
+
+	@Test
+	public void shouldKeepPollHeaderWhenBatchPollReplaysReset() throws Exception {
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.secondRequest);
+		HttpServletResponseMonitor monitor = monitorFactory.getMonitor();
+		monitor.setHeader("X-Discarded", "value");
+		monitor.reset();
+		monitor.setStatus(201);
+		this.strategy.afterRequest(this.secondRequest, monitorFactory);
+		this.strategy.handleBatchPoll(getBatchPollRequest(), this.response);
+		InOrder ordered = inOrder(this.response);
+		ordered.verify(this.response).reset();
+		ordered.verify(this.response).setHeader(TimeoutProtectionHttpHeader.POLL, "2");
+		ordered.verify(this.response).setStatus(201);
+	}
+
+	@Test
+	public void shouldNotifyBatchPollAfterRequest() throws Exception {
+		this.strategy.setLongPollTime(TimeUnit.MINUTES.toMillis(1));
+		final TimeoutProtectionHttpRequest batchPollRequest = getBatchPollRequest();
+		Thread pollThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					ReplayingTimeoutProtectionStrategyTest.this.strategy.handleBatchPoll(batchPollRequest,
+							ReplayingTimeoutProtectionStrategyTest.this.response);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		pollThread.start();
+		Thread.sleep(10);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(this.request);
+		monitorFactory.getMonitor().setStatus(201);
+		this.strategy.afterRequest(this.request, monitorFactory);
+		pollThread.join(TimeUnit.SECONDS.toMillis(1));
+		assertThat(pollThread.isAlive(), is(false));
+		verify(this.response).setHeader(TimeoutProtectionHttpHeader.POLL, "1");
+		verify(this.response).setStatus(201);
+	}
+
+	@Test
+	public void shouldNotifyBatchPollWhenAnotherPollIsParked() throws Exception {
+		this.strategy.setLongPollTime(TimeUnit.MINUTES.toMillis(1));
+		TimeoutProtectionHttpRequest thirdRequest = mock(TimeoutProtectionHttpRequest.class);
+		given(thirdRequest.getUid()).willReturn("3");
+		HttpServletResponse otherResponse = mock(HttpServletResponse.class);
+		BatchPollThread otherPollThread = new BatchPollThread(getBatchPollRequest("2", "3"), otherResponse);
+		otherPollThread.start();
+		Thread.sleep(10);
+		BatchPollThread pollThread = new BatchPollThread(getBatchPollRequest("1", "2"), this.response);
+		pollThread.start();
+		Thread.sleep(10);
+		HttpServletResponseMonitorFactory monitorFactory = this.strategy.handleRequest(thirdRequest);
+		monitorFactory.getMonitor().setStatus(201);
+		this.strategy.afterRequest(thirdRequest, monitorFactory);
+		otherPollThread.join(TimeUnit.SECONDS.toMillis(1));
+		assertThat(otherPollThread.isAlive(), is(false));
+		verify(otherResponse).setHeader(TimeoutProtectionHttpHeader.POLL, "3");
+		// The uid completes while the remaining batch poll is parked
+		monitorFactory = this.strategy.handleRequest(this.secondRequest);
+		monitorFactory.getMonitor().setStatus(202);
+		this.strategy.afterRequest(this.secondRequest, monitorFactory);
+		pollThread.join(TimeUnit.SECONDS.toMillis(1));
+		assertThat(pollThread.isAlive(), is(false));
+		verify(this.response).setHeader(TimeoutProtectionHttpHeader.POLL, "2");
+		verify(this.response).setStatus(202);
+	}
+
+	@Test
+	public void shouldRespondNoContentToBatchPollAfterLongPollTime() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.strategy.setMetrics(metrics);
+		long startTime = System.currentTimeMillis();
+		this.strategy.handleBatchPoll(getBatchPollRequest(), this.response);
+		assertThat(System.currentTimeMillis() - startTime, is(greaterThanOrEqualTo(LONG_POLL_TIME)));
+		verify(this.response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+		verify(this.response).setHeader(TimeoutProtectionHttpHeader.BATCH_POLL, "1,2");
+		verify(this.response, never()).setHeader(eq(TimeoutProtectionHttpHeader.POLL), anyString());
+		assertThat(this.strategy.getCompletedRequests().size(), is(0));
+		assertThat(metrics.getCount(Counter.EMPTY_POLLS), is(1L));
+	}
+
+	@Test
+	public void shouldReplayStoredResponseForBatchPoll() throws Exception {
+		ReplayingTimeoutProtectionStrategy other = new ReplayingTimeoutProtectionStrategy();
+		other.setThreshold(THRESHOLD);
+		try {
+			InMemoryCompletedResponseStore store = new InMemoryCompletedResponseStore();
+			this.strategy.setStore(store);
+			this.strategy.setStorePollInterval(10);
+			other.setStore(store);
+			HttpServletResponseMonitorFactory monitorFactory = other.handleRequest(this.secondRequest);
+			monitorFactory.getMonitor().setStatus(201);
+			other.afterRequest(this.secondRequest, monitorFactory);
+			this.strategy.handleBatchPoll(getBatchPollRequest(), this.response);
+			verify(this.response).setHeader(TimeoutProtectionHttpHeader.POLL, "2");
+			verify(this.response).setStatus(201);
+			assertThat(store.size(), is(0));
+			assertThat(this.strategy.getCompletedRequests().size(), is(0));
+		} finally {
+			other.destroy();
+		}
+	}
+
+	private TimeoutProtectionHttpRequest getBatchPollRequest() {
+		return getBatchPollRequest("1", "2");
+	}
+
+	private TimeoutProtectionHttpRequest getBatchPollRequest(String... uids) {
+		TimeoutProtectionHttpRequest batchPollRequest = mock(TimeoutProtectionHttpRequest.class);
+		given(batchPollRequest.getUid()).willReturn(StringUtils.arrayToCommaDelimitedString(uids));
+		given(batchPollRequest.getUids()).willReturn(Arrays.asList(uids));
+		return batchPollRequest;
+	}
+
+	private class BatchPollThread extends Thread {
+
+		private final TimeoutProtectionHttpRequest request;
+
+		private final HttpServletResponse response;
+
+		public BatchPollThread(TimeoutProtectionHttpRequest request, HttpServletResponse response) {
+			this.request = request;
+			this.response = response;
+		}
+
+		@Override
+		public void run() {
+			try {
+				ReplayingTimeoutProtectionStrategyTest.this.strategy.handleBatchPoll(this.request, this.response);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
 	private class TimedPollThread extends Thread {
 
 		private Exception exception;
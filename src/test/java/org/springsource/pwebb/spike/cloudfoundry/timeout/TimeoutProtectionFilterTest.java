@@ -2,17 +2,23 @@ package org.springsource.pwebb.spike.cloudfoundry.timeout;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
 import static org.mockito.BDDMockito.willThrow;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
@@ -26,6 +32,11 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.StripedTimeoutProtectionMetrics;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Counter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitor;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.HttpServletResponseMonitorFactory;
 import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.MonitoredHttpServletResponseWrapper;
 
@@ -118,6 +129,146 @@ public class TimeoutProtectionFilterTest {
 		verify(this.protector).handlePoll(any(TimeoutProtectionHttpRequest.class), eq(this.response));
 	}
 
+	@Test
+	public void shouldHandlePollSynchronouslyIfAsyncNotSupported() throws Exception {
+		AsyncTimeoutProtectionStrategy protector = mock(AsyncTimeoutProtectionStrategy.class);
+		this.filter.setProtector(protector);
+		setupPollRequest();
+		this.filter.doFilter(this.request, this.response, this.chain);
+		verify(protector).handlePoll(any(TimeoutProtectionHttpRequest.class), eq(this.response));
+		verify(protector, never()).handleAsyncPoll(any(TimeoutProtectionHttpRequest.class), any(AsyncPoll.class));
+	}
+
+	@Test
+	public void shouldNotUseExecutorIfAsyncNotSupported() throws Exception {
+		Executor executor = mock(Executor.class);
+		this.filter.setExecutor(executor);
+		setupInitialRequest();
+		this.filter.doFilter(this.request, this.response, this.chain);
+		verify(this.chain).doFilter(eq(this.request), any(ServletResponse.class));
+		verifyZeroInteractions(executor);
+	}
+
+	@Test
+	public void shouldReportMetrics() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.filter.setMetrics(metrics);
+		this.filter.doFilter(this.request, this.response, this.chain);
+		setupInitialRequest();
+		this.filter.doFilter(this.request, this.response, this.chain);
+		assertThat(metrics.getCount(Counter.PROTECTED_REQUESTS), is(1L));
+		assertThat(metrics.getCount(Counter.POLLS), is(0L));
+	}
+
+	@Test
+	public void shouldReportPollMetrics() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.filter.setMetrics(metrics);
+		setupPollRequest();
+		this.filter.doFilter(this.request, this.response, this.chain);
+		assertThat(metrics.getCount(Counter.POLLS), is(1L));
+		assertThat(metrics.getCount(Counter.PROTECTED_REQUESTS), is(0L));
+	}
+
+	@Test
+	public void shouldDetachRequest() throws Exception {
+		StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+		this.filter.setMetrics(metrics);
+		setupInitialRequest();
+		willAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				ArgumentCaptor<Object> attribute = ArgumentCaptor.forClass(Object.class);
+				verify(TimeoutProtectionFilterTest.this.request).setAttribute(
+						eq(TimeoutProtectionHttpRequest.ATTRIBUTE), attribute.capture());
+				assertThat(((TimeoutProtectionHttpRequest) attribute.getValue()).detach(), is(true));
+				return null;
+			}
+		}).given(this.chain).doFilter(eq(this.request), any(ServletResponse.class));
+		this.filter.doFilter(this.request, this.response, this.chain);
+		verify(this.response).setStatus(HttpServletResponse.SC_ACCEPTED);
+		verify(this.response).setHeader(TimeoutProtectionHttpHeader.POLL, UID);
+		verify(this.response).setContentLength(0);
+		verify(this.response).flushBuffer();
+		verify(this.request).removeAttribute(TimeoutProtectionHttpRequest.ATTRIBUTE);
+		assertThat(metrics.getCount(Counter.DETACHED_REQUESTS), is(1L));
+	}
+
+	@Test
+	public void shouldFlushPendingWritesWhenChainFails() throws Exception {
+		HttpServletResponseMonitor monitor = mock(HttpServletResponseMonitor.class);
+		given(this.monitorFactory.getMonitor()).willReturn(monitor);
+		ServletOutputStream outputStream = mock(ServletOutputStream.class);
+		given(this.response.getOutputStream()).willReturn(outputStream);
+		setupInitialRequest();
+		willWriteAndThrow(new ServletException("Chain"));
+		try {
+			this.filter.doFilter(this.request, this.response, this.chain);
+			fail("Did not throw");
+		} catch (ServletException e) {
+			assertThat(e.getMessage(), is("Chain"));
+		}
+		verify(monitor).write(any(byte[].class), eq(0), eq(3));
+		verify(this.request).removeAttribute(TimeoutProtectionHttpRequest.ATTRIBUTE);
+	}
+
+	@Test
+	public void shouldNotHideChainFailureWhenFlushFails() throws Exception {
+		HttpServletResponseMonitor monitor = mock(HttpServletResponseMonitor.class);
+		given(this.monitorFactory.getMonitor()).willReturn(monitor);
+		ServletOutputStream outputStream = mock(ServletOutputStream.class);
+		given(this.response.getOutputStream()).willReturn(outputStream);
+		willThrow(new IOException("Flush")).given(monitor).write(any(byte[].class), eq(0), eq(3));
+		setupInitialRequest();
+		willWriteAndThrow(new ServletException("Chain"));
+		try {
+			this.filter.doFilter(this.request, this.response, this.chain);
+			fail("Did not throw");
+		} catch (ServletException e) {
+			assertThat(e.getMessage(), is("Chain"));
+		}
+		verify(this.request).removeAttribute(TimeoutProtectionHttpRequest.ATTRIBUTE);
+		verify(this.protector).afterRequest(any(TimeoutProtectionHttpRequest.class), eq(this.monitorFactory));
+	}
+
+	@Test
+	public void shouldNotImplementBatchPollIfNotSupported() throws Exception {
+		setupBatchPollRequest("1,2");
+		this.filter.doFilter(this.request, this.response, this.chain);
+		verify(this.response).setStatus(HttpServletResponse.SC_NOT_IMPLEMENTED);
+		verify(this.protector, never()).handlePoll(any(TimeoutProtectionHttpRequest.class),
+				any(HttpServletResponse.class));
+	}
+
+	@Test
+	public void shouldHandleBatchPoll() throws Exception {
+		BatchPollTimeoutProtectionStrategy protector = mock(BatchPollTimeoutProtectionStrategy.class);
+		this.filter.setProtector(protector);
+		setupBatchPollRequest("1,2");
+		this.filter.doFilter(this.request, this.response, this.chain);
+		verify(protector).handleBatchPoll(any(TimeoutProtectionHttpRequest.class), eq(this.response));
+		verifyZeroInteractions(this.chain);
+	}
+
+	@Test
+	public void shouldRejectEmptyBatchPoll() throws Exception {
+		BatchPollTimeoutProtectionStrategy protector = mock(BatchPollTimeoutProtectionStrategy.class);
+		this.filter.setProtector(protector);
+		setupBatchPollRequest(" , ");
+		this.filter.doFilter(this.request, this.response, this.chain);
+		verify(this.response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+		verify(protector, never()).handleBatchPoll(any(TimeoutProtectionHttpRequest.class),
+				any(HttpServletResponse.class));
+	}
+
+	private void willWriteAndThrow(final Exception exception) throws Exception {
+		willAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				((ServletResponse) invocation.getArguments()[1]).getOutputStream().write(new byte[3]);
+				throw exception;
+			}
+		}).given(this.chain).doFilter(eq(this.request), any(ServletResponse.class));
+	}
+
 	private void setupInitialRequest() {
 		given(this.request.getHeader(TimeoutProtectionHttpRequest.Type.INITIAL_REQUEST.value())).willReturn(UID);
 	}
@@ -125,4 +276,8 @@ public class TimeoutProtectionFilterTest {
 	private void setupPollRequest() {
 		given(this.request.getHeader(TimeoutProtectionHttpRequest.Type.POLL.value())).willReturn(UID);
 	}
+
+	private void setupBatchPollRequest(String uids) {
+		given(this.request.getHeader(TimeoutProtectionHttpRequest.Type.BATCH_POLL.value())).willReturn(uids);
+	}
 }
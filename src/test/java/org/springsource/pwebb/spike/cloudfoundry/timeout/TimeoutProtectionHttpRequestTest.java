@@ -1,16 +1,25 @@
 package org.springsource.pwebb.spike.cloudfoundry.timeout;
 
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collections;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.TimeoutProtectionHttpRequest.DetachHandler;
 
 /**
  * Tests for {@link TimeoutProtectionHttpRequest}.
@@ -21,6 +30,9 @@ public class TimeoutProtectionHttpRequestTest {
 
 	private static final String UID = "xxxx-xxxx-xxxx-xxxx";
 
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
 	@Test
 	public void shouldNotGetFromNotHttp() throws Exception {
 		assertNull(TimeoutProtectionHttpRequest.get(null));
@@ -49,6 +61,21 @@ public class TimeoutProtectionHttpRequestTest {
 		assertThat(protectionRequest.getUid(), is(UID));
 	}
 
+	@Test
+	public void shouldGetBatchPollRequest() throws Exception {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		given(request.getHeader("x-cloudfoundry-timeout-protection-batch-poll")).willReturn("a, b,,a,c ");
+		TimeoutProtectionHttpRequest protectionRequest = TimeoutProtectionHttpRequest.get(request);
+		assertNotNull(protectionRequest);
+		assertThat(protectionRequest.getType(), is(TimeoutProtectionHttpRequest.Type.BATCH_POLL));
+		assertThat(protectionRequest.getUids(), is(equalTo(Arrays.asList("a", "b", "c"))));
+	}
+
+	@Test
+	public void shouldGetSingleUid() throws Exception {
+		assertThat(getInitialRequest().getUids(), is(equalTo(Collections.singletonList(UID))));
+	}
+
 	@Test
 	public void shouldNotGetIfNoHeader() throws Exception {
 		HttpServletRequest request = mock(HttpServletRequest.class);
@@ -64,4 +91,64 @@ public class TimeoutProtectionHttpRequestTest {
 		assertNull(protectionRequest);
 	}
 
+	@Test
+	public void shouldDetach() throws Exception {
+		TimeoutProtectionHttpRequest protectionRequest = getInitialRequest();
+		DetachHandler detachHandler = mock(DetachHandler.class);
+		protectionRequest.setDetachHandler(detachHandler);
+		assertThat(protectionRequest.detach(), is(true));
+		assertThat(protectionRequest.detach(), is(true));
+		assertThat(protectionRequest.isDetached(), is(true));
+		verify(detachHandler).detach(protectionRequest);
+	}
+
+	@Test
+	public void shouldNotDetachWithoutHandler() throws Exception {
+		TimeoutProtectionHttpRequest protectionRequest = getInitialRequest();
+		assertThat(protectionRequest.detach(), is(false));
+		assertThat(protectionRequest.isDetached(), is(false));
+	}
+
+	@Test
+	public void shouldNotBeDetachedIfHandlerFails() throws Exception {
+		TimeoutProtectionHttpRequest protectionRequest = getInitialRequest();
+		DetachHandler detachHandler = mock(DetachHandler.class);
+		willThrow(new IllegalStateException()).given(detachHandler).detach(protectionRequest);
+		protectionRequest.setDetachHandler(detachHandler);
+		try {
+			protectionRequest.detach();
+		} catch (IllegalStateException e) {
+		}
+		assertThat(protectionRequest.isDetached(), is(false));
+	}
+
+	@Test
+	public void shouldNotDetachPoll() throws Exception {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		given(request.getHeader("x-cloudfoundry-timeout-protection-poll")).willReturn(UID);
+		this.thrown.expect(IllegalStateException.class);
+		this.thrown.expectMessage("Only initial requests can be detached");
+		TimeoutProtectionHttpRequest.get(request).detach();
+	}
+
+	@Test
+	public void shouldDetachFromRequestAttribute() throws Exception {
+		TimeoutProtectionHttpRequest protectionRequest = getInitialRequest();
+		protectionRequest.setDetachHandler(mock(DetachHandler.class));
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		given(request.getAttribute(TimeoutProtectionHttpRequest.ATTRIBUTE)).willReturn(protectionRequest);
+		assertThat(TimeoutProtectionHttpRequest.detach(request), is(true));
+		assertThat(protectionRequest.isDetached(), is(true));
+	}
+
+	@Test
+	public void shouldNotDetachUnprotectedRequest() throws Exception {
+		assertThat(TimeoutProtectionHttpRequest.detach(mock(HttpServletRequest.class)), is(false));
+	}
+
+	private TimeoutProtectionHttpRequest getInitialRequest() {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		given(request.getHeader("x-cloudfoundry-timeout-protection-initial-request")).willReturn(UID);
+		return TimeoutProtectionHttpRequest.get(request);
+	}
 }
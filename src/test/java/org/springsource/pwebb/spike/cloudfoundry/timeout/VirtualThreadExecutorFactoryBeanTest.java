@@ -0,0 +1,53 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests for {@link VirtualThreadExecutorFactoryBean}.
+ * 
+ * @author Phillip Webb
+ */
+public class VirtualThreadExecutorFactoryBeanTest {
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private VirtualThreadExecutorFactoryBean factoryBean = new VirtualThreadExecutorFactoryBean();
+
+	@After
+	public void cleanup() {
+		this.factoryBean.destroy();
+	}
+
+	@Test
+	public void shouldCreateExecutorIfSupported() throws Exception {
+		if (!VirtualThreadExecutorFactoryBean.isSupported()) {
+			this.thrown.expect(IllegalStateException.class);
+			this.thrown.expectMessage("Virtual threads are not supported by this JVM");
+		}
+		ExecutorService executor = this.factoryBean.getObject();
+		final CountDownLatch latch = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		});
+		assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+	}
+
+	@Test
+	public void shouldBeSingleton() throws Exception {
+		assertThat(this.factoryBean.isSingleton(), is(true));
+		assertThat(this.factoryBean.getObjectType().getName(), is(ExecutorService.class.getName()));
+	}
+}
@@ -0,0 +1,72 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.metrics;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Counter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Gauge;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Timer;
+
+/**
+ * Tests for {@link JmxTimeoutProtectionMetricsExporter}.
+ * 
+ * @author Phillip Webb
+ */
+public class JmxTimeoutProtectionMetricsExporterTest {
+
+	private static final String OBJECT_NAME = "test:type=TimeoutProtectionMetrics";
+
+	private MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+	private StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+
+	private JmxTimeoutProtectionMetricsExporter exporter = new JmxTimeoutProtectionMetricsExporter(this.metrics);
+
+	@Before
+	public void setup() throws Exception {
+		this.exporter.setObjectName(OBJECT_NAME);
+		this.exporter.afterPropertiesSet();
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		this.exporter.destroy();
+	}
+
+	@Test
+	public void shouldExportCounter() throws Exception {
+		this.metrics.increment(Counter.THRESHOLD_EXCEEDED);
+		assertThat(getAttribute("ThresholdExceeded"), is(1L));
+	}
+
+	@Test
+	public void shouldExportGauge() throws Exception {
+		this.metrics.adjust(Gauge.PENDING_RESPONSES, 3);
+		assertThat(getAttribute("PendingResponses"), is(3L));
+	}
+
+	@Test
+	public void shouldExportTimerInMicroseconds() throws Exception {
+		this.metrics.record(Timer.TIME_TO_POLL, 2000000);
+		assertThat(getAttribute("TimeToPollCount"), is(1L));
+		assertThat(getAttribute("TimeToPollMax"), is(2000L));
+	}
+
+	@Test
+	public void shouldUnregister() throws Exception {
+		this.exporter.destroy();
+		assertThat(this.server.isRegistered(new ObjectName(OBJECT_NAME)), is(false));
+	}
+
+	private Object getAttribute(String name) throws Exception {
+		return this.server.getAttribute(new ObjectName(OBJECT_NAME), name);
+	}
+}
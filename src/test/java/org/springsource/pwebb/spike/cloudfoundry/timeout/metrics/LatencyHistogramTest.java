@@ -0,0 +1,89 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.metrics;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ * 
+ * @author Phillip Webb
+ */
+public class LatencyHistogramTest {
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private LatencyHistogram histogram = new LatencyHistogram();
+
+	@Test
+	public void shouldBeEmpty() throws Exception {
+		assertThat(this.histogram.getCount(), is(0L));
+		assertThat(this.histogram.getMean(), is(0L));
+		assertThat(this.histogram.getMax(), is(0L));
+		assertThat(this.histogram.getValueAtPercentile(99.0), is(0L));
+	}
+
+	@Test
+	public void shouldRecordValues() throws Exception {
+		this.histogram.record(100);
+		this.histogram.record(300);
+		assertThat(this.histogram.getCount(), is(2L));
+		assertThat(this.histogram.getMean(), is(200L));
+		assertThat(this.histogram.getMax(), is(300L));
+	}
+
+	@Test
+	public void shouldRecordNegativeAsZero() throws Exception {
+		this.histogram.record(-1);
+		assertThat(this.histogram.getCount(), is(1L));
+		assertThat(this.histogram.getValueAtPercentile(100.0), is(0L));
+	}
+
+	@Test
+	public void shouldReportSmallValuesExactly() throws Exception {
+		for (int i = 0; i < LatencyHistogram.SUB_BUCKETS; i++) {
+			this.histogram.record(i);
+		}
+		assertThat(this.histogram.getValueAtPercentile(50.0), is(3L));
+		assertThat(this.histogram.getValueAtPercentile(100.0), is(7L));
+	}
+
+	@Test
+	public void shouldReportPercentilesWithinPrecision() throws Exception {
+		for (int i = 1; i <= 1000; i++) {
+			this.histogram.record(i * 1000L);
+		}
+		assertWithinPrecision(this.histogram.getValueAtPercentile(50.0), 500000);
+		assertWithinPrecision(this.histogram.getValueAtPercentile(99.0), 990000);
+		assertThat(this.histogram.getValueAtPercentile(100.0), is(1000000L));
+	}
+
+	private void assertWithinPrecision(long actual, long expected) {
+		assertThat(actual, is(greaterThanOrEqualTo(expected)));
+		assertThat(actual, is(lessThanOrEqualTo(expected + expected / LatencyHistogram.SUB_BUCKETS)));
+	}
+
+	@Test
+	public void shouldHaveContiguousBuckets() throws Exception {
+		int lastBucket = LatencyHistogram.bucketIndex(Long.MAX_VALUE);
+		for (int i = 0; i < lastBucket; i++) {
+			long highest = LatencyHistogram.highestValue(i);
+			assertThat(LatencyHistogram.bucketIndex(highest), is(i));
+			assertThat(LatencyHistogram.bucketIndex(highest + 1), is(i + 1));
+		}
+		assertThat(LatencyHistogram.highestValue(lastBucket), is(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void shouldNeedValidPercentile() throws Exception {
+		this.thrown.expect(IllegalArgumentException.class);
+		this.thrown.expectMessage("Percentile must be between 0 and 100");
+		this.histogram.getValueAtPercentile(101.0);
+	}
+}
@@ -0,0 +1,61 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.metrics;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Counter;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Gauge;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.metrics.TimeoutProtectionMetrics.Timer;
+
+/**
+ * Tests for {@link StripedTimeoutProtectionMetrics}.
+ * 
+ * @author Phillip Webb
+ */
+public class StripedTimeoutProtectionMetricsTest {
+
+	private StripedTimeoutProtectionMetrics metrics = new StripedTimeoutProtectionMetrics();
+
+	@Test
+	public void shouldIncrementCounter() throws Exception {
+		this.metrics.increment(Counter.POLLS);
+		this.metrics.increment(Counter.POLLS);
+		assertThat(this.metrics.getCount(Counter.POLLS), is(2L));
+		assertThat(this.metrics.getCount(Counter.EMPTY_POLLS), is(0L));
+	}
+
+	@Test
+	public void shouldAdjustGauge() throws Exception {
+		this.metrics.adjust(Gauge.BUFFERED_BYTES, 100);
+		this.metrics.adjust(Gauge.BUFFERED_BYTES, -40);
+		assertThat(this.metrics.getValue(Gauge.BUFFERED_BYTES), is(60L));
+	}
+
+	@Test
+	public void shouldRecordTimer() throws Exception {
+		this.metrics.record(Timer.REPLAY, 100);
+		assertThat(this.metrics.getHistogram(Timer.REPLAY).getCount(), is(1L));
+		assertThat(this.metrics.getHistogram(Timer.TIME_TO_POLL).getCount(), is(0L));
+	}
+
+	@Test
+	public void shouldCountFromManyThreads() throws Exception {
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						StripedTimeoutProtectionMetricsTest.this.metrics.increment(Counter.PROTECTED_REQUESTS);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertThat(this.metrics.getCount(Counter.PROTECTED_REQUESTS), is(80000L));
+	}
+}
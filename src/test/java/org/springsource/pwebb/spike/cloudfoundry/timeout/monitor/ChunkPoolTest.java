@@ -0,0 +1,56 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ChunkPool}.
+ * 
+ * @author Phillip Webb
+ */
+public class ChunkPoolTest {
+
+	@Test
+	public void shouldAllocateChunksOfChunkSize() throws Exception {
+		ChunkPool pool = new ChunkPool(16, 1);
+		assertThat(pool.acquire().length, is(16));
+	}
+
+	@Test
+	public void shouldReuseReleasedChunks() throws Exception {
+		ChunkPool pool = new ChunkPool(16, 1);
+		byte[] chunk = pool.acquire();
+		pool.release(chunk);
+		assertThat(pool.getPooledChunks(), is(1));
+		assertThat(pool.acquire(), is(sameInstance(chunk)));
+		assertThat(pool.getPooledChunks(), is(0));
+	}
+
+	@Test
+	public void shouldNotRetainMoreThanMaxPooledChunks() throws Exception {
+		ChunkPool pool = new ChunkPool(16, 1);
+		byte[] chunk1 = pool.acquire();
+		byte[] chunk2 = pool.acquire();
+		pool.release(chunk1);
+		pool.release(chunk2);
+		assertThat(pool.getPooledChunks(), is(1));
+	}
+
+	@Test
+	public void shouldNotRetainChunksOfDifferentSize() throws Exception {
+		ChunkPool pool = new ChunkPool(16, 1);
+		pool.release(new byte[8]);
+		assertThat(pool.getPooledChunks(), is(0));
+	}
+
+	@Test
+	public void shouldNotRetainChunksWithNone() throws Exception {
+		byte[] chunk = ChunkPool.NONE.acquire();
+		ChunkPool.NONE.release(chunk);
+		assertThat(ChunkPool.NONE.acquire(), is(not(sameInstance(chunk))));
+	}
+}
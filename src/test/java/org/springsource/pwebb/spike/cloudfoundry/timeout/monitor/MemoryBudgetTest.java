@@ -0,0 +1,114 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests for {@link MemoryBudget}.
+ * 
+ * @author Phillip Webb
+ */
+public class MemoryBudgetTest {
+
+	private MemoryBudget budget = new MemoryBudget(100);
+
+	@Test
+	public void shouldAcquireWithinLimit() throws Exception {
+		assertThat(this.budget.acquire(60), is(true));
+		assertThat(this.budget.acquire(40), is(true));
+		assertThat(this.budget.getUsed(), is(100L));
+		assertThat(this.budget.acquire(1), is(false));
+		assertThat(this.budget.getSpillCount(), is(1L));
+	}
+
+	@Test
+	public void shouldRelease() throws Exception {
+		this.budget.acquire(60);
+		this.budget.release(60);
+		this.budget.acquire(10);
+		assertThat(this.budget.getUsed(), is(10L));
+		assertThat(this.budget.getPeakUsed(), is(60L));
+	}
+
+	@Test
+	public void shouldAlwaysProtectWithSpillPolicy() throws Exception {
+		this.budget.acquire(100);
+		assertThat(this.budget.tryProtect(), is(true));
+	}
+
+	@Test
+	public void shouldRejectWhenExhausted() throws Exception {
+		this.budget.setPolicy(MemoryBudget.Policy.REJECT);
+		assertThat(this.budget.tryProtect(), is(true));
+		this.budget.acquire(100);
+		assertThat(this.budget.tryProtect(), is(false));
+		assertThat(this.budget.getRejectionCount(), is(1L));
+	}
+
+	@Test
+	public void shouldEvictOldest() throws Exception {
+		this.budget.setPolicy(MemoryBudget.Policy.EVICT_OLDEST);
+		MemoryBudget.Evictable oldest = releasing(60);
+		MemoryBudget.Evictable newest = releasing(40);
+		this.budget.acquire(60);
+		this.budget.register(oldest);
+		this.budget.acquire(40);
+		this.budget.register(newest);
+		assertThat(this.budget.acquire(50), is(true));
+		verify(oldest).evict();
+		verify(newest, never()).evict();
+		assertThat(this.budget.getUsed(), is(90L));
+		assertThat(this.budget.getEvictionCount(), is(1L));
+	}
+
+	@Test
+	public void shouldSkipItemsThatCannotBeEvicted() throws Exception {
+		this.budget.setPolicy(MemoryBudget.Policy.EVICT_OLDEST);
+		MemoryBudget.Evictable locked = mock(MemoryBudget.Evictable.class);
+		MemoryBudget.Evictable evictable = releasing(100);
+		this.budget.acquire(100);
+		this.budget.register(locked);
+		this.budget.register(evictable);
+		assertThat(this.budget.acquire(10), is(true));
+		verify(evictable).evict();
+	}
+
+	@Test
+	public void shouldSpillWhenNothingCanBeEvicted() throws Exception {
+		this.budget.setPolicy(MemoryBudget.Policy.EVICT_OLDEST);
+		this.budget.acquire(100);
+		this.budget.register(mock(MemoryBudget.Evictable.class));
+		assertThat(this.budget.acquire(10), is(false));
+		assertThat(this.budget.getSpillCount(), is(1L));
+	}
+
+	@Test
+	public void shouldNotEvictUnregistered() throws Exception {
+		this.budget.setPolicy(MemoryBudget.Policy.EVICT_OLDEST);
+		MemoryBudget.Evictable evictable = releasing(100);
+		this.budget.acquire(100);
+		this.budget.register(evictable);
+		this.budget.unregister(evictable);
+		assertThat(this.budget.acquire(10), is(false));
+		verify(evictable, never()).evict();
+	}
+
+	private MemoryBudget.Evictable releasing(final long bytes) {
+		MemoryBudget.Evictable evictable = mock(MemoryBudget.Evictable.class);
+		given(evictable.evict()).willAnswer(new Answer<Boolean>() {
+			public Boolean answer(InvocationOnMock invocation) throws Throwable {
+				MemoryBudgetTest.this.budget.release(bytes);
+				return true;
+			}
+		});
+		return evictable;
+	}
+}
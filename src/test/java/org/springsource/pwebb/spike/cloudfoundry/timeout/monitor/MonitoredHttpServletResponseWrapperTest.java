@@ -2,9 +2,15 @@ package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -12,6 +18,7 @@ import static org.mockito.Mockito.verifyZeroInteractions;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.Locale;
 
 import javax.servlet.ServletOutputStream;
@@ -24,6 +31,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -88,6 +96,36 @@ public class MonitoredHttpServletResponseWrapperTest {
 		verifyZeroInteractions(this.monitor);
 	}
 
+	@Test
+	public void shouldNotMonitorOutputStreamOnceKnownToBeUnmonitored() throws Exception {
+		HttpServletResponseMonitorFactory monitorFactory = mock(HttpServletResponseMonitorFactory.class);
+		this.wrapper = new MonitoredHttpServletResponseWrapper(this.response, monitorFactory);
+		this.wrapper.setStatus(200);
+		assertThat(this.wrapper.getOutputStream(), is(sameInstance(this.responseStream)));
+	}
+
+	@Test
+	public void shouldNotMonitorWriterOnceKnownToBeUnmonitored() throws Exception {
+		PrintWriter writer = new PrintWriter(new StringWriter());
+		given(this.response.getWriter()).willReturn(writer);
+		HttpServletResponseMonitorFactory monitorFactory = mock(HttpServletResponseMonitorFactory.class);
+		this.wrapper = new MonitoredHttpServletResponseWrapper(this.response, monitorFactory);
+		this.wrapper.setStatus(200);
+		assertThat(this.wrapper.getWriter(), is(sameInstance(writer)));
+	}
+
+	@Test
+	public void shouldNotCallMonitorFromOutputStreamOnceKnownToBeUnmonitored() throws Exception {
+		HttpServletResponseMonitorFactory monitorFactory = mock(HttpServletResponseMonitorFactory.class);
+		this.wrapper = new MonitoredHttpServletResponseWrapper(this.response, monitorFactory);
+		ServletOutputStream outputStream = this.wrapper.getOutputStream();
+		outputStream.write(1);
+		outputStream.write(2);
+		verify(monitorFactory, times(1)).getMonitor();
+		verify(this.responseStream).write(1);
+		verify(this.responseStream).write(2);
+	}
+
 	@Test
 	public void shouldCallMonitorFactoryAsLateAsPossible() throws Exception {
 		HttpServletResponseMonitorFactory monitorFactory = mock(HttpServletResponseMonitorFactory.class);
@@ -266,17 +304,18 @@ public class MonitoredHttpServletResponseWrapperTest {
 	public void shouldDelegateAndMonitorOutputStreamByte() throws Exception {
 		int b = 100;
 		this.wrapper.getOutputStream().write(b);
+		this.wrapper.getWriter().flush();
 		verify(this.responseStream).write(b);
-		verify(this.monitor).write(b);
+		new OutputStreamBytesVerifier().verify(this.monitor, new byte[] { 100 });
 	}
 
 	@Test
 	public void shouldDelegateAndMonitorOutputStreamBytes() throws Exception {
 		byte[] b = { 0, 1, 2 };
 		this.wrapper.getOutputStream().write(b);
+		this.wrapper.getWriter().flush();
 		verify(this.responseStream).write(b);
-		verify(this.monitor).write(b);
-
+		new OutputStreamBytesVerifier().verify(this.monitor, b);
 	}
 
 	@Test
@@ -285,18 +324,100 @@ public class MonitoredHttpServletResponseWrapperTest {
 		int off = 1;
 		int len = 2;
 		this.wrapper.getOutputStream().write(b, off, len);
+		this.wrapper.getWriter().flush();
 		verify(this.responseStream).write(b, off, len);
-		verify(this.monitor).write(b, off, len);
+		new OutputStreamBytesVerifier().verify(this.monitor, new byte[] { 1, 2 });
 	}
 
 	@Test
 	public void shouldDelegateAndMonitorPrintWriter() throws Exception {
 		PrintWriter writer = this.wrapper.getWriter();
 		writer.println("A");
+		this.wrapper.getWriter().flush();
 		OutputStreamBytesVerifier verifier = new OutputStreamBytesVerifier();
 		verifier.verify(this.responseStream, "A\n".getBytes());
 	}
 
+	@Test
+	public void shouldCoalesceSmallWrites() throws Exception {
+		ServletOutputStream outputStream = this.wrapper.getOutputStream();
+		outputStream.write(1);
+		outputStream.write(new byte[] { 2, 3 });
+		outputStream.write(new byte[] { 3, 4, 5 }, 1, 2);
+		verify(this.monitor, never()).write(any(byte[].class), anyInt(), anyInt());
+		outputStream.flush();
+		new OutputStreamBytesVerifier().verify(this.monitor, new byte[] { 1, 2, 3, 4, 5 });
+	}
+
+	@Test
+	public void shouldPassLargeWritesDirectly() throws Exception {
+		byte[] b = new byte[4096];
+		this.wrapper.getOutputStream().write(b, 0, b.length);
+		verify(this.monitor).write(b, 0, b.length);
+	}
+
+	@Test
+	public void shouldPassPendingWritesBeforeOtherEvents() throws Exception {
+		this.wrapper.getOutputStream().write(1);
+		this.wrapper.setHeader("a", "b");
+		InOrder ordered = inOrder(this.monitor);
+		ordered.verify(this.monitor).write(any(byte[].class), eq(0), eq(1));
+		ordered.verify(this.monitor).setHeader("a", "b");
+	}
+
+	@Test
+	public void shouldReuseOutputStream() throws Exception {
+		assertThat(this.wrapper.getOutputStream(), is(sameInstance(this.wrapper.getOutputStream())));
+	}
+
+	@Test
+	public void shouldReuseWriter() throws Exception {
+		assertThat(this.wrapper.getWriter(), is(sameInstance(this.wrapper.getWriter())));
+	}
+
+	@Test
+	public void shouldBufferWriterUntilFlushBuffer() throws Exception {
+		PrintWriter writer = this.wrapper.getWriter();
+		writer.println("A");
+		writer.println("B");
+		verifyZeroInteractions(this.responseStream);
+		this.wrapper.flushBuffer();
+		new OutputStreamBytesVerifier().verify(this.responseStream, "A\nB\n".getBytes());
+		verify(this.monitor).flushBuffer();
+	}
+
+	@Test
+	public void shouldDetach() throws Exception {
+		assertThat(this.wrapper.detach(), is(sameInstance(this.response)));
+		this.wrapper.setStatus(201);
+		this.wrapper.setHeader("a", "b");
+		this.wrapper.getOutputStream().write(1);
+		this.wrapper.flushBuffer();
+		verify(this.monitor).setStatus(201);
+		verify(this.monitor).setHeader("a", "b");
+		new OutputStreamBytesVerifier().verify(this.monitor, new byte[] { 1 });
+		verifyZeroInteractions(this.response, this.responseStream);
+	}
+
+	@Test
+	public void shouldEncodeDetachedWriterUsingContentTypeCharset() throws Exception {
+		this.wrapper.detach();
+		this.wrapper.setContentType("text/plain; charset=UTF-16BE");
+		assertThat(this.wrapper.getCharacterEncoding(), is(equalTo("UTF-16BE")));
+		assertThat(this.wrapper.getContentType(), is(equalTo("text/plain; charset=UTF-16BE")));
+		this.wrapper.getWriter().write("A");
+		this.wrapper.flushBuffer();
+		new OutputStreamBytesVerifier().verify(this.monitor, new byte[] { 0, 65 });
+	}
+
+	@Test
+	public void shouldNotDetachOnceWritten() throws Exception {
+		this.wrapper.setStatus(200);
+		this.thrown.expect(IllegalStateException.class);
+		this.thrown.expectMessage("Unable to detach a response that has already been written to");
+		this.wrapper.detach();
+	}
+
 	private static class OutputStreamBytesVerifier {
 
 		@Captor
@@ -314,10 +435,18 @@ public class MonitoredHttpServletResponseWrapperTest {
 
 		public void verify(OutputStream outputStream, byte[] expected) throws IOException {
 			Mockito.verify(outputStream).write(this.b.capture(), this.off.capture(), this.len.capture());
+			assertBytes(expected);
+		}
+
+		public void verify(HttpServletResponseMonitor monitor, byte[] expected) throws IOException {
+			Mockito.verify(monitor).write(this.b.capture(), this.off.capture(), this.len.capture());
+			assertBytes(expected);
+		}
+
+		private void assertBytes(byte[] expected) {
 			byte[] actual = new byte[this.len.getValue()];
 			System.arraycopy(this.b.getValue(), this.off.getValue(), actual, 0, this.len.getValue());
 			assertThat(actual, is(equalTo(expected)));
 		}
 	}
-
 }
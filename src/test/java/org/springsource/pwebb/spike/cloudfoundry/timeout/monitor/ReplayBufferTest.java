@@ -0,0 +1,135 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests for {@link ReplayBuffer}.
+ * 
+ * @author Phillip Webb
+ */
+public class ReplayBufferTest {
+
+	private static final byte[] BYTES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private ReplayBuffer buffer = new ReplayBuffer(8);
+
+	@After
+	public void cleanup() {
+		this.buffer.release();
+	}
+
+	@Test
+	public void shouldHoldSmallContentInMemory() throws Exception {
+		this.buffer.write(BYTES, 0, 8);
+		assertThat(this.buffer.isSpilled(), is(false));
+		assertThat(this.buffer.size(), is(8L));
+		assertThat(writeToByteArray(), is(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7 }));
+	}
+
+	@Test
+	public void shouldSpillLargeContent() throws Exception {
+		this.buffer.write(BYTES, 0, 6);
+		this.buffer.write(BYTES, 6, 4);
+		this.buffer.write(10);
+		assertThat(this.buffer.isSpilled(), is(true));
+		assertThat(this.buffer.size(), is(11L));
+		assertThat(writeToByteArray(), is(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }));
+	}
+
+	@Test
+	public void shouldSpanChunks() throws Exception {
+		ChunkPool pool = new ChunkPool(3, 10);
+		this.buffer = new ReplayBuffer(100, pool);
+		this.buffer.write(BYTES, 0, 2);
+		this.buffer.write(BYTES, 2, 5);
+		this.buffer.write(7);
+		this.buffer.readFrom(new ByteArrayInputStream(BYTES, 8, 2), 2);
+		assertThat(this.buffer.isSpilled(), is(false));
+		assertThat(writeToByteArray(), is(BYTES));
+		this.buffer.release();
+		assertThat(pool.getPooledChunks(), is(4));
+	}
+
+	@Test
+	public void shouldReleaseChunksOnSpill() throws Exception {
+		ChunkPool pool = new ChunkPool(4, 10);
+		this.buffer = new ReplayBuffer(8, pool);
+		this.buffer.write(BYTES, 0, 8);
+		assertThat(pool.getPooledChunks(), is(0));
+		this.buffer.write(BYTES, 8, 2);
+		assertThat(this.buffer.isSpilled(), is(true));
+		assertThat(pool.getPooledChunks(), is(2));
+		assertThat(writeToByteArray(), is(BYTES));
+	}
+
+	@Test
+	public void shouldWriteToMoreThanOnce() throws Exception {
+		this.buffer.write(BYTES);
+		assertThat(writeToByteArray(), is(BYTES));
+		assertThat(writeToByteArray(), is(BYTES));
+	}
+
+	@Test
+	public void shouldReadFrom() throws Exception {
+		this.buffer.readFrom(new ByteArrayInputStream(BYTES), 9);
+		assertThat(this.buffer.size(), is(9L));
+		assertThat(writeToByteArray(), is(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8 }));
+	}
+
+	@Test
+	public void shouldFailReadFromShortStream() throws Exception {
+		this.thrown.expectMessage("Unexpected end of stream");
+		this.buffer.readFrom(new ByteArrayInputStream(BYTES), 20);
+	}
+
+	@Test
+	public void shouldNotWriteAfterRelease() throws Exception {
+		this.buffer.write(BYTES);
+		this.buffer.release();
+		this.thrown.expect(IllegalStateException.class);
+		this.thrown.expectMessage("ReplayBuffer has been released");
+		this.buffer.write(1);
+	}
+
+	@Test
+	public void shouldAcquireChunksFromMemoryBudget() throws Exception {
+		MemoryBudget budget = new MemoryBudget(6);
+		this.buffer = new ReplayBuffer(100, new ChunkPool(3, 0), budget);
+		this.buffer.write(BYTES, 0, 4);
+		assertThat(budget.getUsed(), is(6L));
+		this.buffer.write(BYTES, 4, 2);
+		assertThat(this.buffer.isSpilled(), is(false));
+		this.buffer.release();
+		assertThat(budget.getUsed(), is(0L));
+	}
+
+	@Test
+	public void shouldSpillWhenMemoryBudgetExceeded() throws Exception {
+		MemoryBudget budget = new MemoryBudget(6);
+		this.buffer = new ReplayBuffer(100, new ChunkPool(3, 0), budget);
+		this.buffer.write(BYTES, 0, 6);
+		this.buffer.write(BYTES, 6, 4);
+		assertThat(this.buffer.isSpilled(), is(true));
+		assertThat(budget.getUsed(), is(0L));
+		assertThat(budget.getSpillCount(), is(1L));
+		assertThat(writeToByteArray(), is(BYTES));
+	}
+
+	private byte[] writeToByteArray() throws Exception {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		this.buffer.writeTo(outputStream);
+		return outputStream.toByteArray();
+	}
+}
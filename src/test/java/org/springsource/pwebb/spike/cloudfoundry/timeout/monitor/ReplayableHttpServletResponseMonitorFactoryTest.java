@@ -6,7 +6,8 @@ import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.BDDMockito.given;
-import static org.mockito.Mockito.mock;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import java.io.ByteArrayInputStream;
@@ -21,7 +22,10 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -32,6 +36,9 @@ import org.mockito.MockitoAnnotations;
  */
 public class ReplayableHttpServletResponseMonitorFactoryTest {
 
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
 	private ReplayableHttpServletResponseMonitor monitor;
 
 	@Mock
@@ -54,10 +61,15 @@ public class ReplayableHttpServletResponseMonitorFactoryTest {
 
 	@Test
 	public void shouldRecordAddCookie() throws Exception {
-		Cookie cookie = mock(Cookie.class);
+		Cookie cookie = new Cookie("name", "value");
+		cookie.setPath("/path");
 		this.monitor.addCookie(cookie);
 		this.monitor.getReplayableResponse().replay(this.response);
-		verify(this.response).addCookie(cookie);
+		ArgumentCaptor<Cookie> captor = ArgumentCaptor.forClass(Cookie.class);
+		verify(this.response).addCookie(captor.capture());
+		assertThat(captor.getValue().getName(), is("name"));
+		assertThat(captor.getValue().getValue(), is("value"));
+		assertThat(captor.getValue().getPath(), is("/path"));
 	}
 
 	@Test
@@ -249,6 +261,39 @@ public class ReplayableHttpServletResponseMonitorFactoryTest {
 		assertThat(this.responseOutputStream.toByteArray(), is(new byte[] { 0, 1, 2, 3 }));
 	}
 
+	@Test
+	public void shouldReplayBodyLargerThanMaxInMemorySize() throws Exception {
+		ReplayableHttpServletResponseMonitorFactory factory = new ReplayableHttpServletResponseMonitorFactory();
+		factory.setMaxInMemorySize(2);
+		this.monitor = factory.getMonitor();
+		byte[] b = { 0, 1, 2, 3 };
+		this.monitor.write(b);
+		this.monitor.getReplayableResponse().replay(this.response);
+		this.monitor.getReplayableResponse().release();
+		assertThat(this.responseOutputStream.toByteArray(), is(b));
+	}
+
+	@Test
+	public void shouldAttach() throws Exception {
+		this.monitor.setContentLength(4);
+		this.monitor.write(new byte[] { 0, 1 });
+		this.monitor.getReplayableResponse().attach(this.response);
+		verify(this.response).setContentLength(4);
+		assertThat(this.responseOutputStream.toByteArray(), is(new byte[] { 0, 1 }));
+		this.monitor.write(new byte[] { 2, 3 });
+		this.monitor.setStatus(200);
+		verify(this.response).setStatus(200);
+		assertThat(this.responseOutputStream.toByteArray(), is(new byte[] { 0, 1, 2, 3 }));
+	}
+
+	@Test
+	public void shouldNotReplayOnceAttached() throws Exception {
+		this.monitor.getReplayableResponse().attach(this.response);
+		this.thrown.expect(IllegalStateException.class);
+		this.thrown.expectMessage("Unable to replay an attached response");
+		this.monitor.getReplayableResponse().replay(this.response);
+	}
+
 	@Test
 	public void shouldSupportEquals() throws Exception {
 		ReplayableHttpServletResponseMonitor monitor1 = new ReplayableHttpServletResponseMonitorFactory().getMonitor();
@@ -284,4 +329,103 @@ public class ReplayableHttpServletResponseMonitorFactoryTest {
 		r.replay(this.response);
 		assertThat(this.responseOutputStream.toByteArray(), is(b));
 	}
+
+	@Test
+	public void shouldSerializeEventsWithResponse() throws Exception {
+		this.monitor.setStatus(201);
+		this.monitor.setHeader("Content-Type", "text/plain");
+		this.monitor.write(new byte[] { 0, 1 });
+		ReplayableHttpServletResponse r = this.monitor.getReplayableResponse();
+		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		new ObjectOutputStream(byteArrayOutputStream).writeObject(r);
+		r = (ReplayableHttpServletResponse) new ObjectInputStream(new ByteArrayInputStream(
+				byteArrayOutputStream.toByteArray())).readObject();
+		r.replay(this.response);
+		verify(this.response).setStatus(201);
+		verify(this.response).setHeader("Content-Type", "text/plain");
+		assertThat(this.responseOutputStream.toByteArray(), is(new byte[] { 0, 1 }));
+	}
+
+	@Test
+	public void shouldWriteToAndReadFromStream() throws Exception {
+		Cookie cookie = new Cookie("name", "value");
+		this.monitor.setStatus(201);
+		this.monitor.addCookie(cookie);
+		this.monitor.setHeader("X-Custom", "value");
+		this.monitor.write(new byte[] { 0, 1, 2, 3 });
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		this.monitor.getReplayableResponse().writeTo(outputStream);
+		ReplayableHttpServletResponseMonitorFactory factory = new ReplayableHttpServletResponseMonitorFactory();
+		factory.setMaxInMemorySize(2);
+		ReplayableHttpServletResponse r = factory.readFrom(new ByteArrayInputStream(outputStream.toByteArray()));
+		r.replay(this.response);
+		r.release();
+		verify(this.response).setStatus(201);
+		verify(this.response).addCookie(any(Cookie.class));
+		verify(this.response).setHeader("X-Custom", "value");
+		assertThat(this.responseOutputStream.toByteArray(), is(new byte[] { 0, 1, 2, 3 }));
+	}
+
+	@Test
+	public void shouldWriteToAndReadFromStreamWithoutBody() throws Exception {
+		this.monitor.sendError(404);
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		this.monitor.getReplayableResponse().writeTo(outputStream);
+		ReplayableHttpServletResponse r = new ReplayableHttpServletResponseMonitorFactory()
+				.readFrom(new ByteArrayInputStream(outputStream.toByteArray()));
+		r.replay(this.response);
+		verify(this.response).sendError(404);
+		verify(this.response, never()).getOutputStream();
+	}
+
+	@Test
+	public void shouldNotReadFromUnknownStream() throws Exception {
+		this.thrown.expect(IOException.class);
+		this.thrown.expectMessage("Stream does not contain a replayable response");
+		new ReplayableHttpServletResponseMonitorFactory().readFrom(new ByteArrayInputStream(new byte[] { 0, 0, 0, 0 }));
+	}
+
+	@Test
+	public void shouldNotReadFromUnsupportedVersion() throws Exception {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		this.monitor.getReplayableResponse().writeTo(outputStream);
+		byte[] bytes = outputStream.toByteArray();
+		bytes[4] = 99;
+		this.thrown.expect(IOException.class);
+		this.thrown.expectMessage("Unsupported replayable response version 99");
+		new ReplayableHttpServletResponseMonitorFactory().readFrom(new ByteArrayInputStream(bytes));
+	}
+
+	@Test
+	public void shouldNotWriteAttachedResponse() throws Exception {
+		this.monitor.getReplayableResponse().attach(this.response);
+		this.thrown.expect(IllegalStateException.class);
+		this.thrown.expectMessage("Unable to write an attached response");
+		this.monitor.getReplayableResponse().writeTo(new ByteArrayOutputStream());
+	}
+
+	@Test
+	public void shouldReplayEvictedResponseAsServiceUnavailable() throws Exception {
+		MemoryBudget budget = new MemoryBudget(ChunkPool.DEFAULT_CHUNK_SIZE);
+		budget.setPolicy(MemoryBudget.Policy.EVICT_OLDEST);
+		ReplayableHttpServletResponseMonitorFactory factory = new ReplayableHttpServletResponseMonitorFactory();
+		factory.setMemoryBudget(budget);
+		ReplayableHttpServletResponseMonitor oldest = factory.getMonitor();
+		oldest.setStatus(200);
+		oldest.write(new byte[] { 0, 1 });
+		ReplayableHttpServletResponseMonitor newest = factory.getMonitor();
+		newest.write(new byte[] { 2, 3 });
+		assertThat(budget.getEvictionCount(), is(1L));
+		oldest.setHeader("a", "b");
+		oldest.write(new byte[] { 4 });
+		oldest.getReplayableResponse().replay(this.response);
+		verify(this.response).sendError(503);
+		verify(this.response, never()).setStatus(200);
+		verify(this.response, never()).setHeader("a", "b");
+		assertThat(this.responseOutputStream.size(), is(0));
+		newest.getReplayableResponse().replay(this.response);
+		assertThat(this.responseOutputStream.toByteArray(), is(new byte[] { 2, 3 }));
+		newest.getReplayableResponse().release();
+		assertThat(budget.getUsed(), is(0L));
+	}
 }
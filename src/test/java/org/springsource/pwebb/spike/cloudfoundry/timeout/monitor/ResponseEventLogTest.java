@@ -0,0 +1,126 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.monitor;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+/**
+ * Tests for {@link ResponseEventLog}.
+ * 
+ * @author Phillip Webb
+ */
+public class ResponseEventLogTest {
+
+	private ResponseEventLog log = new ResponseEventLog();
+
+	private HttpServletResponse response = mock(HttpServletResponse.class);
+
+	private ResponseEventLog.Body body = mock(ResponseEventLog.Body.class);
+
+	@Test
+	public void shouldReplayInOrder() throws Exception {
+		this.log.write(ResponseEventLog.SET_STATUS, 200);
+		this.log.write(ResponseEventLog.BODY);
+		this.log.write(ResponseEventLog.SET_HEADER, "X-Custom", "value");
+		this.log.replay(this.response, this.body);
+		InOrder ordered = inOrder(this.response, this.body);
+		ordered.verify(this.response).setStatus(200);
+		ordered.verify(this.body).replay(this.response);
+		ordered.verify(this.response).setHeader("X-Custom", "value");
+	}
+
+	@Test
+	public void shouldInternCommonHeaderNames() throws Exception {
+		this.log.write(ResponseEventLog.SET_HEADER, "Content-Type", "text/plain");
+		int common = this.log.size();
+		this.log.clear();
+		this.log.write(ResponseEventLog.SET_HEADER, "Content-Typx", "text/plain");
+		assertThat(common, is(lessThan(this.log.size())));
+		this.log.clear();
+		this.log.write(ResponseEventLog.SET_HEADER, "Content-Type", "text/plain");
+		this.log.replay(this.response, this.body);
+		verify(this.response).setHeader("Content-Type", "text/plain");
+	}
+
+	@Test
+	public void shouldReplayNullAndNonAsciiStrings() throws Exception {
+		this.log.write(ResponseEventLog.SET_HEADER, "X-Null", (String) null);
+		this.log.write(ResponseEventLog.ADD_HEADER, "X-Text", "été");
+		this.log.replay(this.response, this.body);
+		verify(this.response).setHeader("X-Null", null);
+		verify(this.response).addHeader("X-Text", "été");
+	}
+
+	@Test
+	public void shouldReplayLongAndIntValues() throws Exception {
+		this.log.write(ResponseEventLog.SET_DATE_HEADER, "Expires", Long.MAX_VALUE - 1);
+		this.log.write(ResponseEventLog.ADD_INT_HEADER, "X-Int", -5);
+		this.log.write(ResponseEventLog.SEND_ERROR_WITH_MESSAGE, 404, "Missing");
+		this.log.replay(this.response, this.body);
+		verify(this.response).setDateHeader("Expires", Long.MAX_VALUE - 1);
+		verify(this.response).addIntHeader("X-Int", -5);
+		verify(this.response).sendError(404, "Missing");
+	}
+
+	@Test
+	public void shouldReplayCookie() throws Exception {
+		Cookie cookie = new Cookie("name", "value");
+		cookie.setComment("comment");
+		cookie.setDomain(".example.com");
+		cookie.setMaxAge(100);
+		cookie.setPath("/");
+		cookie.setSecure(true);
+		cookie.setVersion(1);
+		this.log.write(cookie);
+		this.log.replay(this.response, this.body);
+		ArgumentCaptor<Cookie> captor = ArgumentCaptor.forClass(Cookie.class);
+		verify(this.response).addCookie(captor.capture());
+		Cookie replayed = captor.getValue();
+		assertThat(replayed.getName(), is("name"));
+		assertThat(replayed.getValue(), is("value"));
+		assertThat(replayed.getComment(), is("comment"));
+		assertThat(replayed.getDomain(), is(".example.com"));
+		assertThat(replayed.getMaxAge(), is(100));
+		assertThat(replayed.getPath(), is("/"));
+		assertThat(replayed.getSecure(), is(true));
+		assertThat(replayed.getVersion(), is(1));
+	}
+
+	@Test
+	public void shouldReplayLocale() throws Exception {
+		this.log.write(Locale.CANADA_FRENCH);
+		this.log.replay(this.response, this.body);
+		verify(this.response).setLocale(Locale.CANADA_FRENCH);
+	}
+
+	@Test
+	public void shouldGrow() throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			this.log.write(ResponseEventLog.ADD_INT_HEADER, "X-Count", i);
+		}
+		this.log.replay(this.response, this.body);
+		verify(this.response).addIntHeader("X-Count", 0);
+		verify(this.response).addIntHeader("X-Count", 999);
+	}
+
+	@Test
+	public void shouldClear() throws Exception {
+		this.log.write(ResponseEventLog.RESET);
+		this.log.clear();
+		this.log.replay(this.response, this.body);
+		verifyZeroInteractions(this.response, this.body);
+	}
+}
@@ -0,0 +1,106 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.store;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitor;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitorFactory;
+
+/**
+ * Tests for {@link FileSystemCompletedResponseStore}.
+ * 
+ * @author Phillip Webb
+ */
+public class FileSystemCompletedResponseStoreTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private FileSystemCompletedResponseStore store;
+
+	private HttpServletResponse response = mock(HttpServletResponse.class);
+
+	@Before
+	public void setup() {
+		this.store = new FileSystemCompletedResponseStore(this.temporaryFolder.getRoot());
+	}
+
+	@Test
+	public void shouldTakeFromAnotherStoreSharingDirectory() throws Exception {
+		this.store.put("1", recordResponse(201), Long.MAX_VALUE);
+		FileSystemCompletedResponseStore other = new FileSystemCompletedResponseStore(this.temporaryFolder.getRoot());
+		ReplayableHttpServletResponse taken = other.take("1");
+		taken.replay(this.response);
+		taken.release();
+		verify(this.response).setStatus(201);
+		assertThat(this.store.take("1"), is(nullValue()));
+		assertThat(this.temporaryFolder.getRoot().list().length, is(0));
+	}
+
+	@Test
+	public void shouldNotTakeMissing() throws Exception {
+		assertThat(this.store.take("1"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldNotTakeExpired() throws Exception {
+		this.store.put("1", recordResponse(201), System.currentTimeMillis() - 1);
+		assertThat(this.store.take("1"), is(nullValue()));
+		assertThat(this.temporaryFolder.getRoot().list().length, is(0));
+	}
+
+	@Test
+	public void shouldRemove() throws Exception {
+		this.store.put("1", recordResponse(201), Long.MAX_VALUE);
+		this.store.remove("1");
+		assertThat(this.store.take("1"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldEncodeUidAsFileName() throws Exception {
+		this.store.put("../x", recordResponse(201), Long.MAX_VALUE);
+		File[] files = this.temporaryFolder.getRoot().listFiles();
+		assertThat(files.length, is(1));
+		assertThat(files[0].getName(), is("2e2e2f78.response"));
+		assertThat(this.store.take("../x"), is(not(nullValue())));
+	}
+
+	@Test
+	public void shouldNotReleaseOnFailedPut() throws Exception {
+		ReplayableHttpServletResponse response = mock(ReplayableHttpServletResponse.class);
+		willThrow(new IOException()).given(response).writeTo(any(OutputStream.class));
+		try {
+			this.store.put("1", response, Long.MAX_VALUE);
+			fail("Did not throw");
+		} catch (IOException e) {
+			// Expected
+		}
+		verify(response, never()).release();
+		assertThat(this.temporaryFolder.getRoot().list().length, is(0));
+	}
+
+	private ReplayableHttpServletResponse recordResponse(int status) {
+		ReplayableHttpServletResponseMonitor monitor = new ReplayableHttpServletResponseMonitorFactory().getMonitor();
+		monitor.setStatus(status);
+		return monitor.getReplayableResponse();
+	}
+}
@@ -0,0 +1,60 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.store;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+
+/**
+ * Tests for {@link InMemoryCompletedResponseStore}.
+ * 
+ * @author Phillip Webb
+ */
+public class InMemoryCompletedResponseStoreTest {
+
+	private InMemoryCompletedResponseStore store = new InMemoryCompletedResponseStore();
+
+	private ReplayableHttpServletResponse response = mock(ReplayableHttpServletResponse.class);
+
+	@Test
+	public void shouldTakeOnce() throws Exception {
+		this.store.put("1", this.response, Long.MAX_VALUE);
+		assertThat(this.store.take("1"), is(sameInstance(this.response)));
+		assertThat(this.store.take("1"), is(nullValue()));
+		assertThat(this.store.size(), is(0));
+	}
+
+	@Test
+	public void shouldNotTakeMissing() throws Exception {
+		assertThat(this.store.take("1"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldReleaseExpired() throws Exception {
+		this.store.put("1", this.response, System.currentTimeMillis() - 1);
+		assertThat(this.store.take("1"), is(nullValue()));
+		verify(this.response).release();
+	}
+
+	@Test
+	public void shouldReleaseRemoved() throws Exception {
+		this.store.put("1", this.response, Long.MAX_VALUE);
+		this.store.remove("1");
+		verify(this.response).release();
+		assertThat(this.store.take("1"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldReleaseReplaced() throws Exception {
+		ReplayableHttpServletResponse replacement = mock(ReplayableHttpServletResponse.class);
+		this.store.put("1", this.response, Long.MAX_VALUE);
+		this.store.put("1", replacement, Long.MAX_VALUE);
+		verify(this.response).release();
+		assertThat(this.store.take("1"), is(sameInstance(replacement)));
+	}
+}
@@ -0,0 +1,218 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.store;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitor;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitorFactory;
+
+/**
+ * Tests for {@link MappedSegmentCompletedResponseStore}.
+ * 
+ * @author Phillip Webb
+ */
+public class MappedSegmentCompletedResponseStoreTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private MappedSegmentCompletedResponseStore store;
+
+	private HttpServletResponse response = mock(HttpServletResponse.class);
+
+	private ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+	@Before
+	public void setup() throws IOException {
+		this.store = new MappedSegmentCompletedResponseStore(this.temporaryFolder.getRoot());
+		this.store.setSegmentSize(1024);
+		this.store.setMaxSegments(2);
+		given(this.response.getOutputStream()).willReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				MappedSegmentCompletedResponseStoreTest.this.body.write(b);
+			}
+		});
+	}
+
+	@After
+	public void cleanup() {
+		this.store.destroy();
+	}
+
+	@Test
+	public void shouldTakeOnce() throws Exception {
+		this.store.put("1", recordResponse(201, 100), Long.MAX_VALUE);
+		ReplayableHttpServletResponse taken = this.store.take("1");
+		taken.replay(this.response);
+		taken.release();
+		verify(this.response).setStatus(201);
+		assertThat(this.body.size(), is(100));
+		assertThat(this.store.take("1"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldNotTakeMissing() throws Exception {
+		assertThat(this.store.take("1"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldNotTakeExpired() throws Exception {
+		this.store.put("1", recordResponse(201, 100), System.currentTimeMillis() - 1);
+		assertThat(this.store.take("1"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldRecycleSegments() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			this.store.put("" + i, recordResponse(201, 400), Long.MAX_VALUE);
+			this.store.take("" + i).release();
+		}
+		assertThat(this.store.getSegmentCount(), is(1));
+	}
+
+	@Test
+	public void shouldRecycleRemovedSegments() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			this.store.put("" + i, recordResponse(201, 400), Long.MAX_VALUE);
+			this.store.remove("" + i);
+		}
+		assertThat(this.store.getSegmentCount(), is(1));
+	}
+
+	@Test
+	public void shouldPurgeExpiredWhenFull() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			this.store.put("" + i, recordResponse(201, 400), System.currentTimeMillis() - 1);
+		}
+		assertThat(this.store.getSegmentCount(), is(2));
+	}
+
+	@Test
+	public void shouldFailWhenFull() throws Exception {
+		for (int i = 0; i < 4; i++) {
+			this.store.put("" + i, recordResponse(201, 400), Long.MAX_VALUE);
+		}
+		this.thrown.expect(IOException.class);
+		this.thrown.expectMessage("All 2 response store segments are in use");
+		this.store.put("5", recordResponse(201, 400), Long.MAX_VALUE);
+	}
+
+	@Test
+	public void shouldFailWhenLargerThanSegment() throws Exception {
+		this.thrown.expect(IOException.class);
+		this.thrown.expectMessage("Response is larger than the segment size of 1024 bytes");
+		this.store.put("1", recordResponse(201, 2000), Long.MAX_VALUE);
+	}
+
+	@Test
+	public void shouldReleaseOnPut() throws Exception {
+		ReplayableHttpServletResponse response = mock(ReplayableHttpServletResponse.class);
+		this.store.put("1", response, Long.MAX_VALUE);
+		verify(response).release();
+	}
+
+	@Test
+	public void shouldNotReleaseOnFailedPut() throws Exception {
+		ReplayableHttpServletResponse response = recordResponse(201, 4096);
+		try {
+			this.store.put("1", response, Long.MAX_VALUE);
+			fail("Did not throw");
+		} catch (IOException e) {
+			// Expected
+		}
+		response.replay(this.response);
+		response.release();
+		verify(this.response).setStatus(201);
+		assertThat(this.body.size(), is(4096));
+	}
+
+	@Test
+	public void shouldNotHoldLockWhileWriting() throws Exception {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		ReplayableHttpServletResponse blocking = mock(ReplayableHttpServletResponse.class);
+		willAnswer(new Answer<Object>() {
+			private int count;
+
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				if (this.count++ > 0) {
+					writing.countDown();
+					proceed.await();
+				}
+				((OutputStream) invocation.getArguments()[0]).write(new byte[10]);
+				return null;
+			}
+		}).given(blocking).writeTo(any(OutputStream.class));
+		PutThread blockingThread = new PutThread("1", blocking);
+		blockingThread.start();
+		boolean writeStarted = writing.await(5, TimeUnit.SECONDS);
+		PutThread thread = new PutThread("2", recordResponse(201, 100));
+		thread.start();
+		thread.join(1000);
+		boolean blocked = thread.isAlive();
+		proceed.countDown();
+		blockingThread.join();
+		thread.join();
+		assertThat(writeStarted, is(true));
+		assertThat(blocked, is(false));
+		this.store.take("2").replay(this.response);
+		verify(this.response).setStatus(201);
+	}
+
+	private ReplayableHttpServletResponse recordResponse(int status, int bodyLength) throws IOException {
+		ReplayableHttpServletResponseMonitor monitor = new ReplayableHttpServletResponseMonitorFactory().getMonitor();
+		monitor.setStatus(status);
+		monitor.write(new byte[bodyLength]);
+		return monitor.getReplayableResponse();
+	}
+
+	private class PutThread extends Thread {
+
+		private final String uid;
+
+		private final ReplayableHttpServletResponse response;
+
+		public PutThread(String uid, ReplayableHttpServletResponse response) {
+			this.uid = uid;
+			this.response = response;
+		}
+
+		@Override
+		public void run() {
+			try {
+				MappedSegmentCompletedResponseStoreTest.this.store.put(this.uid, this.response, Long.MAX_VALUE);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.store;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-process fake {@link RemoteCompletedResponseStore.Client} that can be shared between several stores to simulate
+ * multiple application instances.
+ * 
+ * @author Phillip Webb
+ */
+public class MockRemoteClient implements RemoteCompletedResponseStore.Client {
+
+	private final ConcurrentMap<String, Value> values = new ConcurrentHashMap<String, Value>();
+
+	public void put(String key, byte[] value, long expiryTime) {
+		this.values.put(key, new Value(value.clone(), expiryTime));
+	}
+
+	public byte[] take(String key) {
+		Value value = this.values.remove(key);
+		if (value == null || value.expiryTime < System.currentTimeMillis()) {
+			return null;
+		}
+		return value.bytes;
+	}
+
+	public void remove(String key) {
+		this.values.remove(key);
+	}
+
+	public int size() {
+		return this.values.size();
+	}
+
+	public boolean containsKey(String key) {
+		return this.values.containsKey(key);
+	}
+
+	private static class Value {
+
+		private final byte[] bytes;
+
+		private final long expiryTime;
+
+		public Value(byte[] bytes, long expiryTime) {
+			this.bytes = bytes;
+			this.expiryTime = expiryTime;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package org.springsource.pwebb.spike.cloudfoundry.timeout.store;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponse;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitor;
+import org.springsource.pwebb.spike.cloudfoundry.timeout.monitor.ReplayableHttpServletResponseMonitorFactory;
+
+/**
+ * Tests for {@link RemoteCompletedResponseStore}.
+ * 
+ * @author Phillip Webb
+ */
+public class RemoteCompletedResponseStoreTest {
+
+	private MockRemoteClient client = new MockRemoteClient();
+
+	private RemoteCompletedResponseStore store = new RemoteCompletedResponseStore(this.client);
+
+	@Test
+	public void shouldTakeFromAnotherStoreSharingClient() throws Exception {
+		ReplayableHttpServletResponseMonitor monitor = new ReplayableHttpServletResponseMonitorFactory().getMonitor();
+		monitor.setStatus(201);
+		monitor.write(new byte[] { 1, 2 });
+		this.store.put("1", monitor.getReplayableResponse(), Long.MAX_VALUE);
+		assertThat(this.client.containsKey("timeout-protection:1"), is(true));
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		given(response.getOutputStream()).willReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				body.write(b);
+			}
+		});
+		ReplayableHttpServletResponse taken = new RemoteCompletedResponseStore(this.client).take("1");
+		taken.replay(response);
+		verify(response).setStatus(201);
+		assertThat(body.toByteArray(), is(new byte[] { 1, 2 }));
+		assertThat(this.store.take("1"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldReleaseOnPut() throws Exception {
+		ReplayableHttpServletResponse response = mock(ReplayableHttpServletResponse.class);
+		this.store.put("1", response, Long.MAX_VALUE);
+		verify(response).release();
+	}
+
+	@Test
+	public void shouldNotReleaseOnFailedPut() throws Exception {
+		RemoteCompletedResponseStore.Client client = mock(RemoteCompletedResponseStore.Client.class);
+		willThrow(new IOException()).given(client).put(anyString(), any(byte[].class), anyLong());
+		ReplayableHttpServletResponse response = mock(ReplayableHttpServletResponse.class);
+		try {
+			new RemoteCompletedResponseStore(client).put("1", response, Long.MAX_VALUE);
+			fail("Did not throw");
+		} catch (IOException e) {
+			// Expected
+		}
+		verify(response, never()).release();
+	}
+
+	@Test
+	public void shouldUseKeyPrefix() throws Exception {
+		this.store.setKeyPrefix("p-");
+		this.store.put("1", mock(ReplayableHttpServletResponse.class), Long.MAX_VALUE);
+		assertThat(this.client.containsKey("p-1"), is(true));
+		this.store.remove("1");
+		assertThat(this.client.size(), is(0));
+	}
+}